@@ -0,0 +1,160 @@
+package de.tum.in.securebitcoinwallet.javacardapplet;
+
+import javacard.framework.Util;
+
+/**
+ * Hash index over the addresses of a {@link KeyStore}. Addresses are hashed
+ * into buckets, slots sharing a bucket are chained. Each slot additionally
+ * stores a one byte fingerprint of its hash, so that most colliding slots can
+ * be skipped without comparing the full address.
+ */
+public class AddressIndex {
+	/**
+	 * Marks an empty bucket or the end of a chain.
+	 */
+	public static final byte NO_SLOT = (byte) 0xFF;
+
+	/**
+	 * Index of the first slot of each bucket's chain.
+	 */
+	private byte[] buckets;
+
+	/**
+	 * Index of the next slot inside the same chain, one entry per slot.
+	 */
+	private byte[] chain;
+
+	/**
+	 * Fingerprint of the hash of the address stored in each slot.
+	 */
+	private byte[] fingerprints;
+
+	/**
+	 * Mask to calculate the bucket of a hash. The number of buckets is the
+	 * smallest power of two not smaller than the number of slots.
+	 */
+	private short bucketMask;
+
+	/**
+	 * Constructor. Allocates the index for the given number of slots.
+	 *
+	 * @param size The number of slots to index. May not exceed 254.
+	 */
+	public AddressIndex(short size) {
+		short bucketCount = 1;
+		while (bucketCount < size) {
+			bucketCount = (short) (bucketCount << 1);
+		}
+
+		bucketMask = (short) (bucketCount - 1);
+
+		buckets = new byte[bucketCount];
+		chain = new byte[size];
+		fingerprints = new byte[size];
+
+		Util.arrayFillNonAtomic(buckets, (short) 0, bucketCount, NO_SLOT);
+		Util.arrayFillNonAtomic(chain, (short) 0, size, NO_SLOT);
+	}
+
+	/**
+	 * Calculates the hash of the given address.
+	 *
+	 * @param src The array, in which the address can be found
+	 * @param addrOff The offset of the address inside the source array
+	 * @param addrLength The length of the address
+	 *
+	 * @return The hash of the address
+	 */
+	public static short hash(byte[] src, short addrOff, short addrLength) {
+		short hash = addrLength;
+		short end = (short) (addrOff + addrLength);
+
+		for (short i = addrOff; i < end; i++) {
+			hash = (short) ((short) (hash * 31) + (src[i] & 0xFF));
+		}
+
+		// Mix the upper bits into the bucket bits
+		return (short) (hash ^ (hash >>> 7));
+	}
+
+	/**
+	 * Adds the given slot to the chain of the bucket of the given hash.
+	 *
+	 * @param slot The slot to add
+	 * @param hash The hash of the address stored in the slot
+	 */
+	public void add(byte slot, short hash) {
+		short bucket = (short) (hash & bucketMask);
+
+		fingerprints[(short) (slot & 0xFF)] = (byte) (hash >> 8);
+		chain[(short) (slot & 0xFF)] = buckets[bucket];
+		buckets[bucket] = slot;
+	}
+
+	/**
+	 * Removes the given slot from the chain of the bucket of the given hash.
+	 *
+	 * @param slot The slot to remove
+	 * @param hash The hash of the address stored in the slot
+	 */
+	public void remove(byte slot, short hash) {
+		short bucket = (short) (hash & bucketMask);
+
+		short index = (short) (slot & 0xFF);
+
+		if (buckets[bucket] == slot) {
+			buckets[bucket] = chain[index];
+		} else {
+			short previous = (short) (buckets[bucket] & 0xFF);
+			while (previous != (short) (NO_SLOT & 0xFF)) {
+				if (chain[previous] == slot) {
+					chain[previous] = chain[index];
+					break;
+				}
+				previous = (short) (chain[previous] & 0xFF);
+			}
+		}
+
+		chain[index] = NO_SLOT;
+	}
+
+	/**
+	 * Returns the first slot of the chain for the given hash, whose
+	 * fingerprint matches the hash.
+	 *
+	 * @param hash The hash of the address to look up
+	 *
+	 * @return The first candidate slot or {@link #NO_SLOT}
+	 */
+	public byte getFirst(short hash) {
+		return skipToFingerprint(buckets[(short) (hash & bucketMask)], hash);
+	}
+
+	/**
+	 * Returns the slot following the given slot inside its chain, whose
+	 * fingerprint matches the hash.
+	 *
+	 * @param slot The current slot
+	 * @param hash The hash of the address to look up
+	 *
+	 * @return The next candidate slot or {@link #NO_SLOT}
+	 */
+	public byte getNext(byte slot, short hash) {
+		return skipToFingerprint(chain[(short) (slot & 0xFF)], hash);
+	}
+
+	/**
+	 * Follows the chain beginning at the given slot until a slot with a
+	 * fingerprint matching the given hash is found.
+	 */
+	private byte skipToFingerprint(byte slot, short hash) {
+		byte fingerprint = (byte) (hash >> 8);
+
+		while (slot != NO_SLOT
+				&& fingerprints[(short) (slot & 0xFF)] != fingerprint) {
+			slot = chain[(short) (slot & 0xFF)];
+		}
+
+		return slot;
+	}
+}
@@ -11,6 +11,24 @@ public interface AppletInstructions {
 	 */
 	byte SECURE_BITCOIN_WALLET_CLA = (byte) 0xA0;
 
+	/**
+	 * P1 flag of key instructions. If set, the key is referenced by its 2
+	 * byte handle instead of its Bitcoin address.
+	 */
+	byte P1_KEY_HANDLE = (byte) 0x80;
+
+	/**
+	 * P1 of the import private keys instruction, if the keys are encrypted
+	 * private keys.
+	 */
+	byte P1_ENCRYPTED_KEYS = (byte) 0x01;
+
+	/**
+	 * P1 of the generate key instruction, if the public key is returned and
+	 * the address is derived in the compressed form.
+	 */
+	byte P1_COMPRESSED = (byte) 0x01;
+
 	/**
 	 * Setup Instruction.
 	 */
@@ -46,6 +64,16 @@ public interface AppletInstructions {
 	 * Sign Bitcoin transaction instruction.
 	 */
 	byte INS_SIGN_SHA256_HASH = (byte) 0x0E;
+
+	/**
+	 * Sign several SHA256 hashes of Bitcoin transaction inputs instruction.
+	 */
+	byte INS_SIGN_SHA256_HASH_BATCH = (byte) 0x10;
+
+	/**
+	 * Select key and sign Bitcoin transaction instruction.
+	 */
+	byte INS_SELECT_KEY_AND_SIGN = (byte) 0x12;
 	
 	/**
 	 * Generate new key pair instruction.
@@ -72,8 +100,58 @@ public interface AppletInstructions {
 	 */
 	byte INS_DELETE_PRIVATE_KEY = (byte) 0x28;
 
+	/**
+	 * Import private keys instruction. Imports a list of private keys or
+	 * encrypted private keys.
+	 */
+	byte INS_IMPORT_PRIVATE_KEYS = (byte) 0x2A;
+
+	/**
+	 * Backup keys instruction. Exports all keys encrypted with an integrity
+	 * tag.
+	 */
+	byte INS_BACKUP_KEYS = (byte) 0x2C;
+
+	/**
+	 * Restore keys instruction. Imports the keys of a backup.
+	 */
+	byte INS_RESTORE_KEYS = (byte) 0x2E;
+
+	/**
+	 * Fill key pool instruction. Generates keys in advance, P2 holds the
+	 * number of keys.
+	 */
+	byte INS_FILL_KEY_POOL = (byte) 0x30;
+
+	/**
+	 * Get pooled key instruction. Hands out the next key of the key pool.
+	 */
+	byte INS_GET_POOLED_KEY = (byte) 0x32;
+
 	/**
 	 * Get remaining memory instruction.
 	 */
 	byte INS_GET_REMAINING_MEMORY = (byte) 0x40;
+
+	/**
+	 * Get status instruction. Allowed before the setup.
+	 */
+	byte INS_GET_STATUS = (byte) 0x42;
+
+	/**
+	 * Enumerate keys instruction. P1 and P2 hold the slot to continue with.
+	 */
+	byte INS_ENUMERATE_KEYS = (byte) 0x44;
+
+	/**
+	 * Envelope instruction. Executes a sequence of instructions in one
+	 * command.
+	 */
+	byte INS_ENVELOPE = (byte) 0xC2;
+
+	/**
+	 * Get response instruction. Fetches the remaining response data of the
+	 * previous instruction.
+	 */
+	byte INS_GET_RESPONSE = (byte) 0xC0;
 }
@@ -51,7 +51,7 @@ public class BitcoinAddress {
 		}
 
 		size = addrLength;
-		Util.arrayCopy(src, (byte) addrOff, addressBytes, (byte) 0, addrLength);
+		Util.arrayCopy(src, addrOff, addressBytes, (short) 0, addrLength);
 	}
 
 	/**
@@ -92,6 +92,27 @@ public class BitcoinAddress {
 				addrLength) == 0;
 	}
 
+	/**
+	 * Calculates the {@link AddressIndex} hash of this address.
+	 */
+	public short calculateHash() {
+		return AddressIndex.hash(addressBytes, (short) 0, size);
+	}
+
+	/**
+	 * Copies the bytes of this BitcoinAddress into the given array.
+	 * 
+	 * @param dest The output buffer
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The size of this BitcoinAddress in bytes
+	 */
+	public short getAddress(byte[] dest, short destOff) {
+		Util.arrayCopyNonAtomic(addressBytes, (short) 0, dest, destOff, size);
+
+		return size;
+	}
+
 	/**
 	 * Returns the size of this BitcoinAddress in bytes.
 	 */
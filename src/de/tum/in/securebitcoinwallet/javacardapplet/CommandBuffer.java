@@ -0,0 +1,281 @@
+package de.tum.in.securebitcoinwallet.javacardapplet;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * Transient buffer for commands and responses, which do not fit into one APDU.
+ * The data of a command sent in several chained commands (CLA bit 0x10) is
+ * assembled in the buffer, so that the command can be processed like a single
+ * one. A response longer than the expected length is kept in the buffer and
+ * has to be fetched with GET RESPONSE.
+ */
+public class CommandBuffer {
+	/**
+	 * Neither a command nor a response in progress.
+	 */
+	private static final byte STATE_IDLE = (byte) 0x00;
+
+	/**
+	 * The data of chained commands is being received.
+	 */
+	private static final byte STATE_RECEIVING = (byte) 0x01;
+
+	/**
+	 * The remaining response is being sent.
+	 */
+	private static final byte STATE_SENDING = (byte) 0x02;
+
+	/**
+	 * Offset of the state inside the state buffer.
+	 */
+	private static final short OFFSET_STATE = 0;
+
+	/**
+	 * Offset of the INS of the chained commands inside the state buffer.
+	 */
+	private static final short OFFSET_INS = 1;
+
+	/**
+	 * Offset of the length of the data inside the state buffer.
+	 */
+	private static final short OFFSET_LENGTH = 2;
+
+	/**
+	 * Offset of the number of response bytes already sent inside the state
+	 * buffer.
+	 */
+	private static final short OFFSET_SENT = 4;
+
+	/**
+	 * Size of the state buffer, which is reserved in addition to the data.
+	 */
+	public static final short STATE_BUFFER_SIZE = 6;
+
+	/**
+	 * Maximum length of the data in bytes.
+	 */
+	private short capacity;
+
+	/**
+	 * Transient array of the {@link WorkingMemory}.
+	 */
+	private byte[] workingMemory;
+
+	/**
+	 * Offset of the state inside the {@link #workingMemory}.
+	 */
+	private short stateBufferOff;
+
+	/**
+	 * Offset of the data inside the {@link #workingMemory}.
+	 */
+	private short dataBufferOff;
+
+	/**
+	 * Constructor. Has to be called inside the constructor of the applet to
+	 * reserve needed memory.
+	 *
+	 * @param capacity The maximum length of a command or response in bytes
+	 * @param memory The working memory, from which the buffers are reserved
+	 */
+	public CommandBuffer(short capacity, WorkingMemory memory) {
+		this.capacity = capacity;
+
+		workingMemory = memory.getBuffer();
+		stateBufferOff = memory.reserve(STATE_BUFFER_SIZE);
+		dataBufferOff = memory.reserve(capacity);
+	}
+
+	/**
+	 * Drops the current command or response.
+	 */
+	public void reset() {
+		Util.arrayFillNonAtomic(workingMemory, stateBufferOff,
+				STATE_BUFFER_SIZE, (byte) 0);
+	}
+
+	/**
+	 * Whether the data of chained commands is being received.
+	 */
+	public boolean isReceiving() {
+		return workingMemory[(short) (stateBufferOff + OFFSET_STATE)] == STATE_RECEIVING;
+	}
+
+	/**
+	 * Whether a part of the last response is left to be sent.
+	 */
+	public boolean hasPendingResponse() {
+		return workingMemory[(short) (stateBufferOff + OFFSET_STATE)] == STATE_SENDING;
+	}
+
+	/**
+	 * Appends the data of the given command to the buffer. Starts a new
+	 * command, if no chained commands are being received. All commands of a
+	 * chain have to use the same INS.
+	 *
+	 * @param apdu The command
+	 *
+	 * @return True, if the command is complete, false if more chained
+	 *         commands follow
+	 */
+	public boolean receive(APDU apdu) {
+		byte[] buffer = apdu.getBuffer();
+
+		if (!isReceiving()) {
+			reset();
+			workingMemory[(short) (stateBufferOff + OFFSET_INS)] = buffer[ISO7816.OFFSET_INS];
+		} else if (workingMemory[(short) (stateBufferOff + OFFSET_INS)] != buffer[ISO7816.OFFSET_INS]) {
+			reset();
+			ISOException.throwIt(StatusCodes.LAST_COMMAND_EXPECTED);
+		}
+
+		short length = getShort(OFFSET_LENGTH);
+		short received = apdu.setIncomingAndReceive();
+		short offset = apdu.getOffsetCdata();
+		short remaining = (short) (apdu.getIncomingLength() - received);
+
+		while (true) {
+			if (received > (short) (capacity - length)) {
+				reset();
+				ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+			}
+
+			Util.arrayCopyNonAtomic(buffer, offset, workingMemory,
+					(short) (dataBufferOff + length), received);
+			length = (short) (length + received);
+
+			if (remaining == 0) {
+				break;
+			}
+
+			received = apdu.receiveBytes(offset);
+			remaining = (short) (remaining - received);
+		}
+
+		setShort(OFFSET_LENGTH, length);
+
+		workingMemory[(short) (stateBufferOff + OFFSET_STATE)] = apdu
+				.isCommandChainingCLA() ? STATE_RECEIVING : STATE_IDLE;
+
+		return !isReceiving();
+	}
+
+	/**
+	 * Returns the array containing the data of the received command.
+	 */
+	public byte[] getBuffer() {
+		return workingMemory;
+	}
+
+	/**
+	 * Returns the offset of the data of the received command inside
+	 * {@link #getBuffer()}.
+	 */
+	public short getDataOffset() {
+		return dataBufferOff;
+	}
+
+	/**
+	 * Returns the maximum length of a command or response in bytes.
+	 */
+	public short getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the length of the data of the received command.
+	 */
+	public short getLength() {
+		return getShort(OFFSET_LENGTH);
+	}
+
+	/**
+	 * Sends the given response. If the response is longer than the expected
+	 * length, the remaining part is kept in the buffer and 0x61XX is
+	 * returned.
+	 *
+	 * @param apdu The command to respond to
+	 * @param src The array containing the response
+	 * @param offset The offset of the response inside the array
+	 * @param length The length of the response
+	 */
+	public void send(APDU apdu, byte[] src, short offset, short length) {
+		short maxLength = apdu.setOutgoing();
+
+		if (length <= maxLength) {
+			reset();
+			apdu.setOutgoingLength(length);
+			apdu.sendBytesLong(src, offset, length);
+			return;
+		}
+
+		short remaining = (short) (length - maxLength);
+		if (remaining > capacity) {
+			reset();
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		apdu.setOutgoingLength(maxLength);
+		apdu.sendBytesLong(src, offset, maxLength);
+
+		Util.arrayCopyNonAtomic(src, (short) (offset + maxLength),
+				workingMemory, dataBufferOff, remaining);
+		setShort(OFFSET_LENGTH, remaining);
+		setShort(OFFSET_SENT, (short) 0);
+		workingMemory[(short) (stateBufferOff + OFFSET_STATE)] = STATE_SENDING;
+
+		throwBytesRemaining(remaining);
+	}
+
+	/**
+	 * Sends the next part of the pending response. Signals with 0x61XX, if
+	 * more data is left.
+	 *
+	 * @param apdu The GET RESPONSE command
+	 */
+	public void sendNext(APDU apdu) {
+		if (!hasPendingResponse()) {
+			ISOException.throwIt(StatusCodes.CONDITIONS_NOT_SATISFIED);
+		}
+
+		short sent = getShort(OFFSET_SENT);
+		short remaining = (short) (getShort(OFFSET_LENGTH) - sent);
+
+		short length = apdu.setOutgoing();
+		if (length > remaining) {
+			length = remaining;
+		}
+
+		apdu.setOutgoingLength(length);
+		apdu.sendBytesLong(workingMemory, (short) (dataBufferOff + sent),
+				length);
+
+		remaining = (short) (remaining - length);
+		if (remaining == 0) {
+			reset();
+			return;
+		}
+
+		setShort(OFFSET_SENT, (short) (sent + length));
+		throwBytesRemaining(remaining);
+	}
+
+	/**
+	 * Signals with 0x61XX, that the given number of bytes is left.
+	 */
+	private static void throwBytesRemaining(short remaining) {
+		ISOException.throwIt((short) (StatusCodes.BYTES_REMAINING | (remaining > 0xFF ? 0
+				: remaining)));
+	}
+
+	private short getShort(short offset) {
+		return Util.getShort(workingMemory, (short) (stateBufferOff + offset));
+	}
+
+	private void setShort(short offset, short value) {
+		Util.setShort(workingMemory, (short) (stateBufferOff + offset), value);
+	}
+}
@@ -20,9 +20,28 @@ public class EncryptedPrivateKey {
 	 */
 	boolean inUse;
 
-	public EncryptedPrivateKey(short size) {
+	/**
+	 * Whether this key has been generated in advance for the key pool and has
+	 * not been handed out yet.
+	 */
+	boolean pooled;
+
+	/**
+	 * The compressed public key of a key generated for the key pool.
+	 */
+	byte[] publicKey;
+
+	/**
+	 * Whether the address of a key generated for the key pool is derived from
+	 * the compressed public key.
+	 */
+	boolean compressed;
+
+	public EncryptedPrivateKey(short size, short publicKeySize) {
 		privateKey = new byte[size];
+		publicKey = new byte[publicKeySize];
 		inUse = false;
+		pooled = false;
 	}
 
 	public void setKey(byte[] src, short srcOff, short srcLength) {
@@ -39,6 +58,30 @@ public class EncryptedPrivateKey {
 		inUse = true;
 	}
 
+	/**
+	 * Stores the given key without marking this key as used, so that it can
+	 * be activated later or be cleared again.
+	 */
+	public void stageKey(byte[] src, short srcOff, short srcLength) {
+		if (inUse) {
+			CardRuntimeException.throwIt(StatusCodes.KEY_IS_IN_USE);
+		}
+
+		if (srcLength != (short) privateKey.length) {
+			CardRuntimeException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
+		}
+
+		Util.arrayCopy(src, srcOff, privateKey, (short) 0, srcLength);
+	}
+
+	/**
+	 * Marks the key stored via {@link #stageKey(byte[], short, short)} as
+	 * used.
+	 */
+	public void activate() {
+		inUse = true;
+	}
+
 	/**
 	 * Returns the private key in encrypted form.
 	 * 
@@ -65,6 +108,63 @@ public class EncryptedPrivateKey {
 		return inUse;
 	}
 
+	/**
+	 * Whether this key is in the key pool and has not been handed out yet.
+	 */
+	public boolean isPooled() {
+		return pooled;
+	}
+
+	/**
+	 * Adds this key to the key pool or removes it, when it is handed out.
+	 */
+	public void setPooled(boolean pooled) {
+		if (!inUse) {
+			CardRuntimeException.throwIt(StatusCodes.KEY_NOT_FOUND);
+		}
+
+		this.pooled = pooled;
+	}
+
+	/**
+	 * Adds this key to the key pool and keeps its public key, which is handed
+	 * out with the key.
+	 * 
+	 * @param src The buffer containing the compressed public key
+	 * @param srcOff Offset of the public key inside the buffer
+	 * @param compressed Whether the address of this key is derived from the
+	 *            compressed public key
+	 */
+	public void pool(byte[] src, short srcOff, boolean compressed) {
+		setPooled(true);
+
+		Util.arrayCopy(src, srcOff, publicKey, (short) 0,
+				(short) publicKey.length);
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Returns the compressed public key kept by
+	 * {@link #pool(byte[], short, boolean)}.
+	 * 
+	 * @param dest The destination of the public key
+	 * @param destOff Offset inside the destination
+	 * @return The length of the public key
+	 */
+	public short getPublicKey(byte[] dest, short destOff) {
+		Util.arrayCopyNonAtomic(publicKey, (short) 0, dest, destOff,
+				(short) publicKey.length);
+		return (short) publicKey.length;
+	}
+
+	/**
+	 * Whether the address of this pooled key is derived from the compressed
+	 * public key.
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
 	/**
 	 * Deletes this key and makes it usable via
 	 * {@link #setKey(byte[], short, short)}.
@@ -73,6 +173,7 @@ public class EncryptedPrivateKey {
 		Util.arrayFillNonAtomic(privateKey, (short) 0,
 				(short) privateKey.length, (byte) 0);
 		inUse = false;
+		pooled = false;
 	}
 
 	/**
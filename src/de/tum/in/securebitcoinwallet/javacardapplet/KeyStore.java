@@ -1,10 +1,13 @@
 package de.tum.in.securebitcoinwallet.javacardapplet;
 
+import javacard.framework.CardRuntimeException;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.AESKey;
 import javacard.security.CryptoException;
+import javacard.security.ECKey;
 import javacard.security.ECPrivateKey;
 import javacard.security.ECPublicKey;
 import javacard.security.KeyBuilder;
@@ -22,6 +25,156 @@ import javacardx.crypto.Cipher;
  * @author Benedikt Schlagberger
  */
 public class KeyStore {
+	/**
+	 * Address format storing the Base58 encoded address as received.
+	 */
+	public static final byte ADDRESS_FORMAT_BASE58 = (byte) 0x00;
+
+	/**
+	 * Address format storing the version byte and the RIPEMD-160 hash of the
+	 * public key. Incoming addresses are Base58 decoded once before lookup.
+	 */
+	public static final byte ADDRESS_FORMAT_HASH160 = (byte) 0x01;
+
+	/**
+	 * Records of {@link #importPrivateKeys(byte[], short, short, byte, byte[], short)}
+	 * containing private keys.
+	 */
+	public static final byte RECORDS_PRIVATE_KEYS = (byte) 0x00;
+
+	/**
+	 * Records of {@link #importPrivateKeys(byte[], short, short, byte, byte[], short)}
+	 * containing encrypted private keys.
+	 */
+	public static final byte RECORDS_ENCRYPTED_KEYS = (byte) 0x01;
+
+	/**
+	 * Version of the backup format.
+	 */
+	public static final byte BACKUP_VERSION = (byte) 0x02;
+
+	/**
+	 * Size of the backup header: version and address format.
+	 */
+	private static final short BACKUP_HEADER_SIZE = 2;
+
+	/**
+	 * Size of the integrity tag of a backup: the AES CBC-MAC of the SHA-256
+	 * hash of the backup.
+	 */
+	public static final short BACKUP_TAG_SIZE = 16;
+
+	/**
+	 * No backup is being exported.
+	 */
+	private static final byte BACKUP_STATE_IDLE = (byte) 0x00;
+
+	/**
+	 * The header of the backup is left to be exported.
+	 */
+	private static final byte BACKUP_STATE_HEADER = (byte) 0x01;
+
+	/**
+	 * Records of the backup are left to be exported.
+	 */
+	private static final byte BACKUP_STATE_RECORDS = (byte) 0x02;
+
+	/**
+	 * The integrity tag of the backup is left to be exported.
+	 */
+	private static final byte BACKUP_STATE_TAG = (byte) 0x03;
+
+	/**
+	 * Size of the state of the backup export: state and next slot.
+	 */
+	private static final short BACKUP_STATE_SIZE = 3;
+
+	/**
+	 * No backup is being restored.
+	 */
+	private static final byte RESTORE_STATE_IDLE = (byte) 0x00;
+
+	/**
+	 * The header of the backup is being received.
+	 */
+	private static final byte RESTORE_STATE_HEADER = (byte) 0x01;
+
+	/**
+	 * Records or the integrity tag of the backup are being received.
+	 */
+	private static final byte RESTORE_STATE_RECORDS = (byte) 0x02;
+
+	/**
+	 * Offset of the state inside the restore state.
+	 */
+	private static final short RESTORE_OFFSET_STATE = 0;
+
+	/**
+	 * Offset of the number of bytes inside the record buffer.
+	 */
+	private static final short RESTORE_OFFSET_LENGTH = 1;
+
+	/**
+	 * Offset of the number of received records.
+	 */
+	private static final short RESTORE_OFFSET_RECORDS = 3;
+
+	/**
+	 * Offset of the slot, from which the next free slot is searched.
+	 */
+	private static final short RESTORE_OFFSET_NEXT_SLOT = 4;
+
+	/**
+	 * Size of the state of the restore.
+	 */
+	private static final short RESTORE_STATE_SIZE = 5;
+
+	/**
+	 * Result of a record, whose key has been staged in the next free slot.
+	 */
+	private static final byte RESTORE_STAGED = (byte) 0x00;
+
+	/**
+	 * Result of a record, whose key is already in the store.
+	 */
+	private static final byte RESTORE_KEY_IN_STORE = (byte) 0x01;
+
+	/**
+	 * Result of a record, for whose key no free slot is left.
+	 */
+	private static final byte RESTORE_STORE_FULL = (byte) 0x02;
+
+	/**
+	 * Size of the header of a record: address length and key length.
+	 */
+	private static final short RECORD_HEADER_SIZE = 2;
+
+	/**
+	 * Size of a slot handle: slot index and generation of the slot.
+	 */
+	public static final short HANDLE_SIZE = 2;
+
+	/**
+	 * Minimum length of a Base58 encoded Bitcoin address.
+	 */
+	public static final short MIN_ADDRESS_LENGTH = 26;
+
+	/**
+	 * Maximum length of a Base58 encoded Bitcoin address.
+	 */
+	public static final short MAX_ADDRESS_LENGTH = 35;
+
+	/**
+	 * Size of an address stored in {@link #ADDRESS_FORMAT_HASH160}: version
+	 * byte and RIPEMD-160 hash.
+	 */
+	private static final short HASH160_ADDRESS_SIZE = 21;
+
+	/**
+	 * Size of a decoded Base58 address: version byte, RIPEMD-160 hash and
+	 * checksum.
+	 */
+	private static final short DECODED_ADDRESS_SIZE = 25;
 
 	/**
 	 * The encryption to use for encrypting the private keys.
@@ -38,11 +191,57 @@ public class KeyStore {
 	 */
 	private static final short ENCRYPTION_KEY_LENGTH = KeyBuilder.LENGTH_AES_128;
 
+	/**
+	 * MAC used for the integrity tag of a backup. The MAC is calculated over
+	 * the SHA-256 hash of the backup, which has a fixed length, as CBC-MAC is
+	 * only secure for messages of a fixed length.
+	 */
+	private static final byte BACKUP_MAC_MODE = Signature.ALG_AES_MAC_128_NOPAD;
+
+	/**
+	 * Size of a SHA-256 hash in bytes.
+	 */
+	private static final short SHA256_SIZE = 32;
+
 	/**
 	 * The maximum length of a private key in bytes.
 	 */
 	private static final short PRIVATE_KEY_SIZE = 32;
 
+	/**
+	 * Size of a compressed public key: parity of Y and X.
+	 */
+	private static final short COMPRESSED_PUBLIC_KEY_SIZE = 33;
+
+	/**
+	 * Size of the key buffer. Has to hold an uncompressed public key.
+	 */
+	private static final short KEY_BUFFER_SIZE = 72;
+
+	/**
+	 * Minimum size of the hash buffer. Has to hold one RIPEMD160 block.
+	 */
+	private static final short HASH_BUFFER_SIZE = 64;
+
+	/**
+	 * Number of logged writes, when a key is stored inside a transaction:
+	 * address and its length, key and its flag, generation, free slot bitmap,
+	 * number of keys and three entries of the hash index.
+	 */
+	private static final short STORE_LOGGED_WRITES = 10;
+
+	/**
+	 * Bytes written besides the address and the key, when a key is stored.
+	 */
+	private static final short STORE_WRITTEN_BYTES = 10;
+
+	/**
+	 * Assumed size of the header of a logged write in the commit buffer. The
+	 * layout of the commit buffer is card specific, this is an upper estimate
+	 * and has not been measured on a card.
+	 */
+	private static final short COMMIT_LOG_HEADER_SIZE = 8;
+
 	/**
 	 * The store for the private keys. If a key is null, the slot is free and
 	 * can be used for a new key. This should be kept in sync with
@@ -57,10 +256,47 @@ public class KeyStore {
 	private BitcoinAddress[] addressToKeyIndexMap;
 
 	/**
-	 * The current number of registered keys.
+	 * Hash index over {@link #addressToKeyIndexMap}. Used to find the slot of
+	 * an address without comparing it to every stored address.
+	 */
+	private AddressIndex addressHashIndex;
+
+	/**
+	 * Format in which the addresses are stored, either
+	 * {@link #ADDRESS_FORMAT_BASE58} or {@link #ADDRESS_FORMAT_HASH160}.
+	 */
+	private byte addressFormat;
+
+	/**
+	 * The current number of registered keys. Updated together with
+	 * {@link #freeSlots}.
 	 */
 	private short numberOfKeys;
 
+	/**
+	 * The current number of keys in the key pool, which have not been handed
+	 * out yet. Updated together with the pooled flag of the keys.
+	 */
+	private short numberOfPooledKeys;
+
+	/**
+	 * Bitmap of the free slots. Bit (7 - i % 8) of byte i / 8 is set, if slot
+	 * i is free.
+	 */
+	private byte[] freeSlots;
+
+	/**
+	 * Generation of each slot. Incremented every time a key is stored in the
+	 * slot, so that handles of deleted keys do not refer to a new key in the
+	 * same slot.
+	 */
+	private byte[] generations;
+
+	/**
+	 * Commit capacity needed to store one key inside a transaction.
+	 */
+	private short importCommitSize;
+
 	/**
 	 * Index of the key with has been selected for signing data.
 	 */
@@ -77,6 +313,18 @@ public class KeyStore {
 	 */
 	private Cipher aesCipher;
 
+	/**
+	 * Key used for the integrity tag of backups. Generated randomly during
+	 * instantiation of this KeyStore and used for nothing else, so that no
+	 * instruction can be used to calculate a tag.
+	 */
+	private AESKey backupKey;
+
+	/**
+	 * MAC used for the integrity tag of backups.
+	 */
+	private Signature backupMac;
+
 	/**
 	 * Index of the key inside the {@link keys} array.
 	 */
@@ -88,7 +336,15 @@ public class KeyStore {
 	private KeyPair keyPair;
 
 	/**
-	 * Signature used to sign messages.
+	 * Decrypted private key of the key selected for signing. Transient, if
+	 * supported by the card, so that the key is decrypted only once per
+	 * selection and never written to EEPROM.
+	 */
+	private ECPrivateKey signingKey;
+
+	/**
+	 * Signature used to sign messages with ECDSA and SHA256. Allocated once at
+	 * install time and reused for every signature.
 	 */
 	private Signature signature;
 
@@ -98,97 +354,224 @@ public class KeyStore {
 	private MessageDigest sha256Digest;
 
 	/**
-	 * Buffer used to encrypt private keys and temporary store key data.
+	 * Digest used for hashing with RIPEMD160. Null, if the card does not
+	 * support RIPEMD160, then the software implementation {@link Ripemd160}
+	 * is used.
+	 */
+	private MessageDigest ripemd160Digest;
+
+	/**
+	 * Transient array of the {@link WorkingMemory}, which holds all buffers of
+	 * this KeyStore.
+	 */
+	private byte[] workingMemory;
+
+	/**
+	 * Offset of the buffer used to encrypt private keys and temporary store
+	 * key data inside the {@link #workingMemory}.
+	 */
+	private short keyBufferOff;
+
+	/**
+	 * Offset of the buffer used in
+	 * {@link #encryptPrivateKey(ECPrivateKey, byte[], short)} and
+	 * {@link #decryptPrivateKey(EncryptedPrivateKey, byte[], short)} inside
+	 * the {@link #workingMemory}.
+	 */
+	private short encryptionBufferOff;
+
+	/**
+	 * Offset of the buffer for RIPEMD160 hashing and base58 encoding inside
+	 * the {@link #workingMemory}.
+	 */
+	private short hashBufferOff;
+
+	/**
+	 * Offset of the buffer holding the address of the current operation in
+	 * the format it is stored in inside the {@link #workingMemory}. See
+	 * {@link #loadAddress(byte[], short, short)}.
+	 */
+	private short addressBufferOff;
+
+	/**
+	 * Size of the address buffer in bytes.
+	 */
+	private short addressBufferSize;
+
+	/**
+	 * Offset of the state of the backup export inside the
+	 * {@link #workingMemory}: state and next slot.
+	 */
+	private short backupStateOff;
+
+	/**
+	 * Offset of the state of the restore inside the {@link #workingMemory}.
+	 */
+	private short restoreStateOff;
+
+	/**
+	 * Offset of the buffer inside the {@link #workingMemory}, which collects
+	 * the header, a record or the integrity tag of a backup being restored,
+	 * as they may be split between two parts of the backup.
 	 */
-	private byte[] keyBuffer;
+	private short restoreBufferOff;
 
 	/**
-	 * Buffer used in {@link #encryptPrivateKey(ECPrivateKey, byte[], short)}
-	 * and {@link #decryptPrivateKey(EncryptedPrivateKey, byte[], short)}.
+	 * Size of the restore buffer: the largest record.
 	 */
-	private byte[] encryptionBuffer;
+	private short restoreBufferSize;
 
 	/**
-	 * Buffer for RIPEMD160 hashing and base58 encoding.
+	 * Offset of the results of the records of a backup being restored inside
+	 * the {@link #workingMemory}. Two bits per record.
 	 */
-	private byte[] hashBuffer;
+	private short restoreResultsOff;
 
 	/**
 	 * Constructor. Has to be called inside the constructor of the applet to
 	 * reserve needed memory.
 	 * 
-	 * @param storeSize The size of the keystore in keys. Maximum is 254 (0xFE).
-	 *            If a storeSize bigger than 254 is provided, the size will be
-	 *            set to 254.
-	 * @param addressSize The maximum size of an address in bytes. Maximum is
-	 *            254. If the maximum is exceeded, the maximum of 254 is used
-	 *            instead.
+	 * @param storeSize The size of the keystore in keys. Between 1 and 254
+	 *            (0xFE).
+	 * @param addressSize The length of the longest Base58 encoded address
+	 *            accepted. Between {@link #MIN_ADDRESS_LENGTH} and
+	 *            {@link #MAX_ADDRESS_LENGTH}.
+	 * @param addressFormat The format in which addresses are stored, either
+	 *            {@link #ADDRESS_FORMAT_BASE58} or
+	 *            {@link #ADDRESS_FORMAT_HASH160}.
+	 * @param signature The engine used to sign messages, ECDSA with SHA256.
+	 * @param memory The working memory, from which the buffers of this
+	 *            KeyStore are reserved.
 	 */
-	public KeyStore(short storeSize, short addressSize) {
+	public KeyStore(short storeSize, short addressSize, byte addressFormat,
+			Signature signature, WorkingMemory memory) {
 		addressIndex = 0;
 
-		if (storeSize >= 0xFF) {
+		if (storeSize < 1 || storeSize >= 0xFF) {
 			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
 		}
 
-		if (addressSize >= 0xFF) {
+		if (addressSize < MIN_ADDRESS_LENGTH || addressSize > MAX_ADDRESS_LENGTH) {
 			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
 		}
 
-		keyBuffer = new byte[256];
-		encryptionBuffer = new byte[64];
-		hashBuffer = new byte[256];
+		if (addressFormat != ADDRESS_FORMAT_BASE58
+				&& addressFormat != ADDRESS_FORMAT_HASH160) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
+
+		this.addressFormat = addressFormat;
+
+		workingMemory = memory.getBuffer();
+		keyBufferOff = memory.reserve(KEY_BUFFER_SIZE);
+		encryptionBufferOff = memory.reserve(PRIVATE_KEY_SIZE);
+		// The hash buffer is used as scratch for decoding addresses, too
+		hashBufferOff = memory
+				.reserve(addressSize > HASH_BUFFER_SIZE ? addressSize
+						: HASH_BUFFER_SIZE);
+		addressBufferOff = memory.reserve(addressSize);
+		backupStateOff = memory.reserve(BACKUP_STATE_SIZE);
+		addressBufferSize = addressSize;
+
+		short storedAddressSize = addressFormat == ADDRESS_FORMAT_HASH160 ? HASH160_ADDRESS_SIZE
+				: addressSize;
+		restoreStateOff = memory.reserve(RESTORE_STATE_SIZE);
+		restoreBufferSize = (short) (RECORD_HEADER_SIZE + storedAddressSize + PRIVATE_KEY_SIZE);
+		restoreBufferOff = memory.reserve(restoreBufferSize);
+		restoreResultsOff = memory.reserve((short) ((short) (storeSize + 3) / 4));
 
 		RandomData.getInstance(RandomData.ALG_SECURE_RANDOM).generateData(
-				keyBuffer, (short) 0, (short) (ENCRYPTION_KEY_LENGTH / 8));
+				workingMemory, keyBufferOff, (short) (ENCRYPTION_KEY_LENGTH / 8));
 
 		aesKey = (AESKey) KeyBuilder.buildKey(ENCRYPTION_KEY_TYPE,
 				ENCRYPTION_KEY_LENGTH, false);
-		aesKey.setKey(keyBuffer, (short) 0);
+		aesKey.setKey(workingMemory, keyBufferOff);
+		Util.arrayFillNonAtomic(workingMemory, keyBufferOff,
+				(short) (ENCRYPTION_KEY_LENGTH / 8), (byte) 0);
 
 		aesCipher = Cipher.getInstance(ENCRYPTION_MODE, false);
 
-		keyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+		RandomData.getInstance(RandomData.ALG_SECURE_RANDOM).generateData(
+				workingMemory, keyBufferOff, (short) (ENCRYPTION_KEY_LENGTH / 8));
 
-		// Set EC params
-		ECPrivateKey privKey = (ECPrivateKey) keyPair.getPrivate();
+		backupKey = (AESKey) KeyBuilder.buildKey(ENCRYPTION_KEY_TYPE,
+				ENCRYPTION_KEY_LENGTH, false);
+		backupKey.setKey(workingMemory, keyBufferOff);
+		Util.arrayFillNonAtomic(workingMemory, keyBufferOff,
+				(short) (ENCRYPTION_KEY_LENGTH / 8), (byte) 0);
 
-		privKey.setFieldFP(SECP256K1.P, (short) 0, (short) SECP256K1.P.length);
-		privKey.setA(SECP256K1.a, (short) 0, (short) SECP256K1.a.length);
-		privKey.setB(SECP256K1.b, (short) 0, (short) SECP256K1.b.length);
-		privKey.setG(SECP256K1.G, (short) 0, (short) SECP256K1.G.length);
-		privKey.setR(SECP256K1.R, (short) 0, (short) SECP256K1.R.length);
-		privKey.setK(SECP256K1.K);
+		backupMac = Signature.getInstance(BACKUP_MAC_MODE, false);
 
-		ECPublicKey pubKey = (ECPublicKey) keyPair.getPublic();
+		keyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
 
-		pubKey.setFieldFP(SECP256K1.P, (short) 0, (short) SECP256K1.P.length);
-		pubKey.setA(SECP256K1.a, (short) 0, (short) SECP256K1.a.length);
-		pubKey.setB(SECP256K1.b, (short) 0, (short) SECP256K1.b.length);
-		pubKey.setG(SECP256K1.G, (short) 0, (short) SECP256K1.G.length);
-		pubKey.setR(SECP256K1.R, (short) 0, (short) SECP256K1.R.length);
-		pubKey.setK(SECP256K1.K);
+		// Set EC params
+		setCurveParameters((ECPrivateKey) keyPair.getPrivate());
+		setCurveParameters((ECPublicKey) keyPair.getPublic());
+
+		try {
+			signingKey = (ECPrivateKey) KeyBuilder.buildKey(
+					KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT,
+					KeyBuilder.LENGTH_EC_FP_256, false);
+		} catch (CryptoException e) {
+			if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM) {
+				throw e;
+			}
+			signingKey = (ECPrivateKey) KeyBuilder.buildKey(
+					KeyBuilder.TYPE_EC_FP_PRIVATE, KeyBuilder.LENGTH_EC_FP_256,
+					false);
+		}
+		setCurveParameters(signingKey);
+		selectedAddress = (short) 0xFF;
 
 		keys = new EncryptedPrivateKey[storeSize];
 
 		sha256Digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256,
 				false);
 
+		try {
+			ripemd160Digest = MessageDigest.getInstance(
+					MessageDigest.ALG_RIPEMD160, false);
+		} catch (CryptoException e) {
+			if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM) {
+				throw e;
+			}
+			ripemd160Digest = null;
+		}
+
+		this.signature = signature;
+
 		addressToKeyIndexMap = new BitcoinAddress[storeSize];
 
+		addressHashIndex = new AddressIndex(storeSize);
+
+		freeSlots = new byte[(short) ((short) (storeSize + 7) / 8)];
+		for (short i = 0; i < storeSize; i++) {
+			freeSlots[(short) (i >> 3)] |= (byte) (0x80 >> (i & 7));
+		}
+		numberOfKeys = 0;
+		numberOfPooledKeys = 0;
+
+		generations = new byte[storeSize];
+
 		// Allocate memory for addresses
 		for (short i = 0; i < addressToKeyIndexMap.length; i++) {
-			addressToKeyIndexMap[i] = new BitcoinAddress(addressSize);
+			addressToKeyIndexMap[i] = new BitcoinAddress(storedAddressSize);
 		}
+		importCommitSize = (short) (storedAddressSize + PRIVATE_KEY_SIZE
+				+ STORE_WRITTEN_BYTES + STORE_LOGGED_WRITES
+				* COMMIT_LOG_HEADER_SIZE);
 
 		// Allocate memory for keys
 		for (short i = 0; i < keys.length; i++) {
-			keys[i] = new EncryptedPrivateKey(PRIVATE_KEY_SIZE);
+			keys[i] = new EncryptedPrivateKey(PRIVATE_KEY_SIZE,
+					COMPRESSED_PUBLIC_KEY_SIZE);
 		}
 	}
 
 	/**
 	 * Selects the key specified by the given Bitcoin address for signing data.
+	 * The private key is decrypted once into {@link #signingKey} and used for
+	 * all following signatures.
 	 * 
 	 * @param src The buffer, in which the addresscan be found
 	 * @param addrOff The offset of the Bitcoin address inside the buffer
@@ -196,14 +579,49 @@ public class KeyStore {
 	 */
 	public void selectKeyForSignature(byte[] src, short addrOff,
 			short addrLength) {
+		calculateIndexForAddress(workingMemory, addressBufferOff,
+				loadAddress(src, addrOff, addrLength));
 
-		calculateIndexForAddress(src, addrOff, addrLength);
+		selectFoundKey();
+	}
 
-		selectedAddress = addressIndex;
+	/**
+	 * Selects the key specified by the given handle for signing data.
+	 * 
+	 * @param src The buffer, in which the handle can be found
+	 * @param handleOff The offset of the handle inside the buffer
+	 */
+	public void selectKeyForSignature(byte[] src, short handleOff) {
+		calculateIndexForHandle(src, handleOff);
 
-		if (addressIndex == 0xFF) {
+		selectFoundKey();
+	}
+
+	/**
+	 * Selects the key in the slot {@link #addressIndex} and decrypts it into
+	 * the {@link #signingKey}. Clears the selection, if no key has been found.
+	 */
+	private void selectFoundKey() {
+		if (addressIndex == AddressIndex.NO_SLOT) {
+			clearSelection();
 			ISOException.throwIt(StatusCodes.KEY_NOT_FOUND);
 		}
+
+		selectedAddress = (short) (addressIndex & 0xFF);
+
+		// Transient keys lose their parameters on deselect
+		if (!signingKey.isInitialized()) {
+			setCurveParameters(signingKey);
+		}
+
+		short keyLength = decryptPrivateKey(keys[selectedAddress],
+				workingMemory, encryptionBufferOff);
+
+		signingKey.setS(workingMemory, encryptionBufferOff, keyLength);
+		Util.arrayFillNonAtomic(workingMemory, encryptionBufferOff, keyLength,
+				(byte) 0);
+
+		signature.init(signingKey, Signature.MODE_SIGN);
 	}
 
 	/**
@@ -222,33 +640,145 @@ public class KeyStore {
 	public short signMessage(byte[] src, short msgOff, short msgLength,
 			byte[] dest, short destOff) {
 
-		if (selectedAddress == (short) 0xFF) {
+		// The signing key is cleared, if the applet has been deselected
+		if (selectedAddress == (short) 0xFF || !signingKey.isInitialized()) {
 			ISOException.throwIt(StatusCodes.NO_KEY_SELECTED);
 		}
 
-		short keyLength = decryptPrivateKey(keys[selectedAddress], keyBuffer,
-				(short) 0);
+		return signature.sign(src, msgOff, msgLength, dest, destOff);
+	}
 
-		ECPrivateKey privateKey = (ECPrivateKey) keyPair.getPrivate();
-		privateKey.setS(keyBuffer, (short) 0, keyLength);
+	/**
+	 * Generates a new key pair if the store has space left and stores the
+	 * private key in this {@link KeyStore}. Returns the public key, the
+	 * address in the stored format and the handle of the new key, each
+	 * preceded by its length in one byte.
+	 * 
+	 * @param dest The output buffer where the response will be written.
+	 * @param destOff The offset inside the output buffer.
+	 * @param compressed Whether the public key is returned and the address is
+	 *            derived in the compressed form
+	 * 
+	 * @return The length of the response in bytes.
+	 */
+	public short generateKeyPair(byte[] dest, short destOff, boolean compressed) {
+		short addressLength = generateKey(compressed, false);
 
-		signature = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
-		signature.init(privateKey, Signature.MODE_SIGN);
+		ECPublicKey pubKey = (ECPublicKey) keyPair.getPublic();
 
-		return signature.sign(src, msgOff, msgLength, dest, destOff);
+		// Return the public key, the address and the handle
+		short offset = (short) (destOff + 1);
+		short length = getPublicKey(pubKey, compressed, dest, offset);
+		dest[(short) (offset - 1)] = (byte) length;
+		offset = (short) (offset + length + 1);
+
+		length = Util.arrayCopyNonAtomic(workingMemory, addressBufferOff, dest,
+				offset, addressLength);
+		dest[(short) (offset - 1)] = (byte) addressLength;
+		offset = (short) (length + 1);
+
+		length = writeHandle(dest, offset);
+		dest[(short) (offset - 1)] = (byte) length;
+
+		return (short) (offset + length - destOff);
 	}
 
 	/**
-	 * Generates a new key pair and returns the public key if the store has
-	 * space left. Stores the private key in this {@link KeyStore}.
+	 * Fills free slots with new keys for the key pool, so that a key can be
+	 * handed out by {@link #getPooledKey(byte[], short)} without generating
+	 * it. Stops early, if the store is full.
 	 * 
-	 * @param dest The output buffer where the new public key will bew
-	 *            written.
+	 * @param count The number of keys to generate
+	 * @param compressed Whether the addresses are derived from the
+	 *            compressed public keys
+	 * 
+	 * @return The number of keys in the pool
+	 */
+	public short fillKeyPool(short count, boolean compressed) {
+		if (count > getNumberOfKeysRemaining()) {
+			count = getNumberOfKeysRemaining();
+		}
+
+		if (count == 0) {
+			ISOException.throwIt(StatusCodes.KEYSTORE_FULL);
+		}
+
+		for (short i = 0; i < count; i++) {
+			generateKey(compressed, true);
+		}
+
+		return getNumberOfPooledKeys();
+	}
+
+	/**
+	 * Hands out the next key of the key pool and removes it from the pool.
+	 * Returns the compressed public key, the address in the stored format and
+	 * the handle of the key, each preceded by its length in one byte, like
+	 * {@link #generateKeyPair(byte[], short, boolean)}. They are followed by
+	 * one byte, which is 0x01 if the address is derived from the compressed
+	 * public key, 0x00 if from the uncompressed one. Throws KEY_NOT_FOUND, if
+	 * the pool is empty.
+	 * 
+	 * @param dest The output buffer where the response will be written.
 	 * @param destOff The offset inside the output buffer.
 	 * 
-	 * @return The length of the new public key in bytes.
+	 * @return The length of the response in bytes.
+	 */
+	public short getPooledKey(byte[] dest, short destOff) {
+		if (numberOfPooledKeys == 0) {
+			ISOException.throwIt(StatusCodes.KEY_NOT_FOUND);
+		}
+
+		short slot = 0;
+		while (!keys[slot].isPooled()) {
+			slot++;
+		}
+
+		JCSystem.beginTransaction();
+		keys[slot].setPooled(false);
+		numberOfPooledKeys--;
+		JCSystem.commitTransaction();
+		addressIndex = (byte) slot;
+
+		short offset = (short) (destOff + 1);
+		short length = keys[slot].getPublicKey(dest, offset);
+		dest[(short) (offset - 1)] = (byte) length;
+		offset = (short) (offset + length + 1);
+
+		length = addressToKeyIndexMap[slot].getAddress(dest, offset);
+		dest[(short) (offset - 1)] = (byte) length;
+		offset = (short) (offset + length + 1);
+
+		length = writeHandle(dest, offset);
+		dest[(short) (offset - 1)] = (byte) length;
+		offset = (short) (offset + length);
+
+		dest[offset] = (byte) (keys[slot].isCompressed() ? 0x01 : 0x00);
+
+		return (short) (offset + 1 - destOff);
+	}
+
+	/**
+	 * Returns the number of keys in the key pool, which have not been handed
+	 * out yet.
+	 */
+	public short getNumberOfPooledKeys() {
+		return numberOfPooledKeys;
+	}
+
+	/**
+	 * Generates a new key pair and stores the private key in the first free
+	 * slot, which is set in {@link #addressIndex}. The public key is left in
+	 * the {@link #keyPair} and the address in the buffer at
+	 * {@link #addressBufferOff}.
+	 * 
+	 * @param compressed Whether the address is derived from the compressed
+	 *            public key
+	 * @param pooled Whether the key is added to the key pool
+	 * 
+	 * @return The length of the address
 	 */
-	public short generateKeyPair(byte[] dest, short destOff) {
+	private short generateKey(boolean compressed, boolean pooled) {
 		findFirstFreePosition();
 
 		if ((addressIndex & 0xFF) == 0xFF) {
@@ -258,82 +788,684 @@ public class KeyStore {
 		// Generate the keys
 		keyPair.genKeyPair();
 
-		ECPublicKey pubKey = (ECPublicKey) keyPair.getPublic();
+		// Calculate the key's Bitcoin address, the address is stored in
+		// the key buffer
+		short addressLength = calculateBitcoinAddress(
+				(ECPublicKey) keyPair.getPublic(), compressed);
+
+		Util.arrayCopyNonAtomic(workingMemory, keyBufferOff, workingMemory,
+				addressBufferOff, addressLength);
+
+		short keyLength = encryptPrivateKey(
+				(ECPrivateKey) keyPair.getPrivate(), workingMemory,
+				keyBufferOff);
+
+		// Encrypt private key and store it with the address in this KeyStore,
+		// a pooled key is marked in the same transaction and keeps its public
+		// key, as the key pair is replaced by the next generation
+		JCSystem.beginTransaction();
+		storeKey(workingMemory, addressBufferOff, addressLength, workingMemory,
+				keyBufferOff, keyLength);
+		if (pooled) {
+			getPublicKey((ECPublicKey) keyPair.getPublic(), true,
+					workingMemory, keyBufferOff);
+			keys[(short) (addressIndex & 0xFF)].pool(workingMemory,
+					keyBufferOff, compressed);
+			numberOfPooledKeys++;
+		}
+		JCSystem.commitTransaction();
+
+		return addressLength;
+	}
+
+	/**
+	 * Stores the given private key in the key store and returns the handle of
+	 * the key.
+	 * 
+	 * @param src The byte array, in which the address and private key can be
+	 *            found.
+	 * @param addrOff Offset for the address inside the byte array
+	 * @param addrLength Length of the address
+	 * @param keyOff Offset of the private key inside the byte array
+	 * @param keyLength Length of the private key
+	 * @param dest The output buffer in which the handle will be written
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the handle in bytes
+	 */
+	public short importPrivateKey(byte[] src, short addrOff, short addrLength,
+			short keyOff, short keyLength, byte[] dest, short destOff) {
+		short storedLength = prepareImport(loadAddress(src, addrOff,
+				addrLength), keyLength);
+
+		// Encrypt imported key and store it
+		aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+		storeKey(workingMemory, addressBufferOff, storedLength, workingMemory,
+				keyBufferOff, encryptPrivateKey(src, keyOff, workingMemory,
+						keyBufferOff));
+
+		return writeHandle(dest, destOff);
+	}
+	
+	/**
+	 * Stores the given encrypted private key in the key store and returns the
+	 * handle of the key.
+	 * 
+	 * @param src The byte array, in which the address and encrypted private key can be
+	 *            found.
+	 * @param addrOff Offset for the address inside the byte array
+	 * @param addrLength Length of the address
+	 * @param keyOff Offset of the private key inside the byte array
+	 * @param keyLength Length of the private key
+	 * @param dest The output buffer in which the handle will be written
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the handle in bytes
+	 */
+	public short importEncryptedPrivateKey(byte[] src, short addrOff, short addrLength,
+			short keyOff, short keyLength, byte[] dest, short destOff) {
+		short storedLength = prepareImport(loadAddress(src, addrOff,
+				addrLength), keyLength);
+
+		// Store imported key
+		storeKey(workingMemory, addressBufferOff, storedLength, src, keyOff,
+				keyLength);
+
+		return writeHandle(dest, destOff);
+	}
+
+	/**
+	 * Stores a list of private keys or encrypted private keys in the key
+	 * store. All keys are stored in one transaction, as long as the commit
+	 * capacity of the card allows. A key, which cannot be imported, is
+	 * skipped and its status is returned.
+	 * </br>
+	 * If the keys do not fit into one transaction, the transaction is
+	 * committed and a new one is started. If storing fails after a
+	 * transaction has been committed, the keys of the committed transactions
+	 * stay imported. Their status is returned, followed by the status of the
+	 * first record, which has not been imported, with the reason of the
+	 * failure. The following records are not imported and have no status.
+	 * If storing fails in the first transaction, nothing is imported and the
+	 * failure is thrown.
+	 * 
+	 * <pre>
+	 * Records: [address length (1) + key length (1) + address + key]*
+	 * Status:  [SW1 + SW2 + handle (2)] for each record, handle 0x0000 if
+	 *          the key has not been imported
+	 * </pre>
+	 * 
+	 * The status may be written into the array of the records, if dest is at
+	 * or before the first record, as a status is never longer than a record.
+	 * 
+	 * @param src The byte array, in which the records can be found
+	 * @param offset Offset of the records inside the byte array
+	 * @param length Length of the records
+	 * @param records Either {@link #RECORDS_PRIVATE_KEYS} or
+	 *            {@link #RECORDS_ENCRYPTED_KEYS}
+	 * @param dest The output buffer in which the status will be written
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the status in bytes
+	 */
+	public short importPrivateKeys(byte[] src, short offset, short length,
+			byte records, byte[] dest, short destOff) {
+		short end = (short) (offset + length);
+
+		// Check all records before storing any key
+		if (length == 0) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
+		for (short recordOff = offset; recordOff < end;) {
+			if ((short) (end - recordOff) < 2) {
+				ISOException.throwIt(StatusCodes.DATA_INVALID);
+			}
+
+			if (src[(short) (recordOff + 1)] != PRIVATE_KEY_SIZE) {
+				ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
+			}
+
+			short recordLength = (short) (2 + (src[recordOff] & 0xFF) + PRIVATE_KEY_SIZE);
+			if (recordLength > (short) (end - recordOff)) {
+				ISOException.throwIt(StatusCodes.DATA_INVALID);
+			}
+			recordOff = (short) (recordOff + recordLength);
+		}
+
+		if (records == RECORDS_PRIVATE_KEYS) {
+			aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+		}
+
+		short statusOff = destOff;
+
+		// Status of the first record of the current transaction
+		short transactionStatusOff = destOff;
+
+		JCSystem.beginTransaction();
+		try {
+			for (short recordOff = offset; recordOff < end;) {
+				short addrLength = (short) (src[recordOff] & 0xFF);
+				short addrOff = (short) (recordOff + 2);
+				short keyOff = (short) (addrOff + addrLength);
+				recordOff = (short) (keyOff + PRIVATE_KEY_SIZE);
+
+				if (getUnusedCommitCapacity() < importCommitSize) {
+					JCSystem.commitTransaction();
+					transactionStatusOff = statusOff;
+					JCSystem.beginTransaction();
+				}
+
+				short status = ISO7816.SW_NO_ERROR;
+				short storedLength = 0;
+				try {
+					storedLength = prepareImport(loadAddress(src, addrOff,
+							addrLength), PRIVATE_KEY_SIZE);
+				} catch (ISOException e) {
+					status = e.getReason();
+				}
+
+				if (status == ISO7816.SW_NO_ERROR) {
+					if (records == RECORDS_ENCRYPTED_KEYS) {
+						storeKey(workingMemory, addressBufferOff, storedLength,
+								src, keyOff, PRIVATE_KEY_SIZE);
+					} else {
+						storeKey(workingMemory, addressBufferOff, storedLength,
+								workingMemory, keyBufferOff, encryptPrivateKey(
+										src, keyOff, workingMemory, keyBufferOff));
+					}
+					writeHandle(dest, (short) (statusOff + 2));
+				} else {
+					Util.setShort(dest, (short) (statusOff + 2), (short) 0);
+				}
+
+				Util.setShort(dest, statusOff, status);
+				statusOff = (short) (statusOff + 4);
+			}
+		} catch (CardRuntimeException e) {
+			return abortImport(e, dest, destOff, transactionStatusOff);
+		}
+		JCSystem.commitTransaction();
+
+		return (short) (statusOff - destOff);
+	}
+
+	/**
+	 * Aborts the current transaction of an import of several keys after the
+	 * given exception. Rethrows the exception, if no transaction has been
+	 * committed. Otherwise the status of the keys of the aborted transaction
+	 * is replaced by the reason of the failure.
+	 * 
+	 * @param e The exception, which aborts the import
+	 * @param dest The output buffer containing the status
+	 * @param destOff The offset of the status inside the output buffer
+	 * @param transactionStatusOff The offset of the status of the first key
+	 *            of the aborted transaction
+	 * 
+	 * @return The length of the status of the committed keys and of the
+	 *         first key, which has not been imported
+	 */
+	private short abortImport(CardRuntimeException e, byte[] dest,
+			short destOff, short transactionStatusOff) {
+		// Drop the keys of the current transaction
+		JCSystem.abortTransaction();
+
+		if (transactionStatusOff == destOff) {
+			throw e;
+		}
+
+		// Keep the status of the committed keys
+		Util.setShort(dest, transactionStatusOff,
+				e instanceof ISOException ? e.getReason() : ISO7816.SW_UNKNOWN);
+		Util.setShort(dest, (short) (transactionStatusOff + 2), (short) 0);
+		return (short) (transactionStatusOff + 4 - destOff);
+	}
+
+	/**
+	 * Returns the commit capacity left in the current transaction. Used to
+	 * split the import of a list of keys into several transactions.
+	 */
+	protected short getUnusedCommitCapacity() {
+		return JCSystem.getUnusedCommitCapacity();
+	}
+
+	/**
+	 * Starts the export of a backup of all keys. The backup is returned in
+	 * parts by {@link #exportBackup(byte[], short, short)}.
+	 * 
+	 * <pre>
+	 * Backup: [version + address format]
+	 *         [address length (1) + key length (1) + address + encrypted key]*
+	 *         [integrity tag (16)]
+	 * </pre>
+	 * 
+	 * The records have the format of
+	 * {@link #importPrivateKeys(byte[], short, short, byte, byte[], short)},
+	 * but the addresses are in the {@link #addressFormat} of this store. The
+	 * integrity tag is the AES CBC-MAC of the SHA-256 hash of the header and
+	 * the records with a key, which never leaves this card and is not used
+	 * otherwise, so a backup can only be restored on this card.
+	 */
+	public void startBackup() {
+		sha256Digest.reset();
+
+		workingMemory[backupStateOff] = BACKUP_STATE_HEADER;
+		Util.setShort(workingMemory, (short) (backupStateOff + 1), (short) 0);
+	}
+
+	/**
+	 * Whether a part of the backup is left to be exported.
+	 */
+	public boolean hasPendingBackup() {
+		return workingMemory[backupStateOff] != BACKUP_STATE_IDLE;
+	}
+
+	/**
+	 * Drops the backup being exported.
+	 */
+	public void resetBackup() {
+		workingMemory[backupStateOff] = BACKUP_STATE_IDLE;
+	}
+
+	/**
+	 * Writes the next part of the backup, as long as it fits into the given
+	 * length. Records are never split.
+	 * 
+	 * @param dest The output buffer
+	 * @param destOff The offset inside the output buffer
+	 * @param maxLength The maximum length to write
+	 * 
+	 * @return The length of the written data
+	 */
+	public short exportBackup(byte[] dest, short destOff, short maxLength) {
+		byte state = workingMemory[backupStateOff];
+		short slot = Util.getShort(workingMemory, (short) (backupStateOff + 1));
+
+		short offset = destOff;
+		short end = (short) (destOff + maxLength);
+
+		if (state == BACKUP_STATE_HEADER && maxLength >= BACKUP_HEADER_SIZE) {
+			dest[offset] = BACKUP_VERSION;
+			dest[(short) (offset + 1)] = addressFormat;
+			offset = (short) (offset + BACKUP_HEADER_SIZE);
+			state = BACKUP_STATE_RECORDS;
+		}
+
+		if (state == BACKUP_STATE_RECORDS) {
+			for (; slot < (short) keys.length; slot++) {
+				if (isSlotFree(slot)) {
+					continue;
+				}
+
+				BitcoinAddress address = addressToKeyIndexMap[slot];
+				short addrLength = address.getSize();
+				if ((short) (2 + addrLength + PRIVATE_KEY_SIZE) > (short) (end - offset)) {
+					break;
+				}
+
+				dest[offset] = (byte) addrLength;
+				dest[(short) (offset + 1)] = (byte) PRIVATE_KEY_SIZE;
+				offset = (short) (offset + 2);
+				offset = (short) (offset + address.getAddress(dest, offset));
+				offset = (short) (offset + keys[slot].getKey(dest, offset));
+			}
+
+			if (slot == (short) keys.length) {
+				state = BACKUP_STATE_TAG;
+			}
+		}
+
+		if (state == BACKUP_STATE_TAG
+				&& (short) (end - offset) >= BACKUP_TAG_SIZE) {
+			offset = (short) (offset + calculateBackupTag(dest, destOff,
+					(short) (offset - destOff), dest, offset));
+			state = BACKUP_STATE_IDLE;
+		} else {
+			sha256Digest.update(dest, destOff, (short) (offset - destOff));
+		}
+
+		if (offset == destOff) {
+			// Not even one record fits
+			resetBackup();
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		workingMemory[backupStateOff] = state;
+		Util.setShort(workingMemory, (short) (backupStateOff + 1), slot);
+
+		return (short) (offset - destOff);
+	}
+
+	/**
+	 * Calculates the length of the part of the backup, which is left to be
+	 * exported.
+	 */
+	public short getPendingBackupLength() {
+		byte state = workingMemory[backupStateOff];
+		short length = 0;
+
+		if (state == BACKUP_STATE_IDLE) {
+			return 0;
+		}
+
+		if (state == BACKUP_STATE_HEADER) {
+			length = BACKUP_HEADER_SIZE;
+		}
+
+		if (state != BACKUP_STATE_TAG) {
+			for (short slot = Util.getShort(workingMemory,
+					(short) (backupStateOff + 1)); slot < (short) keys.length; slot++) {
+				if (!isSlotFree(slot)) {
+					length = (short) (length + 2
+							+ addressToKeyIndexMap[slot].getSize() + PRIVATE_KEY_SIZE);
+				}
+			}
+		}
+
+		return (short) (length + BACKUP_TAG_SIZE);
+	}
+
+	/**
+	 * Restores the keys of a backup exported by
+	 * {@link #exportBackup(byte[], short, short)}. The backup is received in
+	 * parts, which may split the header, records and the integrity tag
+	 * anywhere. Starts a new restore, if none is in progress.
+	 * </br>
+	 * Each complete record is added to the SHA-256 hash of the backup and its
+	 * key is staged in the next free slot, which is not marked as used, so
+	 * the key cannot be found yet. With the last part the integrity tag is
+	 * checked. Only if it is valid, the staged keys are stored like
+	 * {@link #importPrivateKeys(byte[], short, short, byte, byte[], short)}
+	 * and the status of each key is returned. Otherwise the staged keys are
+	 * wiped and DATA_INVALID is thrown. Any failure drops the restore.
+	 * </br>
+	 * The addresses of the records are not validated, the tag authenticates
+	 * them. Uses the {@link #sha256Digest} until the restore is finished or
+	 * dropped.
+	 * 
+	 * @param src The byte array, in which the part of the backup can be found
+	 * @param offset Offset of the part inside the byte array
+	 * @param length Length of the part
+	 * @param moreFollow Whether more parts of the backup follow
+	 * @param dest The output buffer in which the status will be written
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the status in bytes, 0 if more parts follow
+	 */
+	public short restoreBackup(byte[] src, short offset, short length,
+			boolean moreFollow, byte[] dest, short destOff) {
+		if (workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] == RESTORE_STATE_IDLE) {
+			sha256Digest.reset();
+			Util.arrayFillNonAtomic(workingMemory, restoreStateOff,
+					RESTORE_STATE_SIZE, (byte) 0);
+			workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] = RESTORE_STATE_HEADER;
+		}
+
+		try {
+			short end = (short) (offset + length);
+			while (offset < end) {
+				offset = receiveBackupData(src, offset, end);
+			}
+
+			if (moreFollow) {
+				return 0;
+			}
+
+			return finishRestore(dest, destOff);
+		} catch (CardRuntimeException e) {
+			resetRestore();
+			throw e;
+		}
+	}
+
+	/**
+	 * Drops the backup being restored and wipes the staged keys.
+	 */
+	public void resetRestore() {
+		if (workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] == RESTORE_STATE_IDLE) {
+			return;
+		}
+
+		workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] = RESTORE_STATE_IDLE;
+
+		// Free slots hold no address, unless a key has been staged
+		for (short slot = 0; slot < (short) keys.length; slot++) {
+			if (isSlotFree(slot) && addressToKeyIndexMap[slot].getSize() != 0) {
+				addressToKeyIndexMap[slot].delete();
+				keys[slot].clear();
+			}
+		}
+	}
+
+	/**
+	 * Collects the next header, record or tag of a backup in the restore
+	 * buffer and processes it, as soon as it is complete.
+	 * 
+	 * @param src The byte array, in which the part of the backup can be found
+	 * @param offset Offset of the data left inside the byte array
+	 * @param end End of the part inside the byte array
+	 * 
+	 * @return The offset of the data left
+	 */
+	private short receiveBackupData(byte[] src, short offset, short end) {
+		byte state = workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)];
+		short length = Util.getShort(workingMemory,
+				(short) (restoreStateOff + RESTORE_OFFSET_LENGTH));
+
+		// The integrity tag is shorter than a record, so data not starting
+		// with a record header is collected until the backup ends
+		short needed = restoreBufferSize;
+		if (state == RESTORE_STATE_HEADER) {
+			needed = BACKUP_HEADER_SIZE;
+		} else if (length < RECORD_HEADER_SIZE) {
+			needed = RECORD_HEADER_SIZE;
+		} else if (isRecordHeader()) {
+			needed = getRecordLength();
+		}
+
+		short copyLength = (short) (needed - length);
+		if (copyLength > (short) (end - offset)) {
+			copyLength = (short) (end - offset);
+		}
+
+		if (copyLength == 0) {
+			// A record too long for this store
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
+
+		Util.arrayCopyNonAtomic(src, offset, workingMemory,
+				(short) (restoreBufferOff + length), copyLength);
+		length = (short) (length + copyLength);
+
+		if (state == RESTORE_STATE_HEADER && length == BACKUP_HEADER_SIZE) {
+			if (workingMemory[restoreBufferOff] != BACKUP_VERSION
+					|| workingMemory[(short) (restoreBufferOff + 1)] != addressFormat) {
+				ISOException.throwIt(StatusCodes.DATA_INVALID);
+			}
+
+			sha256Digest.update(workingMemory, restoreBufferOff, length);
+			workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] = RESTORE_STATE_RECORDS;
+			length = 0;
+		} else if (state == RESTORE_STATE_RECORDS
+				&& length >= RECORD_HEADER_SIZE && isRecordHeader()
+				&& length == getRecordLength()) {
+			stageRecord();
+			length = 0;
+		}
+
+		Util.setShort(workingMemory,
+				(short) (restoreStateOff + RESTORE_OFFSET_LENGTH), length);
+
+		return (short) (offset + copyLength);
+	}
+
+	/**
+	 * Whether the restore buffer starts with the header of a record, whose
+	 * key has the length of a private key and whose address fits into the
+	 * restore buffer.
+	 */
+	private boolean isRecordHeader() {
+		return workingMemory[(short) (restoreBufferOff + 1)] == PRIVATE_KEY_SIZE
+				&& getRecordLength() <= restoreBufferSize;
+	}
+
+	/**
+	 * Returns the length of the record in the restore buffer.
+	 */
+	private short getRecordLength() {
+		return (short) (RECORD_HEADER_SIZE
+				+ (short) (workingMemory[restoreBufferOff] & 0xFF) + PRIVATE_KEY_SIZE);
+	}
+
+	/**
+	 * Adds the record in the restore buffer to the hash of the backup and
+	 * stages its key in the next free slot. A backup holds at most as many
+	 * records as this store.
+	 */
+	private void stageRecord() {
+		short records = (short) (workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_RECORDS)] & 0xFF);
+		if (records == (short) keys.length) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
 
-		// Calculate the key's Bitcoin address, the address is stored in
-		// keyBuffer
-		short addressLength = calculateBitcoinAddress(pubKey);
+		short recordLength = getRecordLength();
+		sha256Digest.update(workingMemory, restoreBufferOff, recordLength);
 
-		Util.setShort(dest, (short) 2, addressLength);
+		short addrLength = (short) (workingMemory[restoreBufferOff] & 0xFF);
+		short storedLength = loadStoredAddress(workingMemory,
+				(short) (restoreBufferOff + RECORD_HEADER_SIZE), addrLength);
 
-		// Store address in the addressToKeyIndexMap
-		addressToKeyIndexMap[addressIndex].setAddress(keyBuffer, (short) 0,
-				addressLength);
+		byte result = RESTORE_STAGED;
 
-		// Encrypt private key
-		short keyLength = encryptPrivateKey(
-				(ECPrivateKey) keyPair.getPrivate(), keyBuffer, (short) 0);
+		calculateIndexForAddress(workingMemory, addressBufferOff, storedLength);
+		if (addressIndex != AddressIndex.NO_SLOT) {
+			result = RESTORE_KEY_IN_STORE;
+		} else {
+			short slot = findFreeSlot((short) (workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_NEXT_SLOT)] & 0xFF));
+
+			if (slot == (short) keys.length) {
+				result = RESTORE_STORE_FULL;
+			} else {
+				addressToKeyIndexMap[slot].setAddress(workingMemory,
+						addressBufferOff, storedLength);
+				keys[slot].stageKey(workingMemory,
+						(short) (restoreBufferOff + recordLength - PRIVATE_KEY_SIZE),
+						PRIVATE_KEY_SIZE);
+				workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_NEXT_SLOT)] = (byte) (slot + 1);
+			}
+		}
 
-		// Store private key in this KeyStore
-		keys[addressIndex].setKey(keyBuffer, (short) 0, keyLength);
+		short resultOff = (short) (restoreResultsOff + (short) (records >> 2));
+		short shift = (short) ((records & 3) << 1);
+		workingMemory[resultOff] = (byte) ((workingMemory[resultOff] & ~(3 << shift)) | (result << shift));
 
-		// Return the public key
-		return pubKey.getW(dest, destOff);
+		workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_RECORDS)] = (byte) (records + 1);
 	}
 
 	/**
-	 * Stores the given private key in the key store.
+	 * Checks the integrity tag in the restore buffer and stores the staged
+	 * keys. The keys are staged in the first free slots in the order of
+	 * their records.
 	 * 
-	 * @param src The byte array, in which the address and private key can be
-	 *            found.
-	 * @param addrOff Offset for the address inside the byte array
-	 * @param addrLength Length of the address
-	 * @param keyOff Offset of the private key inside the byte array
-	 * @param keyLength Length of the private key
+	 * @param dest The output buffer in which the status will be written
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the status in bytes
 	 */
-	public void importPrivateKey(byte[] src, short addrOff, short addrLength,
-			short keyOff, short keyLength) {
-		calculateIndexForAddress(src, addrOff, addrLength);
-
-		if ((addressIndex & 0xFF) != 0xFF) {
-			ISOException.throwIt(StatusCodes.KEY_ALREADY_IN_STORE);
+	private short finishRestore(byte[] dest, short destOff) {
+		if (workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] != RESTORE_STATE_RECORDS
+				|| Util.getShort(workingMemory,
+						(short) (restoreStateOff + RESTORE_OFFSET_LENGTH)) != BACKUP_TAG_SIZE) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		findFirstFreePosition();
+		sha256Digest.doFinal(workingMemory, restoreBufferOff, (short) 0,
+				workingMemory, encryptionBufferOff);
 
-		if (addressIndex == (byte) 0xFF) {
-			ISOException.throwIt(StatusCodes.KEYSTORE_FULL);
+		backupMac.init(backupKey, Signature.MODE_VERIFY);
+		if (!backupMac.verify(workingMemory, encryptionBufferOff, SHA256_SIZE,
+				workingMemory, restoreBufferOff, BACKUP_TAG_SIZE)) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		validateBitcoinAddress(src, addrOff, addrLength);
-
-		if (keyLength != 32) {
-			ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
+		short records = (short) (workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_RECORDS)] & 0xFF);
+		short statusOff = destOff;
+		short slot = 0;
+
+		// Status of the first record of the current transaction
+		short transactionStatusOff = destOff;
+
+		JCSystem.beginTransaction();
+		try {
+			for (short record = 0; record < records; record++) {
+				if (getUnusedCommitCapacity() < importCommitSize) {
+					JCSystem.commitTransaction();
+					transactionStatusOff = statusOff;
+					JCSystem.beginTransaction();
+				}
+
+				byte result = (byte) ((workingMemory[(short) (restoreResultsOff + (short) (record >> 2))] >> ((record & 3) << 1)) & 3);
+
+				short status = ISO7816.SW_NO_ERROR;
+				if (result == RESTORE_STAGED) {
+					slot = findFreeSlot(slot);
+					addressIndex = (byte) slot;
+
+					addressHashIndex.add(addressIndex,
+							addressToKeyIndexMap[slot].calculateHash());
+					keys[slot].activate();
+					useSlot(slot);
+
+					writeHandle(dest, (short) (statusOff + 2));
+				} else {
+					status = result == RESTORE_KEY_IN_STORE ? StatusCodes.KEY_ALREADY_IN_STORE
+							: StatusCodes.KEYSTORE_FULL;
+					Util.setShort(dest, (short) (statusOff + 2), (short) 0);
+				}
+
+				Util.setShort(dest, statusOff, status);
+				statusOff = (short) (statusOff + 4);
+			}
+		} catch (CardRuntimeException e) {
+			short length = abortImport(e, dest, destOff, transactionStatusOff);
+			resetRestore();
+			return length;
 		}
+		JCSystem.commitTransaction();
 
-		addressToKeyIndexMap[addressIndex].setAddress(src, addrOff, addrLength);
+		workingMemory[(short) (restoreStateOff + RESTORE_OFFSET_STATE)] = RESTORE_STATE_IDLE;
 
-		// Encrypt imported key and store in keys
-		ECPrivateKey privKey = (ECPrivateKey) keyPair.getPrivate();
-		privKey.setS(src, keyOff, keyLength);
+		return (short) (statusOff - destOff);
+	}
+
+	/**
+	 * Finishes the SHA-256 hash of a backup with the given data and
+	 * calculates the MAC of the hash with the {@link #backupKey}.
+	 * 
+	 * @return The length of the tag
+	 */
+	private short calculateBackupTag(byte[] src, short offset, short length,
+			byte[] dest, short destOff) {
+		sha256Digest.doFinal(src, offset, length, workingMemory,
+				encryptionBufferOff);
 
-		keys[addressIndex].setKey(keyBuffer, (short) 0,
-				encryptPrivateKey(privKey, keyBuffer, (short) 0));
+		backupMac.init(backupKey, Signature.MODE_SIGN);
+		return backupMac.sign(workingMemory, encryptionBufferOff, SHA256_SIZE,
+				dest, destOff);
 	}
-	
+
 	/**
-	 * Stores the given encrypted private key in the key store.
+	 * Checks whether a key with the address in the buffer at
+	 * {@link #addressBufferOff} can be imported and sets {@link #addressIndex}
+	 * to the first free slot.
 	 * 
-	 * @param src The byte array, in which the address and encrypted private key can be
-	 *            found.
-	 * @param addrOff Offset for the address inside the byte array
-	 * @param addrLength Length of the address
-	 * @param keyOff Offset of the private key inside the byte array
+	 * @param storedLength Length of the address inside the buffer at
+	 *            {@link #addressBufferOff}
 	 * @param keyLength Length of the private key
+	 * 
+	 * @return The length of the address
 	 */
-	public void importEncryptedPrivateKey(byte[] src, short addrOff, short addrLength,
-			short keyOff, short keyLength) {
-		calculateIndexForAddress(src, addrOff, addrLength);
+	private short prepareImport(short storedLength, short keyLength) {
+		calculateIndexForAddress(workingMemory, addressBufferOff, storedLength);
 
 		if ((addressIndex & 0xFF) != 0xFF) {
 			ISOException.throwIt(StatusCodes.KEY_ALREADY_IN_STORE);
@@ -345,16 +1477,11 @@ public class KeyStore {
 			ISOException.throwIt(StatusCodes.KEYSTORE_FULL);
 		}
 
-		validateBitcoinAddress(src, addrOff, addrLength);
-
-		if (keyLength != 32) {
+		if (keyLength != PRIVATE_KEY_SIZE) {
 			ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
 		}
 
-		addressToKeyIndexMap[addressIndex].setAddress(src, addrOff, addrLength);
-
-		// Store imported key in keys
-		keys[addressIndex].setKey(src, keyOff, keyLength);
+		return storedLength;
 	}
 
 	/**
@@ -372,21 +1499,32 @@ public class KeyStore {
 	 */
 	public short getEncryptedPrivateKey(byte[] src, short addrOff,
 			short addrLength, byte[] dest, short destOff) {
+		findKeyForAddress(src, addrOff, addrLength);
 
-		validateBitcoinAddress(src, addrOff, addrLength);
-
-		calculateIndexForAddress(src, addrOff, addrLength);
+		return keys[(short) (addressIndex & 0xFF)].getKey(dest, destOff);
+	}
 
-		if (addressIndex == 0xFF) {
-			ISOException.throwIt(StatusCodes.KEY_NOT_FOUND);
-		}
+	/**
+	 * Retrieves the encrypted private key for the given handle.
+	 * 
+	 * @param src The byte array, in which the handle can be found.
+	 * @param handleOff Offset for the handle inside the byte array
+	 * @param dest The output buffer in which the encrypted key will be
+	 *            written.
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The size of the encrypted key in bytes
+	 */
+	public short getEncryptedPrivateKey(byte[] src, short handleOff,
+			byte[] dest, short destOff) {
+		findKeyForHandle(src, handleOff);
 
-		return keys[addressIndex].getKey(dest, destOff);
+		return keys[(short) (addressIndex & 0xFF)].getKey(dest, destOff);
 	}
 
 	/**
-	 * Deletes the private key for the given address. If the key could not be
-	 * found, nothing is done.
+	 * Deletes the private key for the given address. Throws KEY_NOT_FOUND, if
+	 * the key could not be found.
 	 * 
 	 * @param src The byte array, in which the address and private key can be
 	 *            found.
@@ -395,31 +1533,54 @@ public class KeyStore {
 	 */
 	public void deletePrivateKey(byte[] src, short addrOff, short addrLength)
 			throws ISOException {
-		validateBitcoinAddress(src, addrOff, (byte) addrLength);
+		findKeyForAddress(src, addrOff, addrLength);
 
-		calculateIndexForAddress(src, addrOff, addrLength);
-		if (addressIndex != (byte) 0xFF) {
-			addressToKeyIndexMap[addressIndex].delete();
-			keys[addressIndex].clear();
-		} else {
-			ISOException.throwIt(StatusCodes.KEY_NOT_FOUND);
-		}
+		deleteFoundKey();
 	}
 
 	/**
-	 * Calculates the current amount of registered private keys.
+	 * Deletes the private key for the given handle. Throws KEY_NOT_FOUND, if
+	 * the handle does not refer to a stored key.
 	 * 
-	 * @return The current amount of registered private keys in this KeyStore
+	 * @param src The byte array, in which the handle can be found.
+	 * @param handleOff Offset for the handle inside the byte array
 	 */
-	public short getNumberOfKeys() {
-		numberOfKeys = (short) 0;
+	public void deletePrivateKey(byte[] src, short handleOff)
+			throws ISOException {
+		findKeyForHandle(src, handleOff);
 
-		for (short i = 0; i < (short) keys.length; i++) {
-			if (keys[i].inUse) {
-				numberOfKeys = (short) (numberOfKeys + 1);
-			}
+		deleteFoundKey();
+	}
+
+	/**
+	 * Deletes the key in the slot {@link #addressIndex}.
+	 */
+	private void deleteFoundKey() {
+		short slot = (short) (addressIndex & 0xFF);
+		BitcoinAddress address = addressToKeyIndexMap[slot];
+
+		if (slot == selectedAddress) {
+			clearSelection();
+		}
+
+		JCSystem.beginTransaction();
+		if (keys[slot].isPooled()) {
+			numberOfPooledKeys--;
 		}
+		addressHashIndex.remove(addressIndex, address.calculateHash());
+		address.delete();
+		keys[slot].clear();
+		freeSlots[(short) (slot >> 3)] |= (byte) (0x80 >> (slot & 7));
+		numberOfKeys--;
+		JCSystem.commitTransaction();
+	}
 
+	/**
+	 * Returns the current amount of registered private keys.
+	 * 
+	 * @return The current amount of registered private keys in this KeyStore
+	 */
+	public short getNumberOfKeys() {
 		return numberOfKeys;
 	}
 
@@ -430,6 +1591,77 @@ public class KeyStore {
 		return (short) (keys.length - getNumberOfKeys());
 	}
 
+	/**
+	 * Returns the slot of the key selected for signing.
+	 * 
+	 * @return The slot of the selected key or 0xFF, if no key is selected
+	 */
+	public short getSelectedSlot() {
+		if (!signingKey.isInitialized()) {
+			return (short) 0xFF;
+		}
+
+		return selectedAddress;
+	}
+
+	/**
+	 * Writes the handles and addresses of the stored keys, beginning at the
+	 * given slot, as long as they fit into the given length. The records are
+	 * preceded by the slot to continue with, or 0xFFFF if all keys have been
+	 * written.
+	 * 
+	 * <pre>
+	 * [next slot (2)] [handle (2) + address length (1) + address]*
+	 * </pre>
+	 * 
+	 * The addresses are written in the {@link #addressFormat} of this store.
+	 * 
+	 * @param slot The slot to begin with
+	 * @param dest The output buffer
+	 * @param destOff The offset inside the output buffer
+	 * @param maxLength The maximum length to write
+	 * 
+	 * @return The length of the written data
+	 */
+	public short enumerateKeys(short slot, byte[] dest, short destOff,
+			short maxLength) {
+		if (slot < 0 || slot > (short) keys.length) {
+			slot = (short) keys.length;
+		}
+
+		short offset = (short) (destOff + 2);
+		short end = (short) (destOff + maxLength);
+
+		for (; slot < (short) keys.length; slot++) {
+			if (isSlotFree(slot)) {
+				continue;
+			}
+
+			BitcoinAddress address = addressToKeyIndexMap[slot];
+			short recordLength = (short) (HANDLE_SIZE + 1 + address.getSize());
+
+			if (recordLength > (short) (end - offset)) {
+				// At least one record has to fit
+				if (offset == (short) (destOff + 2)) {
+					ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+				}
+				break;
+			}
+
+			dest[offset] = (byte) slot;
+			dest[(short) (offset + 1)] = generations[slot];
+			dest[(short) (offset + 2)] = (byte) address.getSize();
+			address.getAddress(dest, (short) (offset + 3));
+
+			offset = (short) (offset + recordLength);
+		}
+
+		Util.setShort(dest, destOff,
+				slot < (short) keys.length ? slot : (short) 0xFFFF);
+
+		return (short) (offset - destOff);
+	}
+
 	/**
 	 * Whether this KeyStore is full.
 	 */
@@ -437,9 +1669,105 @@ public class KeyStore {
 		return getNumberOfKeys() == (short) keys.length;
 	}
 
+	/**
+	 * Clears the selected key and wipes the decrypted {@link #signingKey}.
+	 */
+	private void clearSelection() {
+		selectedAddress = (short) 0xFF;
+		signingKey.clearKey();
+	}
+
+	/**
+	 * Sets the domain parameters of secp256k1 on the given key.
+	 * 
+	 * @param key The key to initialize
+	 */
+	private void setCurveParameters(ECKey key) {
+		key.setFieldFP(SECP256K1.P, (short) 0, (short) SECP256K1.P.length);
+		key.setA(SECP256K1.a, (short) 0, (short) SECP256K1.a.length);
+		key.setB(SECP256K1.b, (short) 0, (short) SECP256K1.b.length);
+		key.setG(SECP256K1.G, (short) 0, (short) SECP256K1.G.length);
+		key.setR(SECP256K1.R, (short) 0, (short) SECP256K1.R.length);
+		key.setK(SECP256K1.K);
+	}
+
+	/**
+	 * Sets {@link #addressIndex} to the slot of the key for the given
+	 * address. Throws KEY_NOT_FOUND, if the address is not stored.
+	 * 
+	 * @param src The byte array in which the address can be found
+	 * @param addrOff Offset of the address inside the given byte array
+	 * @param addrLength Length of the address
+	 */
+	private void findKeyForAddress(byte[] src, short addrOff, short addrLength) {
+		calculateIndexForAddress(workingMemory, addressBufferOff,
+				loadAddress(src, addrOff, addrLength));
+
+		if (addressIndex == AddressIndex.NO_SLOT) {
+			ISOException.throwIt(StatusCodes.KEY_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * Sets {@link #addressIndex} to the slot of the given handle. Throws
+	 * KEY_NOT_FOUND, if the handle does not refer to a stored key.
+	 * 
+	 * @param src The byte array in which the handle can be found
+	 * @param handleOff Offset of the handle inside the given byte array
+	 */
+	private void findKeyForHandle(byte[] src, short handleOff) {
+		calculateIndexForHandle(src, handleOff);
+
+		if (addressIndex == AddressIndex.NO_SLOT) {
+			ISOException.throwIt(StatusCodes.KEY_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * Sets {@link #addressIndex} to the slot of the given handle. If the slot
+	 * is free or the generation of the handle does not match the generation
+	 * of the slot, addressIndex is set to 255 (0xFF).
+	 * 
+	 * @param src The byte array in which the handle can be found
+	 * @param handleOff Offset of the handle inside the given byte array
+	 */
+	private void calculateIndexForHandle(byte[] src, short handleOff) {
+		short slot = (short) (src[handleOff] & 0xFF);
+
+		addressIndex = AddressIndex.NO_SLOT;
+
+		if (slot < (short) keys.length && !isSlotFree(slot)
+				&& generations[slot] == src[(short) (handleOff + 1)]) {
+			addressIndex = (byte) slot;
+		}
+	}
+
+	/**
+	 * Whether the given slot is free.
+	 */
+	private boolean isSlotFree(short slot) {
+		return (freeSlots[(short) (slot >> 3)] & (0x80 >> (slot & 7))) != 0;
+	}
+
+	/**
+	 * Writes the handle of the key in the slot {@link #addressIndex}.
+	 * 
+	 * @param dest The output buffer
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the handle in bytes
+	 */
+	private short writeHandle(byte[] dest, short destOff) {
+		dest[destOff] = addressIndex;
+		dest[(short) (destOff + 1)] = generations[(short) (addressIndex & 0xFF)];
+		return HANDLE_SIZE;
+	}
+
 	/**
 	 * Calculates the index of the key for the given address in
-	 * {@link #addressIndex}.
+	 * {@link #addressIndex}. Only the slots in the address's bucket of the
+	 * {@link #addressHashIndex} are compared. If the address could not be
+	 * found, addressIndex is set to 255 (0xFF).
 	 * 
 	 * @param src The byte array in which the address can be found
 	 * @param addrOff Offset of the address inside the given byte array
@@ -448,40 +1776,120 @@ public class KeyStore {
 	private void calculateIndexForAddress(byte[] src, short addrOff,
 			short addrLength) {
 
-		addressIndex = 0;
+		short hash = AddressIndex.hash(src, addrOff, addrLength);
+
+		addressIndex = addressHashIndex.getFirst(hash);
 
-		while ((addressIndex & 0xFF) < addressToKeyIndexMap.length) {
-			if (addressToKeyIndexMap[addressIndex].equalsAddress(src, addrOff,
-					addrLength)) {
+		while (addressIndex != AddressIndex.NO_SLOT) {
+			if (addressToKeyIndexMap[(short) (addressIndex & 0xFF)]
+					.equalsAddress(src, addrOff, addrLength)) {
 				return;
 			}
-			addressIndex++;
+			addressIndex = addressHashIndex.getNext(addressIndex, hash);
+		}
+	}
+
+	/**
+	 * Stores the given address and encrypted private key in the slot
+	 * {@link #addressIndex}, marks the slot as used and starts a new
+	 * generation of the slot. All changes are made inside one transaction.
+	 * 
+	 * @param addr The byte array in which the address can be found
+	 * @param addrOff Offset of the address inside the given byte array
+	 * @param addrLength Length of the address
+	 * @param key The byte array in which the encrypted key can be found
+	 * @param keyOff Offset of the encrypted key inside the given byte array
+	 * @param keyLength Length of the encrypted key
+	 */
+	private void storeKey(byte[] addr, short addrOff, short addrLength,
+			byte[] key, short keyOff, short keyLength) {
+		short slot = (short) (addressIndex & 0xFF);
+
+		// Keys of a bulk import are stored in the transaction of the import
+		boolean transaction = JCSystem.getTransactionDepth() == 0;
+
+		if (transaction) {
+			JCSystem.beginTransaction();
 		}
+		storeAddress(addr, addrOff, addrLength);
+		keys[slot].setKey(key, keyOff, keyLength);
+		useSlot(slot);
+		if (transaction) {
+			JCSystem.commitTransaction();
+		}
+	}
+
+	/**
+	 * Marks the given slot as used and starts a new generation of the slot.
+	 * 
+	 * @param slot The slot, whose key has been stored
+	 */
+	private void useSlot(short slot) {
+		generations[slot]++;
+		freeSlots[(short) (slot >> 3)] &= (byte) ~(0x80 >> (slot & 7));
+		numberOfKeys++;
+	}
+
+	/**
+	 * Stores the given address in the slot {@link #addressIndex} and adds it
+	 * to the {@link #addressHashIndex}.
+	 * 
+	 * @param src The byte array in which the address can be found
+	 * @param addrOff Offset of the address inside the given byte array
+	 * @param addrLength Length of the address
+	 */
+	private void storeAddress(byte[] src, short addrOff, short addrLength) {
+		addressToKeyIndexMap[(short) (addressIndex & 0xFF)].setAddress(src,
+				addrOff, addrLength);
 
-		addressIndex = (byte) 0xFF;
+		addressHashIndex.add(addressIndex,
+				AddressIndex.hash(src, addrOff, addrLength));
 	}
 
 	/**
 	 * Calculates the index of the first free slot inside the key array in
-	 * {@link #addressIndex}. If no free slot could be found, addressIndex is
-	 * set to 255 (0xFF).
+	 * {@link #addressIndex} using the {@link #freeSlots} bitmap. If no free
+	 * slot could be found, addressIndex is set to 255 (0xFF).
 	 */
 	private void findFirstFreePosition() {
-		addressIndex = 0;
-		while ((addressIndex & 0xFF) < keys.length) {
-			if (!keys[addressIndex].isInUse()) {
+		addressIndex = AddressIndex.NO_SLOT;
+
+		if (numberOfKeys == (short) keys.length) {
+			return;
+		}
+
+		for (short i = 0; i < (short) freeSlots.length; i++) {
+			short bits = (short) (freeSlots[i] & 0xFF);
+			if (bits != 0) {
+				short slot = (short) (i << 3);
+				while ((bits & 0x80) == 0) {
+					bits = (short) (bits << 1);
+					slot++;
+				}
+				addressIndex = (byte) slot;
 				return;
 			}
-			addressIndex++;
 		}
-		addressIndex = (byte) 0xFF;
+	}
+
+	/**
+	 * Returns the first free slot starting at the given slot, or the number
+	 * of slots if there is none.
+	 * 
+	 * @param slot The slot to start the search at
+	 */
+	private short findFreeSlot(short slot) {
+		while (slot < (short) keys.length && !isSlotFree(slot)) {
+			slot++;
+		}
+		return slot;
 	}
 
 	/**
 	 * Encrypts the given private key with the AES key of this store.</br>
-	 * Uses {@link #encryptionBuffer}.</br>
-	 * If the length is too short to suit the 128bits block size, additional
-	 * random values are appended.
+	 * Uses the buffer at {@link #encryptionBufferOff}.</br>
+	 * A private key with leading zero bytes is returned shorter by the card,
+	 * so it is padded to {@link #PRIVATE_KEY_SIZE} again.
 	 * 
 	 * @param privateKey The private key to encrypt
 	 * @param dest The destination, where the encrypted key is put
@@ -491,21 +1899,47 @@ public class KeyStore {
 	 */
 	private short encryptPrivateKey(ECPrivateKey privateKey, byte[] dest,
 			short destOff) {
-		short keyLength = privateKey.getS(encryptionBuffer, (short) 0);
+		short keyLength = privateKey.getS(workingMemory, encryptionBufferOff);
 
-		if (keyLength != PRIVATE_KEY_SIZE) {
+		if (keyLength > PRIVATE_KEY_SIZE) {
 			ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
 		}
 
+		if (keyLength < PRIVATE_KEY_SIZE) {
+			short padding = (short) (PRIVATE_KEY_SIZE - keyLength);
+			Util.arrayCopyNonAtomic(workingMemory, encryptionBufferOff,
+					workingMemory, (short) (encryptionBufferOff + padding),
+					keyLength);
+			Util.arrayFillNonAtomic(workingMemory, encryptionBufferOff,
+					padding, (byte) 0);
+		}
+
 		aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
 
-		return aesCipher.doFinal(encryptionBuffer, (short) 0, PRIVATE_KEY_SIZE,
-				dest, destOff);
+		return encryptPrivateKey(workingMemory, encryptionBufferOff, dest,
+				destOff);
+	}
+
+	/**
+	 * Encrypts the given private key with the AES key of this store. The
+	 * {@link #aesCipher} has to be initialized for encryption, so that it
+	 * can be initialized once for several keys.
+	 * 
+	 * @param src The byte array, in which the private key can be found
+	 * @param keyOff Offset of the private key inside the byte array
+	 * @param dest The destination, where the encrypted key is put
+	 * @param destOff The offset inside the destination array
+	 * 
+	 * @return The length of the encrypted key.
+	 */
+	private short encryptPrivateKey(byte[] src, short keyOff, byte[] dest,
+			short destOff) {
+		return aesCipher.doFinal(src, keyOff, PRIVATE_KEY_SIZE, dest, destOff);
 	}
 
 	/**
 	 * Decrypts the given private key with the AES key of this store.</br>
-	 * Uses {@link #encryptionBuffer}.
+	 * Uses the buffer at {@link #encryptionBufferOff}.
 	 * 
 	 * @param privateKey The private key to decrypt
 	 * @param dest The destination, where the decrypted key is put
@@ -515,76 +1949,177 @@ public class KeyStore {
 	 */
 	private short decryptPrivateKey(EncryptedPrivateKey privateKey,
 			byte[] dest, short destOff) {
-		short keyLength = privateKey.getKey(encryptionBuffer, (short) 0);
+		short keyLength = privateKey.getKey(workingMemory, encryptionBufferOff);
 
 		if (keyLength != PRIVATE_KEY_SIZE) {
 			ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
 		}
 
 		aesCipher.init(aesKey, Cipher.MODE_DECRYPT);
-		aesCipher.doFinal(encryptionBuffer, (short) 0, keyLength,
-				encryptionBuffer, (short) 0);
+		aesCipher.doFinal(workingMemory, encryptionBufferOff, keyLength,
+				workingMemory, encryptionBufferOff);
 
-		Util.arrayCopy(encryptionBuffer, (short) 0, dest, destOff,
-				PRIVATE_KEY_SIZE);
+		Util.arrayCopyNonAtomic(workingMemory, encryptionBufferOff, dest,
+				destOff, PRIVATE_KEY_SIZE);
 
 		return keyLength;
 	}
 
+	/**
+	 * Writes the given public key in the uncompressed form (0x04 + X + Y) or
+	 * in the SEC1 compressed form (0x02 or 0x03 for an even or odd Y + X).
+	 * 
+	 * @param pubKey The public key
+	 * @param compressed Whether to write the compressed form
+	 * @param dest The output buffer, which has to hold the uncompressed form
+	 * @param destOff The offset inside the output buffer
+	 * 
+	 * @return The length of the public key
+	 */
+	private static short getPublicKey(ECPublicKey pubKey, boolean compressed,
+			byte[] dest, short destOff) {
+		short keyLength = pubKey.getW(dest, destOff);
+
+		if (!compressed) {
+			return keyLength;
+		}
+
+		// The parity of Y is the last bit of the uncompressed key
+		dest[destOff] = (byte) (0x02 | (dest[(short) (destOff + keyLength - 1)] & 0x01));
+
+		return (short) ((short) (keyLength + 1) / 2);
+	}
+
 	/**
 	 * Calculates the Bitcoin address from the given public key. The address
-	 * will be stored in the {@link #keyBuffer}.
+	 * will be stored in the buffer at {@link #keyBufferOff} in the
+	 * {@link #addressFormat} of this store. The checksum and the Base58
+	 * encoding are only calculated for {@link #ADDRESS_FORMAT_BASE58}.
 	 * </br>
-	 * Uses {@link #hashBuffer}.
+	 * Uses the buffer at {@link #hashBufferOff}.
 	 * </br>
 	 * See <a href=
 	 * "https://en.bitcoin.it/wiki/Technical_background_of_version_1_Bitcoin_addresses#How_to_create_Bitcoin_Address"
 	 * >How to create Bitcoin Address</a>
 	 * 
-	 * @param src The byte array in which the public key can be found
-	 * @param keyOff Offset of the key inside the given byte array
-	 * @param keyLength Length of the public key
+	 * @param pubKey The public key
+	 * @param compressed Whether the address is derived from the compressed
+	 *            public key
 	 * 
 	 * @return The length of the calculated bitcoin address inside the
-	 *         {@link #keyBuffer}
+	 *         buffer at {@link #keyBufferOff}
 	 */
-	private short calculateBitcoinAddress(ECPublicKey pubKey) {
+	private short calculateBitcoinAddress(ECPublicKey pubKey, boolean compressed) {
 
 		// Get key bytes
-		short keyLength = pubKey.getW(keyBuffer, (short) 0);
+		short keyLength = getPublicKey(pubKey, compressed, workingMemory,
+				keyBufferOff);
 
 		// Calculate sha256 hash of public key
 		short sha256Length;
-		sha256Length = sha256Digest.doFinal(keyBuffer, (short) 0, keyLength,
-				keyBuffer, (short) 0);
+		sha256Length = sha256Digest.doFinal(workingMemory, keyBufferOff, keyLength,
+				workingMemory, keyBufferOff);
 
-		// Calculate ripemd160 hash of sha256 hash
-		Ripemd160.hash32(keyBuffer, (short) 0, keyBuffer, (short) 1,
-				hashBuffer, (short) 0);
+		// Calculate ripemd160 hash of sha256 hash, natively if supported
+		if (ripemd160Digest != null) {
+			ripemd160Digest.doFinal(workingMemory, keyBufferOff, sha256Length,
+					workingMemory, (short) (keyBufferOff + 1));
+		} else {
+			Ripemd160.hash32(workingMemory, keyBufferOff, workingMemory,
+					(short) (keyBufferOff + 1), workingMemory, hashBufferOff);
+		}
 
 		short ripemd160Length = 20;
 
 		// Add version byte (0x00 for Main Network)
-		keyBuffer[0] = (byte) 0x00;
+		workingMemory[keyBufferOff] = (byte) 0x00;
+
+		if (addressFormat == ADDRESS_FORMAT_HASH160) {
+			return HASH160_ADDRESS_SIZE;
+		}
 
 		// Calculate sha256 hash of extended RIPEMD-160 result
-		sha256Length = sha256Digest.doFinal(keyBuffer, (short) 0,
-				(short) (ripemd160Length + 1), keyBuffer,
-				(short) (ripemd160Length + 1));
+		sha256Length = sha256Digest.doFinal(workingMemory, keyBufferOff,
+				(short) (ripemd160Length + 1), workingMemory,
+				(short) (keyBufferOff + ripemd160Length + 1));
 
 		// Calculate sha256 hash on the result of the previous SHA-256 hash
-		sha256Length = sha256Digest.doFinal(keyBuffer,
-				(short) (ripemd160Length + 1), sha256Length, keyBuffer,
-				(short) (ripemd160Length + 1));
+		sha256Length = sha256Digest.doFinal(workingMemory,
+				(short) (keyBufferOff + ripemd160Length + 1), sha256Length,
+				workingMemory, (short) (keyBufferOff + ripemd160Length + 1));
 
 		// Calculate the base58 encoded address and return its length
-		return Base58.encode(keyBuffer, (short) 0,
-				(short) (ripemd160Length + 5), keyBuffer, (short) 0,
-				hashBuffer, (short) 0);
+		return (short) (Base58.encode(workingMemory, keyBufferOff,
+				(short) (ripemd160Length + 5), workingMemory, keyBufferOff,
+				workingMemory, hashBufferOff) - keyBufferOff);
+	}
+
+	/**
+	 * Validates the given Base58 encoded Bitcoin address and places it in the
+	 * {@link #addressFormat} of this store inside the buffer at
+	 * {@link #addressBufferOff}.
+	 * For {@link #ADDRESS_FORMAT_HASH160}, the address decoded during the
+	 * validation is kept, so that lookups only compare the decoded bytes.
+	 * </br>
+	 * Uses the buffer at {@link #hashBufferOff}.
+	 * 
+	 * @param src The buffer containing the Bitcoin address
+	 * @param addrOff Offset of the address inside the buffer
+	 * @param addrLength Length of the address
+	 * 
+	 * @return The length of the address inside the buffer at
+	 *         {@link #addressBufferOff}
+	 */
+	private short loadAddress(byte[] src, short addrOff, short addrLength) {
+		if (addrLength > addressBufferSize) {
+			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
+		}
+
+		validateBitcoinAddress(src, addrOff, addrLength);
+
+		if (addressFormat == ADDRESS_FORMAT_BASE58) {
+			Util.arrayCopyNonAtomic(src, addrOff, workingMemory, addressBufferOff,
+					addrLength);
+			return addrLength;
+		}
+
+		return HASH160_ADDRESS_SIZE;
 	}
 
 	/**
-	 * Validates the given Bitcoin address for correctness.
+	 * Places the given address, which is in the {@link #addressFormat} of this
+	 * store, inside the buffer at {@link #addressBufferOff}. Only the length
+	 * of the address is checked.
+	 * 
+	 * @param src The buffer containing the address
+	 * @param addrOff Offset of the address inside the buffer
+	 * @param addrLength Length of the address
+	 * 
+	 * @return The length of the address inside the buffer at
+	 *         {@link #addressBufferOff}
+	 */
+	private short loadStoredAddress(byte[] src, short addrOff, short addrLength) {
+		if (addressFormat == ADDRESS_FORMAT_BASE58 ? addrLength > addressBufferSize
+				: addrLength != HASH160_ADDRESS_SIZE) {
+			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
+		}
+
+		Util.arrayCopyNonAtomic(src, addrOff, workingMemory, addressBufferOff,
+				addrLength);
+
+		return addrLength;
+	}
+
+	/**
+	 * Validates the given Base58 encoded Bitcoin address for correctness:
+	 * decodes it and compares its checksum with the first 4 bytes of the
+	 * double SHA-256 hash of the version byte and the RIPEMD-160 hash. Throws
+	 * DATA_INVALID, if the address cannot be decoded or the checksum does not
+	 * match.
+	 * </br>
+	 * The decoded address is placed inside the buffer at
+	 * {@link #addressBufferOff}, which needs room for addrLength bytes. Uses
+	 * the buffer at {@link #hashBufferOff}.
 	 * 
 	 * @param src The buffer containing the Bitcoin address
 	 * @param addrOff Offset of the address inside the buffer
@@ -592,10 +2127,26 @@ public class KeyStore {
 	 */
 	private void validateBitcoinAddress(byte[] src, short addrOff,
 			short addrLength) throws ISOException {
-		if (addrLength < 26 || addrLength > 35) {
+		if (addrLength < MIN_ADDRESS_LENGTH || addrLength > MAX_ADDRESS_LENGTH) {
 			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
 		}
 
-		// TODO verify checksum?
+		if (Base58.decode(src, addrOff, addrLength, workingMemory, addressBufferOff,
+				workingMemory, hashBufferOff) != DECODED_ADDRESS_SIZE) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
+
+		// Calculate the double sha256 hash of version byte and RIPEMD-160 hash
+		short sha256Length = sha256Digest.doFinal(workingMemory,
+				addressBufferOff, HASH160_ADDRESS_SIZE, workingMemory,
+				hashBufferOff);
+		sha256Digest.doFinal(workingMemory, hashBufferOff, sha256Length,
+				workingMemory, hashBufferOff);
+
+		if (Util.arrayCompare(workingMemory, hashBufferOff, workingMemory,
+				(short) (addressBufferOff + HASH160_ADDRESS_SIZE),
+				(short) (DECODED_ADDRESS_SIZE - HASH160_ADDRESS_SIZE)) != 0) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
 	}
 }
@@ -23,8 +23,179 @@ package de.tum.in.securebitcoinwallet.javacardapplet;
 import javacard.framework.Util;
 
 public class Ripemd160 {
+	/**
+	 * Size of the state of the streaming API in bytes: chaining value, block
+	 * buffer and number of hashed bytes.
+	 */
+	public static final short STATE_SIZE = 86;
+
+	/**
+	 * Size of a RIPEMD160 hash in bytes.
+	 */
+	public static final short HASH_SIZE = 20;
+
+	/**
+	 * Size of a block in bytes.
+	 */
+	private static final short BLOCK_SIZE = 64;
+
+	/**
+	 * Offset of the block buffer inside the state.
+	 */
+	private static final short OFFSET_BLOCK = 20;
+
+	/**
+	 * Offset of the number of hashed bytes inside the state.
+	 */
+	private static final short OFFSET_COUNT = 84;
+
+	/**
+	 * Offset of the message length inside the last block.
+	 */
+	private static final short OFFSET_LENGTH = 56;
+
+	/**
+	 * Hashes exactly 32 bytes, e.g. a SHA-256 hash. Input and output may
+	 * overlap.
+	 * 
+	 * @param buffer The array containing the input
+	 * @param offset The offset of the input
+	 * @param target The output array for the 20 byte hash
+	 * @param targetOffset The offset inside the output array
+	 * @param scratch Array for the padded block, 64 bytes
+	 * @param scratchOffset The offset inside the scratch array
+	 */
 	public static void hash32(byte[] buffer, short offset, byte[] target,
 			short targetOffset, byte[] scratch, short scratchOffset) {
+		Util.arrayFillNonAtomic(scratch, scratchOffset, BLOCK_SIZE, (byte) 0x00);
+		Util.arrayCopyNonAtomic(buffer, offset, scratch, scratchOffset,
+				(short) 32);
+		scratch[(short) (scratchOffset + 32)] = (byte) 0x80;
+		scratch[(short) (scratchOffset + 64 - 7)] = (byte) 0x01;
+
+		// The hash is calculated in place of the output
+		Util.arrayCopyNonAtomic(IV, (short) 0, target, targetOffset, HASH_SIZE);
+		compress(scratch, scratchOffset, target, targetOffset);
+	}
+
+	/**
+	 * Starts a new hash. The state is kept in the given array, which should
+	 * be transient, so that several hashes can be calculated at the same
+	 * time.
+	 * 
+	 * @param state The array for the state, {@link #STATE_SIZE} bytes
+	 * @param stateOff The offset of the state
+	 */
+	public static void init(byte[] state, short stateOff) {
+		Util.arrayCopyNonAtomic(IV, (short) 0, state, stateOff, HASH_SIZE);
+		Util.setShort(state, (short) (stateOff + OFFSET_COUNT), (short) 0);
+	}
+
+	/**
+	 * Hashes the given data. Complete blocks are processed immediately, the
+	 * rest is kept in the state. At most 65535 bytes can be hashed.
+	 * 
+	 * @param state The array containing the state
+	 * @param stateOff The offset of the state
+	 * @param src The array containing the data
+	 * @param offset The offset of the data
+	 * @param length The length of the data
+	 */
+	public static void update(byte[] state, short stateOff, byte[] src,
+			short offset, short length) {
+		short countOff = (short) (stateOff + OFFSET_COUNT);
+		short blockOff = (short) (stateOff + OFFSET_BLOCK);
+
+		short count = Util.getShort(state, countOff);
+		short used = (short) (count & (BLOCK_SIZE - 1));
+		Util.setShort(state, countOff, (short) (count + length));
+
+		while (length > 0) {
+			// Complete blocks of the input are hashed without copying
+			if (used == 0 && length >= BLOCK_SIZE) {
+				compress(src, offset, state, stateOff);
+				offset = (short) (offset + BLOCK_SIZE);
+				length = (short) (length - BLOCK_SIZE);
+				continue;
+			}
+
+			short n = (short) (BLOCK_SIZE - used);
+			if (n > length) {
+				n = length;
+			}
+
+			Util.arrayCopyNonAtomic(src, offset, state,
+					(short) (blockOff + used), n);
+			used = (short) (used + n);
+			offset = (short) (offset + n);
+			length = (short) (length - n);
+
+			if (used == BLOCK_SIZE) {
+				compress(state, blockOff, state, stateOff);
+				used = 0;
+			}
+		}
+	}
+
+	/**
+	 * Hashes the given data, pads the message and writes the hash. The state
+	 * is reset afterwards like by {@link #init(byte[], short)}.
+	 * 
+	 * @param state The array containing the state
+	 * @param stateOff The offset of the state
+	 * @param src The array containing the data
+	 * @param offset The offset of the data
+	 * @param length The length of the data
+	 * @param dest The output array for the hash
+	 * @param destOff The offset inside the output array
+	 * 
+	 * @return The length of the hash
+	 */
+	public static short doFinal(byte[] state, short stateOff, byte[] src,
+			short offset, short length, byte[] dest, short destOff) {
+		update(state, stateOff, src, offset, length);
+
+		short blockOff = (short) (stateOff + OFFSET_BLOCK);
+		short count = Util.getShort(state, (short) (stateOff + OFFSET_COUNT));
+		short used = (short) (count & (BLOCK_SIZE - 1));
+
+		state[(short) (blockOff + used)] = (byte) 0x80;
+		used++;
+
+		// No room for the length in this block
+		if (used > OFFSET_LENGTH) {
+			Util.arrayFillNonAtomic(state, (short) (blockOff + used),
+					(short) (BLOCK_SIZE - used), (byte) 0x00);
+			compress(state, blockOff, state, stateOff);
+			used = 0;
+		}
+
+		Util.arrayFillNonAtomic(state, (short) (blockOff + used),
+				(short) (BLOCK_SIZE - used), (byte) 0x00);
+
+		// Length in bits, little endian
+		blockOff = (short) (blockOff + OFFSET_LENGTH);
+		state[blockOff] = (byte) (count << 3);
+		state[(short) (blockOff + 1)] = (byte) (count >> 5);
+		state[(short) (blockOff + 2)] = (byte) ((count >> 13) & 0x07);
+		compress(state, (short) (stateOff + OFFSET_BLOCK), state, stateOff);
+
+		Util.arrayCopyNonAtomic(state, stateOff, dest, destOff, HASH_SIZE);
+		init(state, stateOff);
+
+		return HASH_SIZE;
+	}
+
+	/**
+	 * Processes one block and updates the chaining value.
+	 * 
+	 * @param block The array containing the block
+	 * @param blockOffset The offset of the block
+	 * @param chain The array containing the chaining value
+	 * @param chainOffset The offset of the chaining value
+	 */
+	private static void compress(byte[] block, short blockOffset,
+			byte[] chain, short chainOffset) {
 		byte i;
 		short H0HIGH = (short) 0, H0LOW = (short) 0;
 		short H1HIGH = (short) 0, H1LOW = (short) 0;
@@ -63,25 +234,21 @@ public class Ripemd160 {
 		short tmpHIGH = (short) 0, tmpLOW = (short) 0;
 		short addX, addY, addLow, addCarry;
 		short rotH, rotL, rotMsk, rotSl, rotSh;
-		H0HIGH = (short) 0x6745;
-		H0LOW = (short) 0x2301;
-		H1HIGH = (short) 0xEFCD;
-		H1LOW = (short) 0xAB89;
-		H2HIGH = (short) 0x98BA;
-		H2LOW = (short) 0xDCFE;
-		H3HIGH = (short) 0x1032;
-		H3LOW = (short) 0x5476;
-		H4HIGH = (short) 0xC3D2;
-		H4LOW = (short) 0xE1F0;
-		Util.arrayFillNonAtomic(scratch, scratchOffset, (short) 64, (byte) 0x00);
-		Util.arrayCopyNonAtomic(buffer, offset, scratch, scratchOffset,
-				(short) 32);
-		scratch[(short) (scratchOffset + 32)] = (byte) 0x80;
-		scratch[(short) (scratchOffset + 64 - 7)] = (byte) 0x01;
-		offset = scratchOffset;
+		short offset = chainOffset;
+		H0LOW = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H0HIGH = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H1LOW = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H1HIGH = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H2LOW = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H2HIGH = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H3LOW = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H3HIGH = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H4LOW = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		H4HIGH = (short) ((chain[offset++] & 0xff) | ((chain[offset++] & 0xff) << 8));
+		offset = blockOffset;
 		for (i = 0; i < 16; i++) {
-			short low = (short) ((scratch[offset++] & 0xff) | ((scratch[offset++] & 0xff) << 8));
-			short high = (short) ((scratch[offset++] & 0xff) | ((scratch[offset++] & 0xff) << 8));
+			short low = (short) ((block[offset++] & 0xff) | ((block[offset++] & 0xff) << 8));
+			short high = (short) ((block[offset++] & 0xff) | ((block[offset++] & 0xff) << 8));
 			switch (i) {
 			case 0:
 				X0HIGH = (short) high;
@@ -1341,49 +1508,54 @@ public class Ripemd160 {
 		H4HIGH += CpHIGH;
 		H0HIGH = THIGH;
 		H0LOW = TLOW;
-		target[targetOffset++] = (byte) (H0LOW);
-		target[targetOffset++] = (byte) (H0LOW >>> 8);
-		target[targetOffset++] = (byte) (H0HIGH);
-		target[targetOffset++] = (byte) (H0HIGH >>> 8);
-		target[targetOffset++] = (byte) (H1LOW);
-		target[targetOffset++] = (byte) (H1LOW >>> 8);
-		target[targetOffset++] = (byte) (H1HIGH);
-		target[targetOffset++] = (byte) (H1HIGH >>> 8);
-		target[targetOffset++] = (byte) (H2LOW);
-		target[targetOffset++] = (byte) (H2LOW >>> 8);
-		target[targetOffset++] = (byte) (H2HIGH);
-		target[targetOffset++] = (byte) (H2HIGH >>> 8);
-		target[targetOffset++] = (byte) (H3LOW);
-		target[targetOffset++] = (byte) (H3LOW >>> 8);
-		target[targetOffset++] = (byte) (H3HIGH);
-		target[targetOffset++] = (byte) (H3HIGH >>> 8);
-		target[targetOffset++] = (byte) (H4LOW);
-		target[targetOffset++] = (byte) (H4LOW >>> 8);
-		target[targetOffset++] = (byte) (H4HIGH);
-		target[targetOffset++] = (byte) (H4HIGH >>> 8);
+		chain[chainOffset++] = (byte) (H0LOW);
+		chain[chainOffset++] = (byte) (H0LOW >>> 8);
+		chain[chainOffset++] = (byte) (H0HIGH);
+		chain[chainOffset++] = (byte) (H0HIGH >>> 8);
+		chain[chainOffset++] = (byte) (H1LOW);
+		chain[chainOffset++] = (byte) (H1LOW >>> 8);
+		chain[chainOffset++] = (byte) (H1HIGH);
+		chain[chainOffset++] = (byte) (H1HIGH >>> 8);
+		chain[chainOffset++] = (byte) (H2LOW);
+		chain[chainOffset++] = (byte) (H2LOW >>> 8);
+		chain[chainOffset++] = (byte) (H2HIGH);
+		chain[chainOffset++] = (byte) (H2HIGH >>> 8);
+		chain[chainOffset++] = (byte) (H3LOW);
+		chain[chainOffset++] = (byte) (H3LOW >>> 8);
+		chain[chainOffset++] = (byte) (H3HIGH);
+		chain[chainOffset++] = (byte) (H3HIGH >>> 8);
+		chain[chainOffset++] = (byte) (H4LOW);
+		chain[chainOffset++] = (byte) (H4LOW >>> 8);
+		chain[chainOffset++] = (byte) (H4HIGH);
+		chain[chainOffset++] = (byte) (H4HIGH >>> 8);
 	}
 
-	private static final short[] R = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+	static final byte[] IV = { (byte) 0x01, (byte) 0x23, (byte) 0x45,
+			(byte) 0x67, (byte) 0x89, (byte) 0xAB, (byte) 0xCD, (byte) 0xEF,
+			(byte) 0xFE, (byte) 0xDC, (byte) 0xBA, (byte) 0x98, (byte) 0x76,
+			(byte) 0x54, (byte) 0x32, (byte) 0x10, (byte) 0xF0, (byte) 0xE1,
+			(byte) 0xD2, (byte) 0xC3 };
+	static final short[] R = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
 			12, 13, 14, 15, 7, 4, 13, 1, 10, 6, 15, 3, 12, 0, 9, 5, 2, 14, 11,
 			8, 3, 10, 14, 4, 9, 15, 8, 1, 2, 7, 0, 6, 13, 11, 5, 12, 1, 9, 11,
 			10, 0, 8, 12, 4, 13, 3, 7, 15, 14, 5, 6, 2, 4, 0, 5, 9, 7, 12, 2,
 			10, 14, 1, 3, 8, 11, 6, 15, 13 };
-	private static final short[] Rp = { 5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8,
+	static final short[] Rp = { 5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8,
 			1, 10, 3, 12, 6, 11, 3, 7, 0, 13, 5, 10, 14, 15, 8, 12, 4, 9, 1, 2,
 			15, 5, 1, 3, 7, 14, 6, 9, 11, 8, 12, 2, 10, 0, 4, 13, 8, 6, 4, 1,
 			3, 11, 15, 0, 5, 12, 2, 13, 9, 7, 10, 14, 12, 15, 10, 4, 1, 5, 8,
 			7, 6, 2, 13, 14, 0, 3, 9, 11 };
-	private static final short[] S = { 11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14,
+	static final short[] S = { 11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14,
 			15, 6, 7, 9, 8, 7, 6, 8, 13, 11, 9, 7, 15, 7, 12, 15, 9, 11, 7, 13,
 			12, 11, 13, 6, 7, 14, 9, 13, 15, 14, 8, 13, 6, 5, 12, 7, 5, 11, 12,
 			14, 15, 14, 15, 9, 8, 9, 14, 5, 6, 8, 6, 5, 12, 9, 15, 5, 11, 6, 8,
 			13, 12, 5, 12, 13, 14, 11, 8, 5, 6 };
-	private static final short[] Sp = { 8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8,
+	static final short[] Sp = { 8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8,
 			11, 14, 14, 12, 6, 9, 13, 15, 7, 12, 8, 9, 11, 7, 7, 12, 7, 6, 15,
 			13, 11, 9, 7, 15, 11, 8, 6, 6, 14, 12, 13, 5, 14, 13, 13, 7, 5, 15,
 			5, 8, 11, 14, 14, 6, 14, 6, 9, 12, 9, 12, 5, 15, 8, 8, 5, 12, 9,
 			12, 5, 14, 6, 8, 13, 6, 5, 15, 13, 11, 11 };
-	private static final short[] mask = { (short) 0x0000, (short) 0x0001,
+	static final short[] mask = { (short) 0x0000, (short) 0x0001,
 			(short) 0x0003, (short) 0x0007, (short) 0x000F, (short) 0x001F,
 			(short) 0x003F, (short) 0x007F, (short) 0x00FF, (short) 0x01FF,
 			(short) 0x03FF, (short) 0x07FF, (short) 0x0FFF, (short) 0x1FFF,
@@ -0,0 +1,225 @@
+package de.tum.in.securebitcoinwallet.javacardapplet;
+
+import javacard.framework.Util;
+
+/**
+ * Compact implementation of RIPEMD160 for 32 byte inputs. Iterates over the
+ * tables of {@link Ripemd160} instead of unrolling the rounds, so its code is
+ * a fraction of the size of {@link Ripemd160} and it needs only a few local
+ * variables. The message words and the working state are kept in a
+ * transient short array supplied by the caller. It is meant for cards with
+ * little space for code or a small stack. On the simulator it hashes faster
+ * than {@link Ripemd160}, its speed on a card has not been measured yet.
+ *
+ * Every 32 bit word is kept as two shorts, the high half first.
+ */
+public class Ripemd160Compact {
+	/**
+	 * Size of the work array in shorts: 16 message words, the working state
+	 * of both lines and one temporary word.
+	 */
+	public static final short WORK_SIZE = 54;
+
+	/**
+	 * Offset of the working state of the left line inside the work array.
+	 */
+	private static final short OFFSET_LEFT = 32;
+
+	/**
+	 * Offset of the working state of the right line inside the work array.
+	 */
+	private static final short OFFSET_RIGHT = 42;
+
+	/**
+	 * Offset of the temporary word inside the work array.
+	 */
+	private static final short OFFSET_TEMP = 52;
+
+	/**
+	 * High halves of the round constants, left line first.
+	 */
+	private static final short[] KH = { (short) 0x0000, (short) 0x5A82,
+			(short) 0x6ED9, (short) 0x8F1B, (short) 0xA953, (short) 0x50A2,
+			(short) 0x5C4D, (short) 0x6D70, (short) 0x7A6D, (short) 0x0000 };
+
+	/**
+	 * Low halves of the round constants, left line first.
+	 */
+	private static final short[] KL = { (short) 0x0000, (short) 0x7999,
+			(short) 0xEBA1, (short) 0xBCDC, (short) 0xFD4E, (short) 0x8BE6,
+			(short) 0xD124, (short) 0x3EF3, (short) 0x76E9, (short) 0x0000 };
+
+	/**
+	 * Hashes exactly 32 bytes, e.g. a SHA-256 hash. Input and output may
+	 * overlap.
+	 *
+	 * @param buffer The array containing the input
+	 * @param offset The offset of the input
+	 * @param target The output array for the 20 byte hash
+	 * @param targetOffset The offset inside the output array
+	 * @param work The work array, {@link #WORK_SIZE} shorts
+	 * @param workOffset The offset inside the work array
+	 */
+	public static void hash32(byte[] buffer, short offset, byte[] target,
+			short targetOffset, short[] work, short workOffset) {
+		// The input fills the first 8 message words, the padding the rest
+		short x = workOffset;
+		for (short i = 0; i < 16; i++) {
+			if (i < 8) {
+				loadWord(buffer, offset, work, x);
+				offset = (short) (offset + 4);
+			} else {
+				work[x] = 0;
+				work[(short) (x + 1)] = 0;
+			}
+			x = (short) (x + 2);
+		}
+		work[(short) (workOffset + 17)] = (short) 0x0080;
+		// Length of 256 bits
+		work[(short) (workOffset + 29)] = (short) 0x0100;
+
+		// The hash is calculated in place of the output
+		Util.arrayCopyNonAtomic(Ripemd160.IV, (short) 0, target, targetOffset,
+				Ripemd160.HASH_SIZE);
+		compress(work, workOffset, target, targetOffset);
+	}
+
+	/**
+	 * Processes the message words inside the work array and updates the
+	 * chaining value.
+	 */
+	private static void compress(short[] work, short workOffset,
+			byte[] chain, short chainOffset) {
+		short left = (short) (workOffset + OFFSET_LEFT);
+		short right = (short) (workOffset + OFFSET_RIGHT);
+
+		// Both lines start with the chaining value
+		for (short i = 0; i < 5; i++) {
+			short w = (short) (left + (short) (i << 1));
+			loadWord(chain, (short) (chainOffset + (short) (i << 2)), work, w);
+			work[(short) (w + 10)] = work[w];
+			work[(short) (w + 11)] = work[(short) (w + 1)];
+		}
+
+		for (short j = 0; j < 80; j++) {
+			short round = (short) (j >> 4);
+			step(work, workOffset, left, round, Ripemd160.R[j], round,
+					Ripemd160.S[j]);
+			step(work, workOffset, right, (short) (4 - round),
+					Ripemd160.Rp[j], (short) (round + 5), Ripemd160.Sp[j]);
+		}
+
+		// The message words are not needed anymore and take the new
+		// chaining value
+		for (short i = 0; i < 5; i++) {
+			short x = (short) (workOffset + (short) (i << 1));
+			loadWord(chain, (short) (chainOffset + (short) ((short) ((short) (i + 1) % 5) << 2)), work, x);
+			short w = (short) (left + (short) ((short) ((short) (i + 2) % 5) << 1));
+			add(work, x, work[w], work[(short) (w + 1)]);
+			w = (short) (right + (short) ((short) ((short) (i + 3) % 5) << 1));
+			add(work, x, work[w], work[(short) (w + 1)]);
+		}
+
+		for (short x = workOffset; x < (short) (workOffset + 10); x = (short) (x + 2)) {
+			chain[chainOffset++] = (byte) work[(short) (x + 1)];
+			chain[chainOffset++] = (byte) (work[(short) (x + 1)] >> 8);
+			chain[chainOffset++] = (byte) work[x];
+			chain[chainOffset++] = (byte) (work[x] >> 8);
+		}
+	}
+
+	/**
+	 * One step of a line: T = rotl(A + f(B, C, D) + X[r] + K, s) + E, then
+	 * A = E, E = D, D = rotl(C, 10), C = B and B = T.
+	 *
+	 * @param line Offset of the working state of the line
+	 * @param f The boolean function
+	 * @param r The index of the message word
+	 * @param k The index of the round constant
+	 * @param s The number of bits to rotate
+	 */
+	private static void step(short[] work, short workOffset, short line,
+			short f, short r, short k, short s) {
+		short t = (short) (workOffset + OFFSET_TEMP);
+		short b = (short) (line + 2);
+		short c = (short) (line + 4);
+		short d = (short) (line + 6);
+		short e = (short) (line + 8);
+
+		work[t] = function(f, work[b], work[c], work[d]);
+		work[(short) (t + 1)] = function(f, work[(short) (b + 1)],
+				work[(short) (c + 1)], work[(short) (d + 1)]);
+		add(work, t, work[line], work[(short) (line + 1)]);
+		short x = (short) (workOffset + (short) (r << 1));
+		add(work, t, work[x], work[(short) (x + 1)]);
+		add(work, t, KH[k], KL[k]);
+		rotateLeft(work, t, s);
+		add(work, t, work[e], work[(short) (e + 1)]);
+
+		work[line] = work[e];
+		work[(short) (line + 1)] = work[(short) (e + 1)];
+		work[e] = work[d];
+		work[(short) (e + 1)] = work[(short) (d + 1)];
+		rotateLeft(work, c, (short) 10);
+		work[d] = work[c];
+		work[(short) (d + 1)] = work[(short) (c + 1)];
+		work[c] = work[b];
+		work[(short) (c + 1)] = work[(short) (b + 1)];
+		work[b] = work[t];
+		work[(short) (b + 1)] = work[(short) (t + 1)];
+	}
+
+	/**
+	 * The boolean functions of the rounds, applied to one half of the words.
+	 */
+	private static short function(short f, short x, short y, short z) {
+		switch (f) {
+		case 0:
+			return (short) (x ^ y ^ z);
+		case 1:
+			return (short) ((x & y) | (~x & z));
+		case 2:
+			return (short) ((x | ~y) ^ z);
+		case 3:
+			return (short) ((x & z) | (y & ~z));
+		default:
+			return (short) (x ^ (y | ~z));
+		}
+	}
+
+	/**
+	 * Adds the given value to the word at the given offset modulo 2^32.
+	 */
+	private static void add(short[] work, short w, short high, short low) {
+		short sum = (short) (work[(short) (w + 1)] + low);
+
+		// Carry, if the sum is lower than an addend, compared unsigned
+		if ((short) (sum ^ (short) 0x8000) < (short) (low ^ (short) 0x8000)) {
+			high++;
+		}
+
+		work[w] = (short) (work[w] + high);
+		work[(short) (w + 1)] = sum;
+	}
+
+	/**
+	 * Rotates the word at the given offset left by 1 to 15 bits.
+	 */
+	private static void rotateLeft(short[] work, short w, short n) {
+		short high = work[w];
+		short low = work[(short) (w + 1)];
+		short shift = (short) (16 - n);
+
+		work[w] = (short) ((high << n) | ((low >> shift) & Ripemd160.mask[n]));
+		work[(short) (w + 1)] = (short) ((low << n) | ((high >> shift) & Ripemd160.mask[n]));
+	}
+
+	/**
+	 * Loads a little endian word from the given bytes.
+	 */
+	private static void loadWord(byte[] src, short offset, short[] work,
+			short w) {
+		work[(short) (w + 1)] = (short) ((src[offset] & 0xff) | (src[(short) (offset + 1)] << 8));
+		work[w] = (short) ((src[(short) (offset + 2)] & 0xff) | (src[(short) (offset + 3)] << 8));
+	}
+}
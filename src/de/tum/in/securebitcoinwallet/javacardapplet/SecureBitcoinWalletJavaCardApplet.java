@@ -2,22 +2,27 @@ package de.tum.in.securebitcoinwallet.javacardapplet;
 
 import javacard.framework.APDU;
 import javacard.framework.Applet;
+import javacard.framework.CardRuntimeException;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.OwnerPIN;
 import javacard.framework.Util;
 import javacard.security.RandomData;
+import javacard.security.Signature;
+import javacardx.apdu.ExtendedLength;
 
 /**
  * This is the SecureBitcoinWallet Applet. It stores the users private keys in a
  * map of bitcoin address to encrypted private key. To access the key store, a
  * pin is required which is set during setup. If the PIN is entered wrong too
  * many times, the card is locked and can only be unlocked, if the PUK is
- * provided.
+ * provided. Commands and responses may use extended length APDUs.
  * 
  * @author Benedikt Schlagberger
  */
-public class SecureBitcoinWalletJavaCardApplet extends Applet {
+public class SecureBitcoinWalletJavaCardApplet extends Applet implements
+		ExtendedLength {
 	/**
 	 * Size of the PUK.
 	 */
@@ -50,15 +55,153 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 			(byte) 0x03, (byte) 0x04 };
 
 	/**
-	 * The size of the {@link KeyStore} of this applet in number of keys.
+	 * The default size of the {@link KeyStore} of this applet in number of
+	 * keys.
 	 */
 	public final static byte STORE_SIZE = (byte) 16;
 
 	/**
-	 * Maximum size of an address in bytes. 35 alpha numeric characters.
+	 * Default maximum size of an address in bytes. 35 alpha numeric
+	 * characters.
 	 */
 	public final static byte ADDRESS_SIZE = (byte) 35;
 
+	/**
+	 * Default size of the transient {@link WorkingMemory} in bytes.
+	 */
+	public final static short WORKING_MEMORY_SIZE = (short) 1856;
+
+	/**
+	 * Default size of the {@link CommandBuffer} in bytes. Limits the length
+	 * of the data of chained commands and of responses returned with GET
+	 * RESPONSE.
+	 */
+	public final static short COMMAND_BUFFER_SIZE = (short) 512;
+
+	/**
+	 * Default maximum number of hashes signed with one batch sign
+	 * instruction. If the batch size is not set by the install parameters, the
+	 * batch uses the working memory left by all other buffers, so a smaller
+	 * working memory results in smaller batches.
+	 */
+	public final static short SIGNATURE_BATCH_SIZE = (short) 32;
+
+	/**
+	 * Tag of the install parameter for the store size in keys. One byte,
+	 * 1 to 254.
+	 */
+	public final static byte INSTALL_TAG_STORE_SIZE = (byte) 0x81;
+
+	/**
+	 * Tag of the install parameter for the length of the longest Base58
+	 * encoded address accepted by the instructions. One byte, 26 to 35.
+	 * Longer addresses are rejected with WRONG_ADDRESS_LENGTH. Addresses are
+	 * stored decoded, so the parameter does not change the size of a slot.
+	 */
+	public final static byte INSTALL_TAG_ADDRESS_SIZE = (byte) 0x82;
+
+	/**
+	 * Tag of the install parameter for the working memory size in bytes. Two
+	 * bytes.
+	 */
+	public final static byte INSTALL_TAG_WORKING_MEMORY_SIZE = (byte) 0x83;
+
+	/**
+	 * Tag of the install parameter for the maximum number of hashes of a batch
+	 * sign instruction. One or two bytes.
+	 */
+	public final static byte INSTALL_TAG_SIGNATURE_BATCH_SIZE = (byte) 0x84;
+
+	/**
+	 * Tag of the install parameter for the command buffer size in bytes. One
+	 * or two bytes.
+	 */
+	public final static byte INSTALL_TAG_COMMAND_BUFFER_SIZE = (byte) 0x85;
+
+	/**
+	 * Version of the applet. Major version in the high byte, minor version in
+	 * the low byte.
+	 */
+	public final static short VERSION = (short) 0x0100;
+
+	/**
+	 * Tag of the status value whether the setup has been done. One byte, 0x01
+	 * or 0x00.
+	 */
+	public final static byte STATUS_TAG_SETUP_DONE = (byte) 0x81;
+
+	/**
+	 * Tag of the status value whether the PIN is validated. One byte, 0x01 or
+	 * 0x00.
+	 */
+	public final static byte STATUS_TAG_PIN_VALIDATED = (byte) 0x82;
+
+	/**
+	 * Tag of the status value for the remaining PIN tries. One byte.
+	 */
+	public final static byte STATUS_TAG_PIN_TRIES = (byte) 0x83;
+
+	/**
+	 * Tag of the status value for the remaining PUK tries. One byte.
+	 */
+	public final static byte STATUS_TAG_PUK_TRIES = (byte) 0x84;
+
+	/**
+	 * Tag of the status value for the number of used key slots. Two bytes.
+	 */
+	public final static byte STATUS_TAG_USED_SLOTS = (byte) 0x85;
+
+	/**
+	 * Tag of the status value for the number of free key slots. Two bytes.
+	 */
+	public final static byte STATUS_TAG_FREE_SLOTS = (byte) 0x86;
+
+	/**
+	 * Tag of the status value for the slot of the key selected for signing.
+	 * One byte, 0xFF if no key is selected.
+	 */
+	public final static byte STATUS_TAG_SELECTED_SLOT = (byte) 0x87;
+
+	/**
+	 * Tag of the status value for the {@link #VERSION} of the applet. Two
+	 * bytes.
+	 */
+	public final static byte STATUS_TAG_VERSION = (byte) 0x88;
+
+	/**
+	 * Tag of the status value for the number of keys in the key pool, which
+	 * have not been handed out yet. Two bytes.
+	 */
+	public final static byte STATUS_TAG_POOLED_KEYS = (byte) 0x89;
+
+	/**
+	 * Size of a SHA256 hash in bytes.
+	 */
+	public final static byte SHA256_HASH_SIZE = (byte) 32;
+
+	/**
+	 * Bit of the CLA byte, which marks a command as part of a command chain.
+	 */
+	public final static byte CLA_CHAINING = (byte) 0x10;
+
+	/**
+	 * Size of the header of a sub-command of the envelope instruction: INS,
+	 * P1, P2 and length.
+	 */
+	private final static short ENVELOPE_HEADER_SIZE = 4;
+
+	/**
+	 * Size of the header of a sub-response of the envelope instruction: SW1,
+	 * SW2 and length.
+	 */
+	private final static short ENVELOPE_RESPONSE_HEADER_SIZE = 3;
+
+	/**
+	 * Maximum length of a sub-response, which is encoded in one byte. Room
+	 * for it is reserved before a sub-command is executed.
+	 */
+	private final static short ENVELOPE_MAX_RESPONSE_SIZE = 0xFF;
+
 	/**
 	 * Sign mode initialize.
 	 */
@@ -96,31 +239,146 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	private KeyStore keyStore;
 
 	/**
-	 * Buffer used to store the sha256 hash. See
-	 * {@link #signSHA256Hash(APDU, byte[])}.
+	 * Maximum size of an address in bytes. Set by the install parameters.
 	 */
-	private byte[] sha256TransactionHash;
+	private short addressSize;
+
+	/**
+	 * Transient memory holding all scratch buffers of this applet.
+	 */
+	private WorkingMemory workingMemory;
+
+	/**
+	 * Offset of the buffer used to store the sha256 hash inside the
+	 * {@link #workingMemory}. See {@link #signSHA256Hash(APDU, byte[])}.
+	 */
+	private short sha256TransactionHashOff;
+
+	/**
+	 * Data of chained commands and remaining response data.
+	 */
+	private CommandBuffer commandBuffer;
+
+	/**
+	 * Hashes of the current batch sign instruction. See
+	 * {@link #signSHA256HashBatch(APDU, byte[])}.
+	 */
+	private SignatureBatch signatureBatch;
 
 	/**
 	 * Constructor. Should initialize needed memory to prevent out of memory
-	 * during runtime. Only this class's install method should create the applet
-	 * object.
+	 * during runtime. Only the install method should create the applet
+	 * object. If the memory requested by the install parameters is not
+	 * available or the card does not support ECDSA with SHA256, the
+	 * installation fails.
+	 * 
+	 * @param bArray The array containing installation parameters
+	 * @param bOffset The starting offset in bArray
+	 * @param bLength The length in bytes of the parameter data in bArray
 	 */
-	private SecureBitcoinWalletJavaCardApplet() {
+	protected SecureBitcoinWalletJavaCardApplet(byte bArray[], short bOffset,
+			byte bLength) {
+		short storeSize = STORE_SIZE;
+		short workingMemorySize = WORKING_MEMORY_SIZE;
+		short commandBufferSize = COMMAND_BUFFER_SIZE;
+		short batchSize = SIGNATURE_BATCH_SIZE;
+		boolean batchSizeConfigured = false;
+		addressSize = ADDRESS_SIZE;
+
+		// Skip the instance AID and the privileges
+		short offset = bOffset;
+		short end = (short) (bOffset + (short) (bLength & 0xFF));
+		if (offset < end) {
+			offset = (short) (offset + 1 + bArray[offset]);
+			offset = (short) (offset + 1 + bArray[offset]);
+			end = (short) (offset + 1 + (short) (bArray[offset] & 0xFF));
+			offset++;
+		}
+
+		// Parse the application specific parameters
+		while (offset < end) {
+			byte tag = bArray[offset++];
+
+			// Skip padding
+			if (tag == (byte) 0x00 || tag == (byte) 0xFF) {
+				continue;
+			}
+
+			if (offset >= end) {
+				ISOException.throwIt(StatusCodes.DATA_INVALID);
+			}
+
+			short length = (short) (bArray[offset++] & 0xFF);
+
+			if ((short) (offset + length) > end) {
+				ISOException.throwIt(StatusCodes.DATA_INVALID);
+			}
+
+			switch (tag) {
+			case INSTALL_TAG_STORE_SIZE:
+				storeSize = readInstallValue(bArray, offset, length);
+				break;
+			case INSTALL_TAG_ADDRESS_SIZE:
+				addressSize = readInstallValue(bArray, offset, length);
+				break;
+			case INSTALL_TAG_WORKING_MEMORY_SIZE:
+				workingMemorySize = readInstallValue(bArray, offset, length);
+				break;
+			case INSTALL_TAG_COMMAND_BUFFER_SIZE:
+				commandBufferSize = readInstallValue(bArray, offset, length);
+				break;
+			case INSTALL_TAG_SIGNATURE_BATCH_SIZE:
+				batchSize = readInstallValue(bArray, offset, length);
+				batchSizeConfigured = true;
+				break;
+			default:
+				// Unknown parameters are ignored
+				break;
+			}
+
+			offset = (short) (offset + length);
+		}
+
 		puk = new OwnerPIN(PUK_RETRIES, PUK_SIZE);
 
 		pin = new OwnerPIN(PIN_RETRIES, PIN_MAXIMUM_SIZE);
 		pin.update(DEFAULT_PIN, (byte) 0, (byte) DEFAULT_PIN.length);
 
-		keyStore = new KeyStore(STORE_SIZE, ADDRESS_SIZE);
+		workingMemory = new WorkingMemory(workingMemorySize);
+
+		keyStore = new KeyStore(storeSize, addressSize,
+				KeyStore.ADDRESS_FORMAT_HASH160, createSignature(), workingMemory);
+
+		sha256TransactionHashOff = workingMemory.reserve(SHA256_HASH_SIZE);
 
-		sha256TransactionHash = new byte[32];
+		commandBuffer = new CommandBuffer(commandBufferSize, workingMemory);
+
+		// Without a configured size the batch takes the rest of the working
+		// memory
+		short maxBatchSize = (short) ((short) (workingMemory.getRemaining() - SignatureBatch.STATE_BUFFER_SIZE) / SHA256_HASH_SIZE);
+		if (!batchSizeConfigured && batchSize > maxBatchSize) {
+			batchSize = maxBatchSize;
+		}
+
+		signatureBatch = new SignatureBatch(batchSize, keyStore,
+				workingMemory);
 
 		register();
 	}
 
 	/**
-	 * Installs this applet.
+	 * Installs this applet. The application specific install parameters are
+	 * optional TLVs with one byte tag and length:
+	 * 
+	 * <pre>
+	 * 0x81:	store size in keys, 1 byte
+	 * 0x82:	maximum address size in bytes, 1 byte
+	 * 0x83:	working memory size in bytes, 2 bytes
+	 * 0x84:	signature batch size in hashes, 1 or 2 bytes
+	 * 0x85:	command buffer size in bytes, 1 or 2 bytes
+	 * </pre>
+	 * 
+	 * Missing parameters are set to their defaults.
 	 *
 	 * @param bArray The array containing installation parameters
 	 * @param bOffset The starting offset in bArray
@@ -128,11 +386,46 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 */
 	public static void install(byte bArray[], short bOffset, byte bLength)
 			throws ISOException {
-		new SecureBitcoinWalletJavaCardApplet();
+		new SecureBitcoinWalletJavaCardApplet(bArray, bOffset, bLength);
 	}
 
 	/**
-	 * Processes APDU commands from the host.
+	 * Allocates the engine used to sign messages. Throws a CryptoException
+	 * with NO_SUCH_ALGORITHM, if the card does not support ECDSA with SHA256.
+	 * 
+	 * @return The signature engine
+	 */
+	protected Signature createSignature() {
+		return Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+	}
+
+	/**
+	 * Reads the unsigned value of an install parameter.
+	 * 
+	 * @param bArray The array containing installation parameters
+	 * @param offset The offset of the value
+	 * @param length The length of the value, 1 or 2 bytes
+	 * 
+	 * @return The value
+	 */
+	private static short readInstallValue(byte[] bArray, short offset,
+			short length) {
+		if (length == 1) {
+			return (short) (bArray[offset] & 0xFF);
+		}
+
+		if (length != 2 || bArray[offset] < 0) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
+
+		return Util.getShort(bArray, offset);
+	}
+
+	/**
+	 * Processes APDU commands from the host. The data of chained commands
+	 * (CLA 0xB0) is collected in the {@link #commandBuffer} and processed
+	 * with the last command of the chain. Responses longer than the expected
+	 * length are returned in parts with 0x61XX and GET RESPONSE.
 	 * 
 	 * @param apdu The APDU command to process.
 	 */
@@ -144,16 +437,134 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 			return;
 		}
 
-		// Verify the CLA byte
-		if (buffer[ISO7816.OFFSET_CLA] != AppletInstructions.SECURE_BITCOIN_WALLET_CLA) {
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_GET_RESPONSE) {
+			getResponse(apdu, buffer);
+			return;
+		}
+
+		// Verify the CLA byte, ignoring the command chaining bit
+		if ((byte) (buffer[ISO7816.OFFSET_CLA] & ~CLA_CHAINING) != AppletInstructions.SECURE_BITCOIN_WALLET_CLA) {
 			ISOException.throwIt(StatusCodes.CLA_NOT_SUPPORTED);
 		}
 
-		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_SETUP) {
-			setup(apdu, buffer);
+		// Any instruction drops a pending backup
+		keyStore.resetBackup();
+
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_SIGN_SHA256_HASH_BATCH) {
+			// The batch receives chained hashes itself
+			checkUnbufferedCommand();
+
+			signSHA256HashBatch(apdu, buffer);
+			return;
+		}
+
+		// Any other instruction drops a pending batch
+		signatureBatch.reset();
+
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_RESTORE_KEYS) {
+			// The restore receives the chained parts of the backup itself
+			checkUnbufferedCommand();
+
+			restoreKeys(apdu, buffer);
+			return;
+		}
+
+		// Any other instruction drops a pending restore
+		keyStore.resetRestore();
+
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_ENUMERATE_KEYS) {
+			// The key list is sized to the expected length of the response
+			checkUnbufferedCommand();
+
+			enumerateKeys(apdu, buffer);
 			return;
 		}
 
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_BACKUP_KEYS) {
+			// The backup is streamed with GET RESPONSE
+			checkUnbufferedCommand();
+
+			backupKeys(apdu, buffer);
+			return;
+		}
+
+		byte[] data;
+		short dataOff;
+		short dataLength;
+
+		// The envelope always takes its data from the command buffer, so that
+		// the APDU buffer is free for the responses of the sub-commands
+		if (apdu.isCommandChainingCLA() || commandBuffer.isReceiving()
+				|| buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_ENVELOPE) {
+			if (!commandBuffer.receive(apdu)) {
+				// More chained commands follow
+				return;
+			}
+
+			data = commandBuffer.getBuffer();
+			dataOff = commandBuffer.getDataOffset();
+			dataLength = commandBuffer.getLength();
+
+			if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_ENVELOPE) {
+				envelope(apdu, buffer, data, dataOff, dataLength);
+				return;
+			}
+		} else {
+			// Any other instruction drops a pending response
+			commandBuffer.reset();
+
+			data = buffer;
+			dataLength = receiveData(apdu, buffer);
+			dataOff = apdu.getOffsetCdata();
+		}
+
+		short length = dispatch(buffer, data, dataOff, dataLength);
+
+		if (length > 0) {
+			commandBuffer.send(apdu, buffer, (short) 0, length);
+		}
+	}
+
+	/**
+	 * Checks an instruction, which bypasses the {@link #commandBuffer}. It may
+	 * not be sent in the middle of chained commands and drops a pending
+	 * response.
+	 */
+	private void checkUnbufferedCommand() {
+		if (commandBuffer.isReceiving()) {
+			commandBuffer.reset();
+			ISOException.throwIt(StatusCodes.LAST_COMMAND_EXPECTED);
+		}
+		commandBuffer.reset();
+
+		if (!setupDone) {
+			ISOException.throwIt(StatusCodes.CONDITIONS_NOT_SATISFIED);
+		}
+	}
+
+	/**
+	 * Executes the instruction of the command inside the given APDU buffer.
+	 * The command data has been received before and may be located inside
+	 * another array. The response is written to the beginning of the APDU
+	 * buffer.
+	 * 
+	 * @param buffer The APDU buffer containing the command header
+	 * @param data The array containing the command data
+	 * @param dataOff The offset of the command data
+	 * @param dataLength The length of the command data
+	 * 
+	 * @return The length of the response
+	 */
+	private short dispatch(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_SETUP) {
+			return setup(buffer);
+		}
+
+		if (buffer[ISO7816.OFFSET_INS] == AppletInstructions.INS_GET_STATUS) {
+			return getStatus(buffer);
+		}
+
 		if (!setupDone) {
 			ISOException.throwIt(StatusCodes.CONDITIONS_NOT_SATISFIED);
 		}
@@ -161,44 +572,149 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 		// Check the INS byte
 		switch (buffer[ISO7816.OFFSET_INS]) {
 		case AppletInstructions.INS_UNLOCK:
-			unlock(apdu, buffer);
-			break;
+			return unlock(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_AUTHENTICATE:
-			authenticate(apdu, buffer);
-			break;
+			return authenticate(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_CHANGE_PIN:
-			changePin(apdu, buffer);
-			break;
+			return changePin(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_PIN_VALIDATED:
-			isPinValidated(apdu, buffer);
-			break;
+			return isPinValidated(buffer);
 		case AppletInstructions.INS_SELECT_KEY:
-			selectKey(apdu, buffer);
-			break;
+			return selectKey(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_SIGN_SHA256_HASH:
-			signSHA256Hash(apdu, buffer);
-			break;
+			return signSHA256Hash(buffer, data, dataOff, dataLength);
+		case AppletInstructions.INS_SELECT_KEY_AND_SIGN:
+			return selectKeyAndSign(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_GENERATE_KEY:
-			generateKey(apdu, buffer);
-			break;
+			return generateKey(buffer);
 		case AppletInstructions.INS_IMPORT_PRIVATE_KEY:
-			importPrivateKey(apdu, buffer);
-			break;
+			return importPrivateKey(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_IMPORT_ENCRYPTED_PRIVATE_KEY:
-			importEncryptedPrivateKey(apdu, buffer);
-			break;
+			return importEncryptedPrivateKey(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_GET_PRIVATE_KEY:
-			getPrivateKey(apdu, buffer);
-			break;
+			return getPrivateKey(buffer, data, dataOff, dataLength);
 		case AppletInstructions.INS_DELETE_PRIVATE_KEY:
-			deletePrivateKey(apdu, buffer);
-			break;
+			return deletePrivateKey(buffer, data, dataOff, dataLength);
+		case AppletInstructions.INS_IMPORT_PRIVATE_KEYS:
+			return importPrivateKeys(buffer, data, dataOff, dataLength);
+		case AppletInstructions.INS_FILL_KEY_POOL:
+			return fillKeyPool(buffer);
+		case AppletInstructions.INS_GET_POOLED_KEY:
+			return getPooledKey(buffer);
 		case AppletInstructions.INS_GET_REMAINING_MEMORY:
-			getRemainingMemory(apdu, buffer);
-			break;
+			return getRemainingMemory(buffer);
 		default:
 			ISOException.throwIt(StatusCodes.INS_NOT_SUPPORTED);
 		}
+
+		return 0;
+	}
+
+	/**
+	 * Executes a sequence of instructions in one command. Each sub-command
+	 * is processed like a single command, until one of them fails. The
+	 * status word and the response of each executed sub-command are
+	 * returned.
+	 * 
+	 * A sub-command is only executed, if the command buffer has room left for
+	 * a response of the maximum size. Otherwise it is answered with
+	 * NOT_ENOUGH_WORKING_MEMORY without being executed and the envelope
+	 * stops, so that a reported failure never hides an executed command.
+	 * 
+	 * <pre>
+	 * INS:	0xC2
+	 * P1:	0x00
+	 * P2:	0x00
+	 * Lc:	total length
+	 * Data:	[INS + P1 + P2 + length + data] for each sub-command
+	 * 
+	 * Return: [SW1 + SW2 + length + response] for each executed sub-command
+	 * </pre>
+	 */
+	private void envelope(APDU apdu, byte[] buffer, byte[] data,
+			short dataOff, short dataLength) {
+		if (buffer[ISO7816.OFFSET_P1] != 0x00
+				|| buffer[ISO7816.OFFSET_P2] != 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		short end = (short) (dataOff + dataLength);
+
+		// Check the structure before executing anything
+		short offset = dataOff;
+		while (offset < end) {
+			if ((short) (end - offset) < ENVELOPE_HEADER_SIZE) {
+				ISOException.throwIt(StatusCodes.DATA_INVALID);
+			}
+			offset = (short) (offset + ENVELOPE_HEADER_SIZE + (short) (data[(short) (offset + 3)] & 0xFF));
+		}
+
+		if (offset != end) {
+			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		}
+
+		// The responses are collected behind the sub-commands. The header of
+		// the response to a sub-command, which is not executed for lack of
+		// room, is kept free at the end.
+		short responseEnd = (short) (dataOff + commandBuffer.getCapacity() - ENVELOPE_RESPONSE_HEADER_SIZE);
+		short responseOff = end;
+
+		if (responseEnd < end) {
+			ISOException.throwIt(StatusCodes.NOT_ENOUGH_WORKING_MEMORY);
+		}
+
+		offset = dataOff;
+		while (offset < end) {
+			if ((short) (responseEnd - responseOff) < (short) (ENVELOPE_RESPONSE_HEADER_SIZE + ENVELOPE_MAX_RESPONSE_SIZE)) {
+				Util.setShort(data, responseOff,
+						StatusCodes.NOT_ENOUGH_WORKING_MEMORY);
+				data[(short) (responseOff + 2)] = 0;
+				responseOff = (short) (responseOff + ENVELOPE_RESPONSE_HEADER_SIZE);
+				break;
+			}
+
+			buffer[ISO7816.OFFSET_INS] = data[offset];
+			buffer[ISO7816.OFFSET_P1] = data[(short) (offset + 1)];
+			buffer[ISO7816.OFFSET_P2] = data[(short) (offset + 2)];
+			short length = (short) (data[(short) (offset + 3)] & 0xFF);
+			offset = (short) (offset + ENVELOPE_HEADER_SIZE);
+
+			short status = ISO7816.SW_NO_ERROR;
+			short responseLength = 0;
+			try {
+				responseLength = dispatch(buffer, data, offset, length);
+			} catch (ISOException e) {
+				status = e.getReason();
+			} catch (CardRuntimeException e) {
+				status = ISO7816.SW_UNKNOWN;
+			}
+
+			if (status != ISO7816.SW_NO_ERROR
+					&& JCSystem.getTransactionDepth() != 0) {
+				JCSystem.abortTransaction();
+			}
+
+			// No instruction answers a sub-command of at most 255 bytes with
+			// more, the status is kept in any case
+			if (responseLength > ENVELOPE_MAX_RESPONSE_SIZE) {
+				responseLength = ENVELOPE_MAX_RESPONSE_SIZE;
+			}
+
+			Util.setShort(data, responseOff, status);
+			data[(short) (responseOff + 2)] = (byte) responseLength;
+			Util.arrayCopyNonAtomic(buffer, (short) 0, data,
+					(short) (responseOff + ENVELOPE_RESPONSE_HEADER_SIZE),
+					responseLength);
+			responseOff = (short) (responseOff + ENVELOPE_RESPONSE_HEADER_SIZE + responseLength);
+
+			if (status != ISO7816.SW_NO_ERROR) {
+				break;
+			}
+
+			offset = (short) (offset + length);
+		}
+
+		commandBuffer.send(apdu, data, end, (short) (responseOff - end));
 	}
 
 	/**
@@ -212,7 +728,7 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * 
 	 * Return: The generated PUK
 	 */
-	private void setup(APDU apdu, byte[] buffer) {
+	private short setup(byte[] buffer) {
 		if (setupDone) {
 			ISOException.throwIt(StatusCodes.COMMAND_NOT_ALLOWED);
 		}
@@ -223,7 +739,7 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 
 		setupDone = true;
 
-		apdu.setOutgoingAndSend((short) 0, PUK_SIZE);
+		return PUK_SIZE;
 	}
 
 	/**
@@ -237,25 +753,28 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * Data:	PUK and new PIN
 	 * </pre>
 	 */
-	private void unlock(APDU apdu, byte[] buffer) {
+	private short unlock(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
 		if (buffer[ISO7816.OFFSET_P1] != PUK_SIZE
 				|| buffer[ISO7816.OFFSET_P2] < PIN_MINIMUM_SIZE
 				|| buffer[ISO7816.OFFSET_P2] > PIN_MAXIMUM_SIZE) {
 			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
+		if (dataLength == 0) {
 			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		if (!puk.check(buffer, ISO7816.OFFSET_CDATA, buffer[ISO7816.OFFSET_P1])) {
+		if (!puk.check(data, dataOff, buffer[ISO7816.OFFSET_P1])) {
 			ISOException.throwIt(StatusCodes.AUTH_FAILED);
 		} else {
 			pin.resetAndUnblock();
 			puk.reset();
-			short newPinOffset = (short) (ISO7816.OFFSET_CDATA + buffer[ISO7816.OFFSET_P1]);
-			pin.update(buffer, newPinOffset, buffer[ISO7816.OFFSET_P2]);
+			short newPinOffset = (short) (dataOff + buffer[ISO7816.OFFSET_P1]);
+			pin.update(data, newPinOffset, buffer[ISO7816.OFFSET_P2]);
 		}
+
+		return 0;
 	}
 
 	/**
@@ -269,7 +788,8 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * Data:	PIN itself
 	 * </p>
 	 */
-	private void authenticate(APDU apdu, byte[] buffer) {
+	private short authenticate(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
 		pin.reset();
 
 		if (buffer[ISO7816.OFFSET_P1] != 0x00
@@ -281,13 +801,16 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 			ISOException.throwIt(StatusCodes.CARD_LOCKED);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
+		if (dataLength == 0) {
 			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		if (!pin.check(buffer, ISO7816.OFFSET_CDATA, buffer[ISO7816.OFFSET_LC])) {
+		if (dataLength > PIN_MAXIMUM_SIZE
+				|| !pin.check(data, dataOff, (byte) dataLength)) {
 			ISOException.throwIt(StatusCodes.AUTH_FAILED);
 		}
+
+		return 0;
 	}
 
 	/**
@@ -301,23 +824,20 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * Data:	PIN itself
 	 * </pre>
 	 */
-	private void changePin(APDU apdu, byte[] buffer) {
+	private short changePin(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		byte pin_size = buffer[ISO7816.OFFSET_LC];
-
-		if (pin_size < PIN_MINIMUM_SIZE || pin_size > PIN_MAXIMUM_SIZE) {
+		if (dataLength < PIN_MINIMUM_SIZE || dataLength > PIN_MAXIMUM_SIZE) {
 			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
-			ISOException.throwIt(StatusCodes.DATA_INVALID);
-		}
-
-		pin.update(buffer, (short) (ISO7816.OFFSET_CDATA), pin_size);
+		pin.update(data, dataOff, (byte) dataLength);
 		pin.reset();
+
+		return 0;
 	}
 
 	/**
@@ -331,10 +851,10 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * Return: 0x01 if the PIN is validated, 0x00 otherwise.
 	 * </pre>
 	 */
-	private void isPinValidated(APDU apdu, byte[] buffer) {
+	private short isPinValidated(byte[] buffer) {
 		buffer[0] = pin.isValidated() ? (byte) 1 : (byte) 0;
 
-		apdu.setOutgoingAndSend((short) 0, (short) 1);
+		return 1;
 	}
 
 	/**
@@ -343,23 +863,82 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * 
 	 * <pre>
 	 * INS:	0x0C 
-	 * P1:	0x00 
+	 * P1:	0x00 for an address, 0x80 for a handle
 	 * P2:	0x00 
-	 * Lc:	length of address in bytes
-	 * Data:	bitcoin address
+	 * Lc:	length of address or handle in bytes
+	 * Data:	bitcoin address or key handle
 	 * </pre>
 	 */
-	private void selectKey(APDU apdu, byte[] buffer) {
+	private short selectKey(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
+		if (checkKeyReference(buffer, dataLength)) {
+			keyStore.selectKeyForSignature(data, dataOff);
+		} else {
+			keyStore.selectKeyForSignature(data, dataOff, dataLength);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Checks the key reference of a key instruction. The key is referenced by
+	 * its Bitcoin address or, if P1 is {@link AppletInstructions#P1_KEY_HANDLE},
+	 * by its handle.
+	 * 
+	 * @param buffer The APDU buffer containing the command header
+	 * @param length The length of the key reference
+	 * 
+	 * @return True, if the key is referenced by its handle
+	 */
+	private boolean checkKeyReference(byte[] buffer, short length) {
+		boolean isHandle = buffer[ISO7816.OFFSET_P1] == AppletInstructions.P1_KEY_HANDLE;
+
+		if (!isHandle && buffer[ISO7816.OFFSET_P1] != 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		if (length == 0) {
 			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		keyStore.selectKeyForSignature(buffer, ISO7816.OFFSET_CDATA,
-				buffer[ISO7816.OFFSET_LC]);
+		if (isHandle && length != KeyStore.HANDLE_SIZE) {
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		if (!isHandle && length > addressSize) {
+			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
+		}
+
+		return isHandle;
+	}
+
+	/**
+	 * Receives the whole data of the command into the APDU buffer, beginning
+	 * at {@link APDU#getOffsetCdata()}. The data of an extended length
+	 * command may arrive in several parts.
+	 * 
+	 * @return The length of the received data
+	 */
+	private short receiveData(APDU apdu, byte[] buffer) {
+		short length = apdu.setIncomingAndReceive();
+		short offset = apdu.getOffsetCdata();
+		short remaining = (short) (apdu.getIncomingLength() - length);
+
+		while (remaining > 0) {
+			if ((short) (offset + length) == buffer.length) {
+				ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+			}
+
+			short received = apdu.receiveBytes((short) (offset + length));
+			length = (short) (length + received);
+			remaining = (short) (remaining - received);
+		}
+
+		return length;
 	}
 
 	/**
@@ -376,7 +955,8 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * Return: The signature of the given hash.
 	 * </pre>
 	 */
-	private void signSHA256Hash(APDU apdu, byte[] buffer) {
+	private short signSHA256Hash(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
@@ -386,46 +966,265 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
 		}
 
-		if ((buffer[ISO7816.OFFSET_LC] & 0xFF) != 0x20) {
+		if (dataLength != SHA256_HASH_SIZE) {
 			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
 		}
 
-		if (apdu.setIncomingAndReceive() != (short) sha256TransactionHash.length) {
-			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		Util.arrayCopyNonAtomic(data, dataOff, workingMemory.getBuffer(),
+				sha256TransactionHashOff, SHA256_HASH_SIZE);
+
+		return keyStore.signMessage(workingMemory.getBuffer(),
+				sha256TransactionHashOff, SHA256_HASH_SIZE, buffer, (short) 0);
+	}
+
+	/**
+	 * Signs several SHA256 hashes of Bitcoin transaction inputs with the
+	 * private key of the previously selected key, see: {@link #selectKey()}.
+	 * If the hashes do not fit into one command, they can be sent in several
+	 * chained commands (CLA 0xB0) or in one extended length command. The
+	 * signatures are returned in the order of the hashes, each prefixed with
+	 * its length in one byte. If not all signatures fit into the response, the
+	 * status word 0x61XX is returned and the remaining signatures have to be
+	 * fetched with GET RESPONSE.
+	 * 
+	 * <pre>
+	 * INS:	0x10
+	 * P1:	0x00
+	 * P2:	0x00
+	 * Lc:	Length of the hashes, a multiple of 32 bytes
+	 * Data:	SHA256 hashes of the Bitcoin transaction inputs
+	 * 
+	 * Return: [length + signature] for each hash
+	 * </pre>
+	 */
+	private void signSHA256HashBatch(APDU apdu, byte[] buffer) {
+		if (!pin.isValidated()) {
+			signatureBatch.reset();
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		if (buffer[ISO7816.OFFSET_P1] != 0x00
+				|| buffer[ISO7816.OFFSET_P2] != 0x00) {
+			signatureBatch.reset();
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		boolean moreCommands = apdu.isCommandChainingCLA();
+		short length = apdu.setIncomingAndReceive();
+		short offset = apdu.getOffsetCdata();
+		short remaining = (short) (apdu.getIncomingLength() - length);
+
+		// The hashes are passed on part by part, so that the command data
+		// does not have to fit into the APDU buffer
+		signatureBatch.addHashes(buffer, offset, length, remaining > 0
+				|| moreCommands);
+
+		while (remaining > 0) {
+			length = apdu.receiveBytes(offset);
+			remaining = (short) (remaining - length);
+
+			signatureBatch.addHashes(buffer, offset, length, remaining > 0
+					|| moreCommands);
+		}
+
+		if (signatureBatch.hasPendingSignatures()) {
+			sendSignatures(apdu, buffer);
+		}
+	}
+
+	/**
+	 * Selects the key specified by the given address and signs the given
+	 * SHA256 hash with it in one instruction. The key stays selected for
+	 * following sign instructions, see: {@link #selectKey()} and
+	 * {@link #signSHA256Hash()}.
+	 * 
+	 * <pre>
+	 * INS:	0x12
+	 * P1:	length of address in bytes, 0x80 for a handle
+	 * P2:	0x00
+	 * Lc:	total length (length of address or handle + 32)
+	 * Data:	[address or handle + SHA256 hash of the Bitcoin transaction]
+	 * 
+	 * Return: The signature of the given hash.
+	 * </pre>
+	 */
+	private short selectKeyAndSign(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
+		if (!pin.isValidated()) {
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		boolean isHandle = buffer[ISO7816.OFFSET_P1] == AppletInstructions.P1_KEY_HANDLE;
+		short referenceLength = isHandle ? KeyStore.HANDLE_SIZE
+				: (short) (buffer[ISO7816.OFFSET_P1] & 0xFF);
+
+		if (referenceLength > addressSize) {
+			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
+		}
+
+		if (buffer[ISO7816.OFFSET_P2] != 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		if (dataLength != (short) (referenceLength + SHA256_HASH_SIZE)) {
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		if (isHandle) {
+			keyStore.selectKeyForSignature(data, dataOff);
+		} else {
+			keyStore.selectKeyForSignature(data, dataOff, referenceLength);
+		}
+
+		return keyStore.signMessage(data, (short) (dataOff + referenceLength),
+				SHA256_HASH_SIZE, buffer, (short) 0);
+	}
+
+	/**
+	 * Returns the remaining response data of the previous instruction.
+	 * 
+	 * <pre>
+	 * CLA:	0x00 or 0xA0
+	 * INS:	0xC0
+	 * P1:	0x00
+	 * P2:	0x00
+	 * Le:	Maximum length of the response
+	 * 
+	 * Return: The next part of the response
+	 * </pre>
+	 */
+	private void getResponse(APDU apdu, byte[] buffer) {
+		if (buffer[ISO7816.OFFSET_CLA] != ISO7816.CLA_ISO7816
+				&& buffer[ISO7816.OFFSET_CLA] != AppletInstructions.SECURE_BITCOIN_WALLET_CLA) {
+			ISOException.throwIt(StatusCodes.CLA_NOT_SUPPORTED);
 		}
 
-		Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, sha256TransactionHash,
-				(short) 0, buffer[ISO7816.OFFSET_LC]);
+		if (signatureBatch.hasPendingSignatures()) {
+			sendSignatures(apdu, buffer);
+		} else if (keyStore.hasPendingBackup()) {
+			sendBackup(apdu, buffer);
+		} else {
+			commandBuffer.sendNext(apdu);
+		}
+	}
+
+	/**
+	 * Sends as many signatures of the {@link #signatureBatch} as fit into the
+	 * response. The length of an extended length response is only limited by
+	 * the APDU buffer. Signals with 0x61XX, if signatures are left.
+	 */
+	private void sendSignatures(APDU apdu, byte[] buffer) {
+		short maxLength = apdu.setOutgoing();
+		if (maxLength > buffer.length) {
+			maxLength = (short) buffer.length;
+		}
+
+		short length = signatureBatch.signNext(buffer, (short) 0, maxLength);
 
-		apdu.setOutgoingAndSend((short) 0, keyStore.signMessage(buffer,
-				ISO7816.OFFSET_CDATA, buffer[ISO7816.OFFSET_LC], buffer,
-				(short) 0));
+		apdu.setOutgoingLength(length);
+		apdu.sendBytes((short) 0, length);
+
+		if (signatureBatch.hasPendingSignatures()) {
+			ISOException.throwIt((short) (StatusCodes.BYTES_REMAINING | (signatureBatch
+					.getPendingLength() & 0xFF)));
+		}
 	}
 
 	/**
 	 * Generates a new private and public keypair. The private key is stored
-	 * inside the keystore. The public key is returned.
+	 * inside the keystore. The public key, the address and the handle of the
+	 * key are returned, each preceded by its length. The address is returned
+	 * in the format of the keystore, so that the host does not have to derive
+	 * it itself.
+	 *
+	 * The compressed public key (33 bytes) halves the response and the
+	 * address derived from it leads to smaller transactions.
 	 *
 	 * <pre>
 	 * INS:	0x20
-	 * P1:	0x00
+	 * P1:	0x00 for an uncompressed, 0x01 for a compressed public key
 	 * P2:	0x00
 	 * 
-	 * Return: The generated public key
+	 * Return: [public key length (1 byte) + public key + address length (1 byte)
+	 *          + address + handle length (1 byte) + handle]
 	 * </pre>
 	 */
-	private void generateKey(APDU apdu, byte[] buffer) {
+	private short generateKey(byte[] buffer) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		if ((buffer[ISO7816.OFFSET_P1] & 0xFF) != 0x00
+		boolean compressed = buffer[ISO7816.OFFSET_P1] == AppletInstructions.P1_COMPRESSED;
+
+		if ((!compressed && buffer[ISO7816.OFFSET_P1] != 0x00)
 				|| (buffer[ISO7816.OFFSET_P2] & 0xFF) != 0x00) {
 			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
 		}
 
-		apdu.setOutgoingAndSend((short) 0,
-				keyStore.generateKeyPair(buffer, (short) 0));
+		return keyStore.generateKeyPair(buffer, (short) 0, compressed);
+	}
+
+	/**
+	 * Generates keys in advance and adds them to the key pool, so that
+	 * handing out a new key does not have to wait for the key generation.
+	 * Meant to be sent, while the wallet is idle. Fewer keys are generated,
+	 * if the store has not enough free slots.
+	 *
+	 * <pre>
+	 * INS:	0x30
+	 * P1:	0x00 for addresses of uncompressed, 0x01 of compressed public keys
+	 * P2:	number of keys to generate
+	 * 
+	 * Return: The number of keys in the key pool (2 bytes)
+	 * </pre>
+	 */
+	private short fillKeyPool(byte[] buffer) {
+		if (!pin.isValidated()) {
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		boolean compressed = buffer[ISO7816.OFFSET_P1] == AppletInstructions.P1_COMPRESSED;
+
+		if ((!compressed && buffer[ISO7816.OFFSET_P1] != 0x00)
+				|| buffer[ISO7816.OFFSET_P2] == 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		Util.setShort(buffer, (short) 0, keyStore.fillKeyPool(
+				(short) (buffer[ISO7816.OFFSET_P2] & 0xFF), compressed));
+
+		return 2;
+	}
+
+	/**
+	 * Hands out the next key of the key pool. The key is removed from the
+	 * pool and stays in the keystore like a generated key. The response
+	 * starts like the one of the generate key instruction, but the public key
+	 * is always compressed. The last byte tells, from which form of the public
+	 * key the address is derived.
+	 *
+	 * <pre>
+	 * INS:	0x32
+	 * P1:	0x00
+	 * P2:	0x00
+	 * 
+	 * Return: [public key length (1 byte) + compressed public key
+	 *          + address length (1 byte) + address + handle length (1 byte)
+	 *          + handle + 0x00 for an address of the uncompressed, 0x01 of the
+	 *          compressed public key]
+	 * </pre>
+	 */
+	private short getPooledKey(byte[] buffer) {
+		if (!pin.isValidated()) {
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		if (buffer[ISO7816.OFFSET_P1] != 0x00
+				|| buffer[ISO7816.OFFSET_P2] != 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		return keyStore.getPooledKey(buffer, (short) 0);
 	}
 
 	/**
@@ -437,15 +1236,18 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * P2:	length of private key in bytes
 	 * Lc:	total length
 	 * Data:	[address + privateKey]
+	 * 
+	 * Return: The handle of the key
 	 * </pre>
 	 * 
 	 */
-	private void importPrivateKey(APDU apdu, byte[] buffer) {
+	private short importPrivateKey(byte[] buffer, byte[] data,
+			short dataOff, short dataLength) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		if (((short) (buffer[ISO7816.OFFSET_P1] & 0xFF)) > ((short) ADDRESS_SIZE & 0xFF)) {
+		if (((short) (buffer[ISO7816.OFFSET_P1] & 0xFF)) > addressSize) {
 			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
 		}
 		
@@ -453,14 +1255,15 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 			ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
+		if (dataLength == 0) {
 			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		keyStore.importPrivateKey(buffer, (short) ISO7816.OFFSET_CDATA,
-				(short) buffer[ISO7816.OFFSET_P1],
-				(short) (ISO7816.OFFSET_CDATA + buffer[ISO7816.OFFSET_P1]),
-				(short) buffer[ISO7816.OFFSET_P2]);
+		short addressLength = (short) (buffer[ISO7816.OFFSET_P1] & 0xFF);
+
+		return keyStore.importPrivateKey(data, dataOff, addressLength,
+				(short) (dataOff + addressLength),
+				(short) buffer[ISO7816.OFFSET_P2], buffer, (short) 0);
 	}
 	
 	/**
@@ -472,15 +1275,18 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * P2:	length of encrypted private key in bytes
 	 * Lc:	total length
 	 * Data:	[address + encrypted privateKey]
+	 * 
+	 * Return: The handle of the key
 	 * </pre>
 	 * 
 	 */
-	private void importEncryptedPrivateKey(APDU apdu, byte[] buffer) {
+	private short importEncryptedPrivateKey(byte[] buffer, byte[] data,
+			short dataOff, short dataLength) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		if (((short) (buffer[ISO7816.OFFSET_P1] & 0xFF)) > ((short) ADDRESS_SIZE & 0xFF)) {
+		if (((short) (buffer[ISO7816.OFFSET_P1] & 0xFF)) > addressSize) {
 			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
 		}
 		
@@ -488,45 +1294,195 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 			ISOException.throwIt(StatusCodes.WRONG_PRIVATE_KEY_LENGTH);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
+		if (dataLength == 0) {
 			ISOException.throwIt(StatusCodes.DATA_INVALID);
 		}
 
-		keyStore.importEncryptedPrivateKey(buffer, (short) ISO7816.OFFSET_CDATA,
-				(short) buffer[ISO7816.OFFSET_P1],
-				(short) (ISO7816.OFFSET_CDATA + buffer[ISO7816.OFFSET_P1]),
-				(short) buffer[ISO7816.OFFSET_P2]);
+		short addressLength = (short) (buffer[ISO7816.OFFSET_P1] & 0xFF);
+
+		return keyStore.importEncryptedPrivateKey(data, dataOff,
+				addressLength, (short) (dataOff + addressLength),
+				(short) buffer[ISO7816.OFFSET_P2], buffer, (short) 0);
 	}
 
 	/**
-	 * Gets the encrypted private key.
+	 * Stores a list of private keys or encrypted private keys in the EEPROM.
+	 * The keys are stored in one transaction, as long as the commit capacity
+	 * allows. Keys, which cannot be imported, are skipped. The list may be
+	 * sent in an extended length command or in chained commands. Chained
+	 * commands are limited by the command buffer, which holds 7 records with
+	 * Base58 addresses in the default configuration.
+	 * </br>
+	 * If storing fails after keys have been committed, only the status of the
+	 * committed keys and of the first key, which has not been imported, is
+	 * returned, see
+	 * {@link KeyStore#importPrivateKeys(byte[], short, short, byte, byte[], short)}.
 	 * 
 	 * <pre>
-	 * INS:	0x26
+	 * INS:	0x2A
+	 * P1:	0x00 for private keys, 0x01 for encrypted private keys
+	 * P2:	0x00
+	 * Lc:	total length
+	 * Data:	[address length + key length + address + key] for each key
+	 * 
+	 * Return: [SW1 + SW2 + handle] for each key, handle 0x0000 if the key
+	 *         has not been imported
+	 * </pre>
+	 */
+	private short importPrivateKeys(byte[] buffer, byte[] data,
+			short dataOff, short dataLength) {
+		if (!pin.isValidated()) {
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		boolean encrypted = buffer[ISO7816.OFFSET_P1] == AppletInstructions.P1_ENCRYPTED_KEYS;
+
+		if ((!encrypted && buffer[ISO7816.OFFSET_P1] != 0x00)
+				|| buffer[ISO7816.OFFSET_P2] != 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		// The status of a key is shorter than its record, so it may overwrite
+		// the records in the APDU buffer
+		return keyStore.importPrivateKeys(data, dataOff, dataLength,
+				encrypted ? KeyStore.RECORDS_ENCRYPTED_KEYS
+						: KeyStore.RECORDS_PRIVATE_KEYS, buffer, (short) 0);
+	}
+
+	/**
+	 * Exports a backup of all keys. The private keys are encrypted with the
+	 * key of the card, so the backup can only be restored on this card. The
+	 * backup is returned in parts, as long as it exceeds the expected length
+	 * of the response, and the remaining parts are fetched with GET
+	 * RESPONSE. Any other instruction drops the backup.
+	 * 
+	 * <pre>
+	 * INS:	0x2C
 	 * P1:	0x00
 	 * P2:	0x00
-	 * Lc:	Length of Bitcoin address
-	 * Data:	Bitcoin address for which the encrypted key should be fetched.
 	 * 
-	 * Return: The encrypted private key for the given address
+	 * Return: [version + address format]
+	 *         [address length + key length + address + encrypted key] for each key
+	 *         [integrity tag (16)]
 	 * </pre>
 	 */
-	private void getPrivateKey(APDU apdu, byte[] buffer) {
+	private void backupKeys(APDU apdu, byte[] buffer) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
-			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		if (buffer[ISO7816.OFFSET_P1] != 0x00
+				|| buffer[ISO7816.OFFSET_P2] != 0x00) {
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
 		}
 
-		if (((short) (buffer[ISO7816.OFFSET_LC] & 0xFF)) > ((short) ADDRESS_SIZE & 0xFF)) {
-			ISOException.throwIt(StatusCodes.WRONG_ADDRESS_LENGTH);
+		keyStore.startBackup();
+
+		sendBackup(apdu, buffer);
+	}
+
+	/**
+	 * Sends as much of the pending backup as fits into the response. Signals
+	 * with 0x61XX, if a part of the backup is left.
+	 */
+	private void sendBackup(APDU apdu, byte[] buffer) {
+		short maxLength = apdu.setOutgoing();
+		if (maxLength > buffer.length) {
+			maxLength = (short) buffer.length;
+		}
+
+		short length = keyStore.exportBackup(buffer, (short) 0, maxLength);
+
+		apdu.setOutgoingLength(length);
+		apdu.sendBytes((short) 0, length);
+
+		if (keyStore.hasPendingBackup()) {
+			short remaining = keyStore.getPendingBackupLength();
+			ISOException.throwIt((short) (StatusCodes.BYTES_REMAINING | (remaining > 0xFF ? 0
+					: remaining)));
 		}
+	}
 
-		apdu.setOutgoingAndSend((short) 0, keyStore.getEncryptedPrivateKey(
-				buffer, (short) ISO7816.OFFSET_CDATA, (short) buffer[ISO7816.OFFSET_LC],
-				buffer, (short) 0));
+	/**
+	 * Restores the keys of a backup exported with the backup keys
+	 * instruction. The backup may be sent in an extended length command or
+	 * in chained commands and is passed on to the key store part by part, so
+	 * it does not have to fit into the command buffer. The keys are stored
+	 * like with the import private keys instruction, but only after the
+	 * integrity tag of the complete backup has been checked. The backup is
+	 * rejected, if its tag is invalid. Any other instruction drops the
+	 * backup.
+	 * 
+	 * <pre>
+	 * INS:	0x2E
+	 * P1:	0x00
+	 * P2:	0x00
+	 * Lc:	total length
+	 * Data:	The backup
+	 * 
+	 * Return: [SW1 + SW2 + handle] for each key, handle 0x0000 if the key
+	 *         has not been imported
+	 * </pre>
+	 */
+	private void restoreKeys(APDU apdu, byte[] buffer) {
+		if (!pin.isValidated()) {
+			keyStore.resetRestore();
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		if (buffer[ISO7816.OFFSET_P1] != 0x00
+				|| buffer[ISO7816.OFFSET_P2] != 0x00) {
+			keyStore.resetRestore();
+			ISOException.throwIt(StatusCodes.INCORRECT_P1P2);
+		}
+
+		boolean moreCommands = apdu.isCommandChainingCLA();
+		short length = apdu.setIncomingAndReceive();
+		short offset = apdu.getOffsetCdata();
+		short remaining = (short) (apdu.getIncomingLength() - length);
+
+		short statusLength = keyStore.restoreBackup(buffer, offset, length,
+				remaining > 0 || moreCommands, buffer, (short) 0);
+
+		while (remaining > 0) {
+			length = apdu.receiveBytes(offset);
+			remaining = (short) (remaining - length);
+
+			statusLength = keyStore.restoreBackup(buffer, offset, length,
+					remaining > 0 || moreCommands, buffer, (short) 0);
+		}
+
+		if (statusLength > 0) {
+			commandBuffer.send(apdu, buffer, (short) 0, statusLength);
+		}
+	}
+
+	/**
+	 * Gets the encrypted private key.
+	 * 
+	 * <pre>
+	 * INS:	0x26
+	 * P1:	0x00 for an address, 0x80 for a handle
+	 * P2:	0x00
+	 * Lc:	Length of Bitcoin address or handle
+	 * Data:	Bitcoin address or handle for which the encrypted key should be fetched.
+	 * 
+	 * Return: The encrypted private key for the given address
+	 * </pre>
+	 */
+	private short getPrivateKey(byte[] buffer, byte[] data, short dataOff,
+			short dataLength) {
+		if (!pin.isValidated()) {
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		if (checkKeyReference(buffer, dataLength)) {
+			return keyStore.getEncryptedPrivateKey(data, dataOff, buffer,
+					(short) 0);
+		}
+
+		return keyStore.getEncryptedPrivateKey(data, dataOff, dataLength,
+				buffer, (short) 0);
 	}
 
 	/**
@@ -534,23 +1490,25 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * 
 	 * <pre>
 	 * INS:	0x28
-	 * P1:	0x00
+	 * P1:	0x00 for an address, 0x80 for a handle
 	 * P2:	0x00
-	 * Lc:	Length of address
-	 * Data:	Address for which the private key should be deleted.
+	 * Lc:	Length of address or handle
+	 * Data:	Address or handle for which the private key should be deleted.
 	 * </pre>
 	 */
-	private void deletePrivateKey(APDU apdu, byte[] buffer) {
+	private short deletePrivateKey(byte[] buffer, byte[] data,
+			short dataOff, short dataLength) {
 		if (!pin.isValidated()) {
 			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
 		}
 
-		if (apdu.setIncomingAndReceive() == 0) {
-			ISOException.throwIt(StatusCodes.DATA_INVALID);
+		if (checkKeyReference(buffer, dataLength)) {
+			keyStore.deletePrivateKey(data, dataOff);
+		} else {
+			keyStore.deletePrivateKey(data, dataOff, dataLength);
 		}
 
-		keyStore.deletePrivateKey(buffer, ISO7816.OFFSET_CDATA,
-				buffer[ISO7816.OFFSET_LC]);
+		return 0;
 	}
 
 	/**
@@ -565,9 +1523,116 @@ public class SecureBitcoinWalletJavaCardApplet extends Applet {
 	 * Return: The remaining memory in keys.
 	 * </pre>
 	 */
-	private void getRemainingMemory(APDU apdu, byte[] buffer) {
+	private short getRemainingMemory(byte[] buffer) {
 		Util.setShort(buffer, (short) 0, keyStore.getNumberOfKeysRemaining());
 
-		apdu.setOutgoingAndSend((short) 0, (short) 2);
+		return 2;
+	}
+
+	/**
+	 * Returns the status of the applet as a list of TLVs with fixed layout.
+	 * Allowed before the setup.
+	 * 
+	 * <pre>
+	 * INS:	0x42
+	 * P1:	0x00
+	 * P2:	0x00
+	 * 
+	 * Return: 0x81 0x01 setup done (0x01 or 0x00)
+	 *         0x82 0x01 PIN validated (0x01 or 0x00)
+	 *         0x83 0x01 remaining PIN tries
+	 *         0x84 0x01 remaining PUK tries
+	 *         0x85 0x02 used key slots
+	 *         0x86 0x02 free key slots
+	 *         0x87 0x01 selected key slot (0xFF if none)
+	 *         0x88 0x02 applet version
+	 *         0x89 0x02 keys in the key pool
+	 * </pre>
+	 */
+	private short getStatus(byte[] buffer) {
+		short offset = 0;
+
+		offset = setStatusValue(buffer, offset, STATUS_TAG_SETUP_DONE,
+				setupDone ? (byte) 1 : (byte) 0);
+		offset = setStatusValue(buffer, offset, STATUS_TAG_PIN_VALIDATED,
+				pin.isValidated() ? (byte) 1 : (byte) 0);
+		offset = setStatusValue(buffer, offset, STATUS_TAG_PIN_TRIES,
+				pin.getTriesRemaining());
+		offset = setStatusValue(buffer, offset, STATUS_TAG_PUK_TRIES,
+				puk.getTriesRemaining());
+		offset = setStatusValue(buffer, offset, STATUS_TAG_USED_SLOTS,
+				keyStore.getNumberOfKeys());
+		offset = setStatusValue(buffer, offset, STATUS_TAG_FREE_SLOTS,
+				keyStore.getNumberOfKeysRemaining());
+		offset = setStatusValue(buffer, offset, STATUS_TAG_SELECTED_SLOT,
+				(byte) keyStore.getSelectedSlot());
+		offset = setStatusValue(buffer, offset, STATUS_TAG_VERSION, VERSION);
+		offset = setStatusValue(buffer, offset, STATUS_TAG_POOLED_KEYS,
+				keyStore.getNumberOfPooledKeys());
+
+		return offset;
+	}
+
+	/**
+	 * Writes a status TLV with a one byte value.
+	 * 
+	 * @return The offset behind the TLV
+	 */
+	private static short setStatusValue(byte[] buffer, short offset, byte tag,
+			byte value) {
+		buffer[offset] = tag;
+		buffer[(short) (offset + 1)] = (byte) 1;
+		buffer[(short) (offset + 2)] = value;
+
+		return (short) (offset + 3);
+	}
+
+	/**
+	 * Writes a status TLV with a two byte value.
+	 * 
+	 * @return The offset behind the TLV
+	 */
+	private static short setStatusValue(byte[] buffer, short offset, byte tag,
+			short value) {
+		buffer[offset] = tag;
+		buffer[(short) (offset + 1)] = (byte) 2;
+
+		return Util.setShort(buffer, (short) (offset + 2), value);
+	}
+
+	/**
+	 * Returns the handles and addresses of the stored keys, as many as fit
+	 * into the expected length of the response. The response begins with the
+	 * slot to continue with in P1 and P2 of the next command, or 0xFFFF if
+	 * all keys have been returned. Addresses are returned in the format, in
+	 * which they are stored: 21 bytes version and RIPEMD-160 hash, or the
+	 * Base58 encoded address.
+	 * 
+	 * <pre>
+	 * INS:	0x44
+	 * P1:	slot to begin with (high byte)
+	 * P2:	slot to begin with (low byte)
+	 * Le:	maximum length of the response
+	 * 
+	 * Return: [next slot (2)] [handle (2) + address length (1) + address]*
+	 * </pre>
+	 */
+	private void enumerateKeys(APDU apdu, byte[] buffer) {
+		if (!pin.isValidated()) {
+			ISOException.throwIt(StatusCodes.PIN_VERIFICATION_REQUIRED);
+		}
+
+		short slot = Util.getShort(buffer, ISO7816.OFFSET_P1);
+
+		short maxLength = apdu.setOutgoing();
+		if (maxLength > buffer.length) {
+			maxLength = (short) buffer.length;
+		}
+
+		short length = keyStore.enumerateKeys(slot, buffer, (short) 0,
+				maxLength);
+
+		apdu.setOutgoingLength(length);
+		apdu.sendBytes((short) 0, length);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,233 @@
+package de.tum.in.securebitcoinwallet.javacardapplet;
+
+import javacard.framework.CardRuntimeException;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * Batch of SHA256 hashes, which are signed with the selected key of a
+ * {@link KeyStore}. The hashes are collected first, possibly over several
+ * chained commands or several parts of one extended length command. The
+ * signatures are created lazily while the response is read, so only the
+ * hashes have to be kept in the {@link WorkingMemory}. Every signature is
+ * prefixed with its length in one byte.
+ */
+public class SignatureBatch {
+	/**
+	 * Size of a SHA256 hash in bytes.
+	 */
+	public static final short HASH_SIZE = 32;
+
+	/**
+	 * Maximum size of one item inside the response: length byte and DER
+	 * encoded ECDSA signature.
+	 */
+	public static final short MAX_ITEM_SIZE = 73;
+
+	/**
+	 * No batch in progress.
+	 */
+	private static final byte STATE_IDLE = (byte) 0x00;
+
+	/**
+	 * Hashes are being received.
+	 */
+	private static final byte STATE_RECEIVING = (byte) 0x01;
+
+	/**
+	 * Signatures are being sent.
+	 */
+	private static final byte STATE_SENDING = (byte) 0x02;
+
+	/**
+	 * Offset of the state inside the state buffer.
+	 */
+	private static final short OFFSET_STATE = 0;
+
+	/**
+	 * Offset of the number of received bytes inside the state buffer.
+	 */
+	private static final short OFFSET_LENGTH = 1;
+
+	/**
+	 * Offset of the index of the next hash to sign inside the state buffer.
+	 */
+	private static final short OFFSET_NEXT = 3;
+
+	/**
+	 * Size of the state buffer, which is reserved in addition to the hashes.
+	 */
+	public static final short STATE_BUFFER_SIZE = 5;
+
+	/**
+	 * The KeyStore used for signing.
+	 */
+	private KeyStore keyStore;
+
+	/**
+	 * Maximum number of hashes in one batch.
+	 */
+	private short capacity;
+
+	/**
+	 * Transient array of the {@link WorkingMemory}.
+	 */
+	private byte[] workingMemory;
+
+	/**
+	 * Offset of the state inside the {@link #workingMemory}. Kept in
+	 * transient memory, so that a batch is dropped on deselect.
+	 */
+	private short stateBufferOff;
+
+	/**
+	 * Offset of the received hashes inside the {@link #workingMemory}.
+	 */
+	private short hashBufferOff;
+
+	/**
+	 * Constructor. Has to be called inside the constructor of the applet to
+	 * reserve needed memory.
+	 * 
+	 * @param capacity The maximum number of hashes in one batch, at least 1
+	 * @param keyStore The KeyStore, whose selected key signs the hashes
+	 * @param memory The working memory, from which the buffers are reserved
+	 */
+	public SignatureBatch(short capacity, KeyStore keyStore,
+			WorkingMemory memory) {
+		if (capacity < 1) {
+			ISOException.throwIt(StatusCodes.NOT_ENOUGH_WORKING_MEMORY);
+		}
+
+		this.capacity = capacity;
+		this.keyStore = keyStore;
+
+		workingMemory = memory.getBuffer();
+		stateBufferOff = memory.reserve(STATE_BUFFER_SIZE);
+		hashBufferOff = memory.reserve((short) (capacity * HASH_SIZE));
+	}
+
+	/**
+	 * Drops the current batch.
+	 */
+	public void reset() {
+		Util.arrayFillNonAtomic(workingMemory, stateBufferOff,
+				STATE_BUFFER_SIZE, (byte) 0);
+	}
+
+	/**
+	 * Appends the given hashes to the batch. Starts a new batch, if no
+	 * hashes are being received. A hash may be split between two calls, but
+	 * the total length has to be a multiple of 32 bytes, when no more hashes
+	 * follow.
+	 * 
+	 * @param src The buffer, in which the hashes can be found
+	 * @param hashOff The offset of the hashes inside the buffer
+	 * @param hashLength The length of the hashes in bytes
+	 * @param moreFollow Whether more hashes follow
+	 */
+	public void addHashes(byte[] src, short hashOff, short hashLength,
+			boolean moreFollow) {
+		if (workingMemory[(short) (stateBufferOff + OFFSET_STATE)] != STATE_RECEIVING) {
+			reset();
+		}
+
+		short length = getShort(OFFSET_LENGTH);
+
+		if (hashLength < 0
+				|| hashLength > (short) ((short) (capacity * HASH_SIZE) - length)) {
+			reset();
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		Util.arrayCopyNonAtomic(src, hashOff, workingMemory,
+				(short) (hashBufferOff + length), hashLength);
+
+		length = (short) (length + hashLength);
+
+		if (!moreFollow && (length == 0 || length % HASH_SIZE != 0)) {
+			reset();
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		setShort(OFFSET_LENGTH, length);
+
+		workingMemory[(short) (stateBufferOff + OFFSET_STATE)] = moreFollow ? STATE_RECEIVING
+				: STATE_SENDING;
+	}
+
+	/**
+	 * Whether signatures are left to be sent.
+	 */
+	public boolean hasPendingSignatures() {
+		return workingMemory[(short) (stateBufferOff + OFFSET_STATE)] == STATE_SENDING;
+	}
+
+	/**
+	 * Returns the maximum length of the pending signatures in bytes, capped
+	 * to 256.
+	 */
+	public short getPendingLength() {
+		short pending = (short) (getShort(OFFSET_LENGTH) / HASH_SIZE - getShort(OFFSET_NEXT));
+		return pending > (short) (256 / MAX_ITEM_SIZE) ? (short) 256
+				: (short) (pending * MAX_ITEM_SIZE);
+	}
+
+	/**
+	 * Signs as many of the pending hashes as fit into the given length and
+	 * writes the length prefixed signatures to the output buffer. Throws
+	 * WRONG_LENGTH, if not even one signature fits, the batch is kept then.
+	 * If signing fails, the batch is dropped.
+	 * 
+	 * @param dest The output buffer
+	 * @param destOff The offset inside the output buffer
+	 * @param maxLength The maximum number of bytes to write
+	 * 
+	 * @return The number of bytes written
+	 */
+	public short signNext(byte[] dest, short destOff, short maxLength) {
+		if (!hasPendingSignatures()) {
+			ISOException.throwIt(StatusCodes.CONDITIONS_NOT_SATISFIED);
+		}
+
+		short count = (short) (getShort(OFFSET_LENGTH) / HASH_SIZE);
+		short next = getShort(OFFSET_NEXT);
+		short offset = destOff;
+		short end = (short) (destOff + maxLength);
+
+		// At least one signature has to fit
+		if (maxLength < MAX_ITEM_SIZE) {
+			ISOException.throwIt(StatusCodes.WRONG_LENGTH);
+		}
+
+		try {
+			while (next < count && (short) (end - offset) >= MAX_ITEM_SIZE) {
+				short length = keyStore.signMessage(workingMemory,
+						(short) (hashBufferOff + (short) (next * HASH_SIZE)),
+						HASH_SIZE, dest, (short) (offset + 1));
+				dest[offset] = (byte) length;
+				offset = (short) (offset + 1 + length);
+				next++;
+			}
+		} catch (CardRuntimeException e) {
+			reset();
+			throw e;
+		}
+
+		if (next == count) {
+			reset();
+		} else {
+			setShort(OFFSET_NEXT, next);
+		}
+
+		return (short) (offset - destOff);
+	}
+
+	private short getShort(short offset) {
+		return Util.getShort(workingMemory, (short) (stateBufferOff + offset));
+	}
+
+	private void setShort(short offset, short value) {
+		Util.setShort(workingMemory, (short) (stateBufferOff + offset), value);
+	}
+}
@@ -94,4 +94,21 @@ public interface StatusCodes {
 	  * No key selected for signature.
 	  */
 	 short NO_KEY_SELECTED = (short) 0x6A01;
+	 
+	 /**
+	  * Not enough transient working memory left to reserve a buffer.
+	  */
+	 short NOT_ENOUGH_WORKING_MEMORY = (short) 0x6581;
+	 
+	 /**
+	  * More response data is available and can be fetched with GET RESPONSE.
+	  * The low byte holds the number of available bytes, 0x00 for 256 or
+	  * more.
+	  */
+	 short BYTES_REMAINING = (short) 0x6100;
+	 
+	 /**
+	  * A chain of commands has been interrupted by another instruction.
+	  */
+	 short LAST_COMMAND_EXPECTED = (short) 0x6883;
 }
@@ -0,0 +1,66 @@
+package de.tum.in.securebitcoinwallet.javacardapplet;
+
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * Transient working memory shared by all users of scratch buffers. The memory
+ * is allocated once as a transient byte array, which is cleared on deselect.
+ * Each user reserves its own, non-overlapping window during installation, so
+ * temporary data is never written to the EEPROM.
+ */
+public class WorkingMemory {
+	/**
+	 * The transient memory.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Number of bytes already reserved.
+	 */
+	private short reserved;
+
+	/**
+	 * Constructor. Allocates the transient memory.
+	 * 
+	 * @param size The size of the working memory in bytes.
+	 */
+	public WorkingMemory(short size) {
+		buffer = JCSystem.makeTransientByteArray(size,
+				JCSystem.CLEAR_ON_DESELECT);
+		reserved = 0;
+	}
+
+	/**
+	 * Reserves a window of the given length. Has to be called during
+	 * installation only.
+	 * 
+	 * @param length The length of the window in bytes
+	 * 
+	 * @return The offset of the window inside {@link #getBuffer()}
+	 */
+	public short reserve(short length) {
+		if (length < 0
+				|| length > (short) ((short) buffer.length - reserved)) {
+			ISOException.throwIt(StatusCodes.NOT_ENOUGH_WORKING_MEMORY);
+		}
+
+		short offset = reserved;
+		reserved = (short) (reserved + length);
+		return offset;
+	}
+
+	/**
+	 * Returns the transient byte array of this working memory.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of bytes, which have not been reserved yet.
+	 */
+	public short getRemaining() {
+		return (short) (buffer.length - reserved);
+	}
+}
@@ -3,6 +3,8 @@ package de.tum.in.securebitcoinwallet.javacardapplet.test;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import javacard.framework.AID;
 
@@ -11,24 +13,88 @@ import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
 
 import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
 import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.AppletTestBase;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.PersistentMemoryMonitor;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.PersistentMemoryMonitor.Snapshot;
 
 public class JavaCardSimulator implements JavaCard {
 	private Simulator simulator;
 
+	private SimulatorRuntime runtime;
+
+	private AID aid;
+
+	/**
+	 * Whether persistent writes are counted for each transmitted command.
+	 */
+	private boolean countPersistentWrites = false;
+
+	/**
+	 * Number of changed persistent bytes per INS.
+	 */
+	private Map<Byte, Integer> persistentWrites = new HashMap<Byte, Integer>();
+
 	public JavaCardSimulator(byte[] appletID) {
-		simulator = new Simulator();
-		AID aid = new AID(appletID, (short) 0, (byte) appletID.length);
-		simulator.installApplet(aid, SecureBitcoinWalletJavaCardApplet.class);
+		runtime = new SimulatorRuntime();
+		simulator = new Simulator(runtime);
+		aid = new AID(appletID, (short) 0, (byte) appletID.length);
+		simulator.installApplet(aid, SimulatorApplet.class);
+		simulator.selectApplet(aid);
+	}
+
+	/**
+	 * Installs the applet with the given application specific install
+	 * parameters. The simulator passes the install data to the applet as it
+	 * is, so it is built in the GlobalPlatform format here: instance AID,
+	 * empty privileges and the parameters, each prefixed by its length.
+	 * 
+	 * @param appletID The AID of the applet
+	 * @param installParameters The application specific install parameters
+	 */
+	public JavaCardSimulator(byte[] appletID, byte[] installParameters) {
+		runtime = new SimulatorRuntime();
+		simulator = new Simulator(runtime);
+		aid = new AID(appletID, (short) 0, (byte) appletID.length);
+
+		byte[] installData = new byte[appletID.length
+				+ installParameters.length + 3];
+		int offset = 0;
+		installData[offset++] = (byte) appletID.length;
+		System.arraycopy(appletID, 0, installData, offset, appletID.length);
+		offset += appletID.length;
+		installData[offset++] = 0;
+		installData[offset++] = (byte) installParameters.length;
+		System.arraycopy(installParameters, 0, installData, offset,
+				installParameters.length);
+
+		simulator.installApplet(aid, SimulatorApplet.class, installData,
+				(short) 0, (byte) installData.length);
 		simulator.selectApplet(aid);
 	}
 
 	@Override
 	public ResponseAPDU transmit(CommandAPDU command) {
-		return new ResponseAPDU(simulator.transmitCommand(command.getBytes()));
+		if (!countPersistentWrites) {
+			return new ResponseAPDU(simulator.transmitCommand(command.getBytes()));
+		}
+
+		Object applet = runtime.lookupApplet(aid).getApplet();
+
+		Snapshot before = PersistentMemoryMonitor.takeSnapshot(applet);
+		ResponseAPDU response = new ResponseAPDU(
+				simulator.transmitCommand(command.getBytes()));
+		Snapshot after = PersistentMemoryMonitor.takeSnapshot(applet);
+
+		byte ins = (byte) command.getINS();
+		Integer count = persistentWrites.get(ins);
+		persistentWrites.put(ins, (count == null ? 0 : count)
+				+ PersistentMemoryMonitor.countChangedBytes(before, after));
+
+		return response;
 	}
 
 	@Override
@@ -48,4 +114,32 @@ public class JavaCardSimulator implements JavaCard {
 		return puk;
 	}
 
+	/**
+	 * Enables or disables counting of persistent writes. Counting compares
+	 * the applet's persistent memory before and after every command, so it
+	 * slows down the simulator.
+	 * 
+	 * @param enabled Whether persistent writes should be counted
+	 */
+	public void setCountPersistentWrites(boolean enabled) {
+		countPersistentWrites = enabled;
+	}
+
+	/**
+	 * Returns the number of persistent bytes changed by all commands with the
+	 * given INS since the last call of {@link #resetPersistentWrites()}.
+	 * 
+	 * @param ins The instruction
+	 */
+	public int getPersistentWrites(byte ins) {
+		Integer count = persistentWrites.get(ins);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Resets the counters of persistent writes.
+	 */
+	public void resetPersistentWrites() {
+		persistentWrites.clear();
+	}
 }
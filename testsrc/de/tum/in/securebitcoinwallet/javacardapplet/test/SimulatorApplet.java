@@ -0,0 +1,57 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test;
+
+import java.lang.reflect.Field;
+
+import javacard.security.Signature;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.signers.DSADigestSigner;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+
+import com.licel.jcardsim.crypto.AsymmetricSignatureImpl;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+
+/**
+ * The applet as installed in the simulator. jcardsim 3.0.4 does not
+ * implement Signature.ALG_ECDSA_SHA_256, so the applet gets an equivalent
+ * engine built from the simulator's ECDSA implementation and BouncyCastle's
+ * SHA256 digest.
+ */
+public class SimulatorApplet extends SecureBitcoinWalletJavaCardApplet {
+	protected SimulatorApplet(byte[] bArray, short bOffset, byte bLength) {
+		super(bArray, bOffset, bLength);
+	}
+
+	/**
+	 * Installs the applet. Called by the simulator.
+	 */
+	public static void install(byte[] bArray, short bOffset, byte bLength) {
+		new SimulatorApplet(bArray, bOffset, bLength);
+	}
+
+	@Override
+	protected Signature createSignature() {
+		return createECDSASHA256Signature();
+	}
+
+	/**
+	 * Builds an ECDSA with SHA256 engine for the simulator.
+	 */
+	public static Signature createECDSASHA256Signature() {
+		AsymmetricSignatureImpl signature = new AsymmetricSignatureImpl(
+				Signature.ALG_ECDSA_SHA);
+
+		try {
+			Field engineField = AsymmetricSignatureImpl.class
+					.getDeclaredField("engine");
+			engineField.setAccessible(true);
+			engineField.set(signature, new DSADigestSigner(new ECDSASigner(),
+					new SHA256Digest()));
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+
+		return signature;
+	}
+}
@@ -4,12 +4,29 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.BackupTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.Base58Test;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.ChainingTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.EnumerateKeysTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.EnvelopeTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.ExtendedLengthTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.ImportKeysTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.InstallParametersTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.KeyPoolTest;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.KeyStoreTest;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.PINTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.PersistentWriteTest;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.Ripemd160Test;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.StatusTest;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.UtilTest;
 
 @RunWith(Suite.class)
-@SuiteClasses({ KeyStoreTest.class, PINTest.class, UtilTest.class})
+@SuiteClasses({ KeyStoreTest.class, PINTest.class, UtilTest.class,
+		PersistentWriteTest.class, InstallParametersTest.class,
+		ExtendedLengthTest.class, ChainingTest.class, EnvelopeTest.class,
+		StatusTest.class, EnumerateKeysTest.class, ImportKeysTest.class,
+		BackupTest.class, KeyPoolTest.class, Ripemd160Test.class,
+		Base58Test.class })
 public class TestApplet {
 
 }
@@ -0,0 +1,85 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.KeyStore;
+import de.tum.in.securebitcoinwallet.javacardapplet.WorkingMemory;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.SimulatorApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Measures the latency of address lookups inside the {@link KeyStore} for
+ * different store sizes. Runs on the simulator only.
+ */
+public class AddressLookupBenchmark {
+	/**
+	 * Store sizes to measure.
+	 */
+	private static final short[] STORE_SIZES = { 16, 64, 254 };
+
+	/**
+	 * Number of lookups of every stored address per measurement.
+	 */
+	private static final int ROUNDS = 1000;
+
+	@Test
+	public void benchmarkAddressLookup() {
+		Random random = new Random(42);
+
+		System.out.println("slots | ns per lookup");
+
+		for (short storeSize : STORE_SIZES) {
+			KeyStore keyStore = new KeyStore(storeSize, (short) 35,
+					KeyStore.ADDRESS_FORMAT_HASH160,
+					SimulatorApplet.createECDSASHA256Signature(),
+					new WorkingMemory((short) 512));
+
+			byte[][] addresses = new byte[storeSize][];
+			byte[] encryptedKey = new byte[32];
+			byte[] output = new byte[32];
+
+			for (int i = 0; i < storeSize; i++) {
+				byte[] publicKey = new byte[65];
+				random.nextBytes(publicKey);
+				addresses[i] = TestUtils.calculateBitcoinAddress(publicKey)
+						.getBytes();
+
+				byte[] data = TestUtils.concatenate(addresses[i], encryptedKey);
+				keyStore.importEncryptedPrivateKey(data, (short) 0,
+						(short) addresses[i].length,
+						(short) addresses[i].length, (short) 32, output,
+						(short) 0);
+			}
+
+			assertEquals(0, keyStore.getNumberOfKeysRemaining());
+
+			// Warm up the JIT before measuring
+			lookupAll(keyStore, addresses, output);
+
+			long start = System.nanoTime();
+			lookupAll(keyStore, addresses, output);
+			long nanosPerLookup = (System.nanoTime() - start)
+					/ (ROUNDS * storeSize);
+
+			System.out.println(String.format("%5d | %d", storeSize,
+					nanosPerLookup));
+		}
+	}
+
+	/**
+	 * Looks up every given address {@link #ROUNDS} times.
+	 */
+	private void lookupAll(KeyStore keyStore, byte[][] addresses,
+			byte[] output) {
+		for (int round = 0; round < ROUNDS; round++) {
+			for (byte[] address : addresses) {
+				keyStore.getEncryptedPrivateKey(address, (short) 0,
+						(short) address.length, output, (short) 0);
+			}
+		}
+	}
+}
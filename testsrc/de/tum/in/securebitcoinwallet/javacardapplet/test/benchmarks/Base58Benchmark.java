@@ -0,0 +1,226 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javacard.framework.Util;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.Base58;
+
+/**
+ * Compares {@link Base58}, which handles two digits per pass, with the
+ * previous implementation, which handled one digit per pass. Both encode 25
+ * byte addresses and decode the results, the results have to be identical.
+ * Runs on the simulator only.
+ */
+public class Base58Benchmark {
+	/**
+	 * Number of encoded and decoded addresses per implementation.
+	 */
+	private static final int ADDRESSES = 10000;
+
+	/**
+	 * Size of an address with version byte and checksum.
+	 */
+	private static final int ADDRESS_SIZE = 25;
+
+	@Test
+	public void benchmarkBase58() {
+		Random random = new Random(42);
+
+		// Addresses with version 0 start with a zero byte
+		byte[][] addresses = new byte[ADDRESSES][ADDRESS_SIZE];
+		for (byte[] address : addresses) {
+			random.nextBytes(address);
+			address[0] = 0;
+		}
+
+		byte[][] currentEncoded = new byte[ADDRESSES][2 * ADDRESS_SIZE];
+		byte[][] previousEncoded = new byte[ADDRESSES][2 * ADDRESS_SIZE];
+		short[] currentLengths = new short[ADDRESSES];
+		short[] previousLengths = new short[ADDRESSES];
+		byte[] scratch = new byte[2 * ADDRESS_SIZE];
+
+		// Warm up the JIT before measuring
+		encode(false, addresses, previousEncoded, previousLengths, scratch);
+		encode(true, addresses, currentEncoded, currentLengths, scratch);
+
+		long start = System.nanoTime();
+		encode(false, addresses, previousEncoded, previousLengths, scratch);
+		long previousEncodeNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		encode(true, addresses, currentEncoded, currentLengths, scratch);
+		long currentEncodeNanos = System.nanoTime() - start;
+
+		for (int i = 0; i < ADDRESSES; i++) {
+			assertEquals(previousLengths[i], currentLengths[i]);
+			assertArrayEquals(previousEncoded[i], currentEncoded[i]);
+		}
+
+		byte[][] currentDecoded = new byte[ADDRESSES][2 * ADDRESS_SIZE];
+		byte[][] previousDecoded = new byte[ADDRESSES][2 * ADDRESS_SIZE];
+
+		decode(false, currentEncoded, currentLengths, previousDecoded, scratch);
+		decode(true, currentEncoded, currentLengths, currentDecoded, scratch);
+
+		start = System.nanoTime();
+		decode(false, currentEncoded, currentLengths, previousDecoded, scratch);
+		long previousDecodeNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		decode(true, currentEncoded, currentLengths, currentDecoded, scratch);
+		long currentDecodeNanos = System.nanoTime() - start;
+
+		for (int i = 0; i < ADDRESSES; i++) {
+			assertArrayEquals(addresses[i],
+					Arrays.copyOf(currentDecoded[i], ADDRESS_SIZE));
+			assertArrayEquals(addresses[i],
+					Arrays.copyOf(previousDecoded[i], ADDRESS_SIZE));
+		}
+
+		System.out.println("implementation | encodes per second "
+				+ "| decodes per second");
+		print("previous", previousEncodeNanos, previousDecodeNanos);
+		print("two digits", currentEncodeNanos, currentDecodeNanos);
+	}
+
+	private static void encode(boolean current, byte[][] addresses,
+			byte[][] results, short[] lengths, byte[] scratch) {
+		for (int i = 0; i < addresses.length; i++) {
+			if (current) {
+				lengths[i] = Base58.encode(addresses[i], (short) 0,
+						(short) ADDRESS_SIZE, results[i], (short) 0, scratch,
+						(short) 0);
+			} else {
+				lengths[i] = encodePrevious(addresses[i], (short) 0,
+						(short) ADDRESS_SIZE, results[i], (short) 0, scratch,
+						(short) 0);
+			}
+		}
+	}
+
+	private static void decode(boolean current, byte[][] encoded,
+			short[] lengths, byte[][] results, byte[] scratch) {
+		for (int i = 0; i < encoded.length; i++) {
+			short length;
+			if (current) {
+				length = Base58.decode(encoded[i], (short) 0, lengths[i],
+						results[i], (short) 0, scratch, (short) 0);
+			} else {
+				length = decodePrevious(encoded[i], (short) 0, lengths[i],
+						results[i], (short) 0, scratch, (short) 0);
+			}
+			assertEquals(ADDRESS_SIZE, length);
+		}
+	}
+
+	private static void print(String implementation, long encodeNanos,
+			long decodeNanos) {
+		System.out.println(String.format("%-14s | %18d | %d", implementation,
+				ADDRESSES * 1000000000L / encodeNanos, ADDRESSES
+						* 1000000000L / decodeNanos));
+	}
+
+	/**
+	 * The previous encoder of {@link Base58}, one digit per pass.
+	 */
+	private static short encodePrevious(byte[] in, short inOffset,
+			short inLength, byte[] out, short outOffset, byte[] scratch,
+			short scratchOffset) {
+		short zeroCount = 0;
+		while (zeroCount < inLength && in[(short) (inOffset + zeroCount)] == 0) {
+			++zeroCount;
+		}
+		Util.arrayCopyNonAtomic(in, inOffset, scratch, scratchOffset, inLength);
+		short j = (short) (2 * inLength);
+		short startAt = zeroCount;
+		while (startAt < inLength) {
+			short remainder = 0;
+			for (short divLoop = startAt; divLoop < inLength; divLoop++) {
+				short digit256 = (short) (scratch[(short) (scratchOffset + divLoop)] & 0xff);
+				short tmpDiv = (short) (remainder * 256 + digit256);
+				scratch[(short) (scratchOffset + divLoop)] = (byte) (tmpDiv / 58);
+				remainder = (short) (tmpDiv % 58);
+			}
+			if (scratch[(short) (scratchOffset + startAt)] == 0) {
+				++startAt;
+			}
+			out[(short) (outOffset + --j)] = ALPHABET[remainder];
+		}
+		while (j < (short) (2 * inLength)
+				&& out[(short) (outOffset + j)] == ALPHABET[0]) {
+			++j;
+		}
+		while (--zeroCount >= 0) {
+			out[(short) (outOffset + --j)] = ALPHABET[0];
+		}
+		short resultLength = (short) (2 * inLength - j);
+		Util.arrayCopyNonAtomic(out, (short) (outOffset + j), out, outOffset,
+				resultLength);
+		return (short) (outOffset + resultLength);
+	}
+
+	/**
+	 * The previous decoder of {@link Base58}, one byte per pass.
+	 */
+	private static short decodePrevious(byte[] in, short inOffset,
+			short inLength, byte[] out, short outOffset, byte[] scratch,
+			short scratchOffset) {
+		for (short i = 0; i < inLength; i++) {
+			scratch[(short) (scratchOffset + i)] = DIGITS[in[(short) (inOffset + i)]];
+		}
+		short zeroCount = 0;
+		while (zeroCount < inLength
+				&& scratch[(short) (scratchOffset + zeroCount)] == 0) {
+			++zeroCount;
+		}
+		short j = inLength;
+		short startAt = zeroCount;
+		while (startAt < inLength) {
+			short remainder = 0;
+			for (short divLoop = startAt; divLoop < inLength; divLoop++) {
+				short digit256 = (short) (scratch[(short) (scratchOffset + divLoop)] & 0xff);
+				short tmpDiv = (short) (remainder * 58 + digit256);
+				scratch[(short) (scratchOffset + divLoop)] = (byte) (tmpDiv / 256);
+				remainder = (short) (tmpDiv % 256);
+			}
+			if (scratch[(short) (scratchOffset + startAt)] == 0) {
+				++startAt;
+			}
+			out[(short) (outOffset + --j)] = (byte) remainder;
+		}
+		while (j < inLength && out[(short) (outOffset + j)] == 0) {
+			j++;
+		}
+		short resultLength = (short) (inLength - (j - zeroCount));
+		Util.arrayCopyNonAtomic(out, (short) (outOffset + j - zeroCount),
+				out, outOffset, resultLength);
+		return resultLength;
+	}
+
+	/**
+	 * The Base58 alphabet.
+	 */
+	private static final byte[] ALPHABET = { '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'J', 'K',
+			'L', 'M', 'N', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y',
+			'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'm',
+			'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z' };
+
+	/**
+	 * The digits of the characters of the alphabet.
+	 */
+	private static final byte[] DIGITS = new byte[128];
+
+	static {
+		for (byte i = 0; i < ALPHABET.length; i++) {
+			DIGITS[ALPHABET[i]] = i;
+		}
+	}
+}
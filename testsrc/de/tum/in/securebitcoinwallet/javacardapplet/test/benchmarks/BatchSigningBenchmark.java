@@ -0,0 +1,101 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.AppletTestBase;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Compares signing the inputs of a transaction with one sign instruction per
+ * input and with the batch sign instruction. Runs on the simulator only.
+ */
+public class BatchSigningBenchmark extends AppletTestBase {
+	/**
+	 * Number of inputs of the signed transaction.
+	 */
+	private static final int INPUTS = 50;
+
+	/**
+	 * Number of signed transactions per measurement.
+	 */
+	private static final int TRANSACTIONS = 20;
+
+	public BatchSigningBenchmark() throws CardException {
+		super(new JavaCardSimulator(AID));
+	}
+
+	@Test
+	public void benchmarkBatchSigning() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(50);
+		byte[] publicKey = new byte[65];
+		random.nextBytes(publicKey);
+		byte[] address = TestUtils.calculateBitcoinAddress(publicKey)
+				.getBytes();
+		importKey(address, TestUtils.generatePrivateKey(random));
+		selectPrivateKey(address);
+
+		byte[][] hashes = new byte[INPUTS][];
+		for (int i = 0; i < INPUTS; i++) {
+			hashes[i] = getSHA256Hash("Input " + i);
+		}
+
+		// Warm up the JIT before measuring
+		signSingle(hashes);
+		signBatches(hashes);
+
+		long single = System.nanoTime();
+		for (int i = 0; i < TRANSACTIONS; i++) {
+			signSingle(hashes);
+		}
+		single = System.nanoTime() - single;
+
+		long batch = System.nanoTime();
+		for (int i = 0; i < TRANSACTIONS; i++) {
+			signBatches(hashes);
+		}
+		batch = System.nanoTime() - batch;
+
+		System.out.println("instruction | signatures per second ("
+				+ INPUTS + " inputs)");
+		System.out.println("single | " + signaturesPerSecond(single));
+		System.out.println("batch | " + signaturesPerSecond(batch));
+	}
+
+	private void signSingle(byte[][] hashes) throws CardException {
+		for (byte[] hash : hashes) {
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash));
+			assertTrue(commandSuccessful(response));
+		}
+	}
+
+	/**
+	 * Signs the hashes in as few batches as the batch size allows.
+	 */
+	private void signBatches(byte[][] hashes) throws CardException {
+		int batchSize = SecureBitcoinWalletJavaCardApplet.SIGNATURE_BATCH_SIZE;
+		for (int i = 0; i < hashes.length; i += batchSize) {
+			byte[][] batch = new byte[Math.min(batchSize, hashes.length - i)][];
+			System.arraycopy(hashes, i, batch, 0, batch.length);
+			signBatch(batch);
+		}
+	}
+
+	private static long signaturesPerSecond(long nanos) {
+		return (long) INPUTS * TRANSACTIONS * 1000000000L / nanos;
+	}
+}
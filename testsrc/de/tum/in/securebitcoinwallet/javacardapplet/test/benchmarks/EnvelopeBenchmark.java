@@ -0,0 +1,113 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.AppletTestBase;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Compares a sign flow (authenticate, select key, sign, get remaining memory)
+ * sent as single instructions and as one envelope instruction. The simulator
+ * has no transmission delay, so the estimate for a contactless link adds a
+ * fixed delay per exchanged command. Runs on the simulator only.
+ */
+public class EnvelopeBenchmark extends AppletTestBase {
+	/**
+	 * Number of sign flows per measurement.
+	 */
+	private static final int FLOWS = 200;
+
+	/**
+	 * Assumed delay of one command and response over a contactless link in
+	 * milliseconds.
+	 */
+	private static final double LINK_DELAY = 5;
+
+	private byte[] address;
+
+	private byte[] hash;
+
+	public EnvelopeBenchmark() throws CardException {
+		super(new JavaCardSimulator(AID));
+	}
+
+	@Test
+	public void benchmarkEnvelope() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(13);
+		byte[] publicKey = new byte[65];
+		random.nextBytes(publicKey);
+		address = TestUtils.calculateBitcoinAddress(publicKey).getBytes();
+		importKey(address, TestUtils.generatePrivateKey(random));
+
+		hash = getSHA256Hash("Input");
+
+		// Warm up the JIT before measuring
+		signSingle();
+		signEnvelope();
+
+		long single = System.nanoTime();
+		for (int i = 0; i < FLOWS; i++) {
+			signSingle();
+		}
+		single = System.nanoTime() - single;
+
+		long envelope = System.nanoTime();
+		for (int i = 0; i < FLOWS; i++) {
+			signEnvelope();
+		}
+		envelope = System.nanoTime() - envelope;
+
+		System.out.println("instructions | exchanges | ms per flow | ms per flow with "
+				+ LINK_DELAY + " ms link delay");
+		print("single", 4, single);
+		print("envelope", 1, envelope);
+	}
+
+	private void signSingle() throws CardException {
+		assertTrue(commandSuccessful(smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_AUTHENTICATE, 0, 0,
+				SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN))));
+		assertTrue(commandSuccessful(smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SELECT_KEY, 0, 0, address))));
+		assertTrue(commandSuccessful(smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash))));
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0));
+		assertTrue(commandSuccessful(response));
+	}
+
+	private void signEnvelope() throws CardException {
+		byte[][][] responses = transmitEnvelope(
+				subCommand(AppletInstructions.INS_AUTHENTICATE, 0, 0,
+						SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN),
+				subCommand(AppletInstructions.INS_SELECT_KEY, 0, 0, address),
+				subCommand(AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash),
+				subCommand(AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0,
+						new byte[0]));
+		assertEquals(4, responses.length);
+	}
+
+	private static void print(String name, int exchanges, long nanos) {
+		double millis = nanos / 1e6 / FLOWS;
+		System.out.println(String.format("%s | %d | %.2f | %.2f", name,
+				exchanges, millis, millis + exchanges * LINK_DELAY));
+	}
+}
@@ -0,0 +1,122 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.AppletTestBase;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Compares provisioning a full store of 254 keys with one import instruction
+ * per key and with one import private keys instruction in an extended length
+ * command. Runs on the simulator only.
+ */
+public class ImportKeysBenchmark extends AppletTestBase {
+	/**
+	 * Number of imported keys, which fills the store.
+	 */
+	private static final int KEYS = 254;
+
+	/**
+	 * Number of provisioned stores per measurement.
+	 */
+	private static final int ROUNDS = 10;
+
+	private byte[][] addresses = new byte[KEYS][];
+
+	private byte[][] privateKeys = new byte[KEYS][];
+
+	private byte[][] handles = new byte[KEYS][];
+
+	public ImportKeysBenchmark() throws CardException {
+		super(new JavaCardSimulator(AID, new byte[] {
+				SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_STORE_SIZE, 1,
+				(byte) KEYS }));
+	}
+
+	@Test
+	public void benchmarkImportKeys() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(KEYS);
+		byte[] publicKey = new byte[65];
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (int i = 0; i < KEYS; i++) {
+			random.nextBytes(publicKey);
+			addresses[i] = TestUtils.calculateBitcoinAddress(publicKey)
+					.getBytes();
+			privateKeys[i] = TestUtils.generatePrivateKey(random);
+
+			byte[] record = keyRecord(addresses[i], privateKeys[i]);
+			records.write(record, 0, record.length);
+		}
+
+		// Warm up the JIT before measuring
+		importSingle();
+		deleteKeys();
+		importBulk(records.toByteArray());
+		deleteKeys();
+
+		long single = 0;
+		long bulk = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			importSingle();
+			single += System.nanoTime() - start;
+			deleteKeys();
+
+			start = System.nanoTime();
+			importBulk(records.toByteArray());
+			bulk += System.nanoTime() - start;
+			deleteKeys();
+		}
+
+		System.out.println("instruction | keys per second (" + KEYS
+				+ " keys)");
+		System.out.println("single | " + keysPerSecond(single));
+		System.out.println("bulk | " + keysPerSecond(bulk));
+	}
+
+	private void importSingle() throws CardException {
+		for (int i = 0; i < KEYS; i++) {
+			handles[i] = importKey(addresses[i], privateKeys[i]);
+		}
+	}
+
+	private void importBulk(byte[] records) throws CardException {
+		ResponseAPDU response = importKeys(false, records);
+		assertTrue(commandSuccessful(response));
+
+		byte[] status = response.getData();
+		assertEquals(4 * KEYS, status.length);
+		for (int i = 0; i < KEYS; i++) {
+			assertEquals(0x90, status[4 * i] & 0xFF);
+			handles[i] = new byte[] { status[4 * i + 2], status[4 * i + 3] };
+		}
+	}
+
+	private void deleteKeys() throws CardException {
+		for (byte[] handle : handles) {
+			assertTrue(commandSuccessful(smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_DELETE_PRIVATE_KEY,
+					AppletInstructions.P1_KEY_HANDLE, 0, handle))));
+		}
+	}
+
+	private static long keysPerSecond(long nanos) {
+		return (long) KEYS * ROUNDS * 1000000000L / nanos;
+	}
+}
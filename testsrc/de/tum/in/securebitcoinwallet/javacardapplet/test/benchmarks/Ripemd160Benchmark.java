@@ -0,0 +1,90 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import javacard.security.MessageDigest;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.KeyStore;
+import de.tum.in.securebitcoinwallet.javacardapplet.Ripemd160;
+
+/**
+ * Compares the native RIPEMD160 digest with the software implementation
+ * {@link Ripemd160}, which the {@link KeyStore} falls back to. Both derive
+ * the hash160 of the same public keys, the results have to be identical.
+ * Runs on the simulator only.
+ */
+public class Ripemd160Benchmark {
+	/**
+	 * Number of derivations per path.
+	 */
+	private static final int DERIVATIONS = 10000;
+
+	@Test
+	public void benchmarkRipemd160() {
+		Random random = new Random(42);
+
+		MessageDigest sha256 = MessageDigest.getInstance(
+				MessageDigest.ALG_SHA_256, false);
+		MessageDigest ripemd160 = MessageDigest.getInstance(
+				MessageDigest.ALG_RIPEMD160, false);
+
+		// SHA-256 hashes of random public keys
+		byte[][] hashes = new byte[DERIVATIONS][32];
+		byte[] publicKey = new byte[65];
+		for (byte[] hash : hashes) {
+			random.nextBytes(publicKey);
+			sha256.doFinal(publicKey, (short) 0, (short) publicKey.length,
+					hash, (short) 0);
+		}
+
+		byte[][] nativeResults = new byte[DERIVATIONS][20];
+		byte[][] softwareResults = new byte[DERIVATIONS][20];
+		byte[] scratch = new byte[64];
+
+		// Warm up the JIT before measuring
+		deriveNative(ripemd160, hashes, nativeResults);
+		deriveSoftware(hashes, softwareResults, scratch);
+
+		long start = System.nanoTime();
+		deriveNative(ripemd160, hashes, nativeResults);
+		long nativeNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		deriveSoftware(hashes, softwareResults, scratch);
+		long softwareNanos = System.nanoTime() - start;
+
+		for (int i = 0; i < DERIVATIONS; i++) {
+			assertArrayEquals(nativeResults[i], softwareResults[i]);
+		}
+
+		System.out.println("path     | ms for " + DERIVATIONS
+				+ " | derivations per second");
+		print("native", nativeNanos);
+		print("software", softwareNanos);
+	}
+
+	private static void deriveNative(MessageDigest ripemd160,
+			byte[][] hashes, byte[][] results) {
+		for (int i = 0; i < hashes.length; i++) {
+			ripemd160.doFinal(hashes[i], (short) 0, (short) 32, results[i],
+					(short) 0);
+		}
+	}
+
+	private static void deriveSoftware(byte[][] hashes, byte[][] results,
+			byte[] scratch) {
+		for (int i = 0; i < hashes.length; i++) {
+			Ripemd160.hash32(hashes[i], (short) 0, results[i], (short) 0,
+					scratch, (short) 0);
+		}
+	}
+
+	private static void print(String path, long nanos) {
+		System.out.println(String.format("%-8s | %9d | %d", path,
+				nanos / 1000000, DERIVATIONS * 1000000000L / nanos));
+	}
+}
@@ -0,0 +1,128 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.Ripemd160;
+import de.tum.in.securebitcoinwallet.javacardapplet.Ripemd160Compact;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.MethodStatistics;
+
+/**
+ * Compares the unrolled {@link Ripemd160} with {@link Ripemd160Compact}:
+ * hashes per second on the simulator, size of the bytecode, maximum depth
+ * of the operand stack and the stack needed by the deepest chain of calls,
+ * counted in words of operand stack and local variables. Helps to pick the
+ * variant for a card model.
+ */
+public class Ripemd160VariantsBenchmark {
+	/**
+	 * Number of hashes per variant.
+	 */
+	private static final int HASHES = 10000;
+
+	/**
+	 * Methods of the unrolled variant used for hashing 32 bytes, the
+	 * deepest chain of calls first.
+	 */
+	private static final String[] UNROLLED_METHODS = { "hash32", "compress" };
+
+	/**
+	 * Methods of the compact variant, the deepest chain of calls first.
+	 */
+	private static final String[] COMPACT_METHODS = { "hash32", "compress",
+			"step", "rotateLeft", "add", "function", "loadWord" };
+
+	/**
+	 * Length of the deepest chain of calls of the compact variant.
+	 */
+	private static final int COMPACT_CALL_DEPTH = 4;
+
+	@Test
+	public void benchmarkVariants() throws IOException {
+		Random random = new Random(42);
+
+		byte[][] inputs = new byte[HASHES][32];
+		for (byte[] input : inputs) {
+			random.nextBytes(input);
+		}
+
+		byte[][] unrolledResults = new byte[HASHES][20];
+		byte[][] compactResults = new byte[HASHES][20];
+		byte[] scratch = new byte[64];
+		short[] work = new short[Ripemd160Compact.WORK_SIZE];
+
+		// Warm up the JIT before measuring
+		hashUnrolled(inputs, unrolledResults, scratch);
+		hashCompact(inputs, compactResults, work);
+
+		long start = System.nanoTime();
+		hashUnrolled(inputs, unrolledResults, scratch);
+		long unrolledNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		hashCompact(inputs, compactResults, work);
+		long compactNanos = System.nanoTime() - start;
+
+		for (int i = 0; i < HASHES; i++) {
+			assertArrayEquals(unrolledResults[i], compactResults[i]);
+		}
+
+		System.out.println("variant  | hashes per second | bytecode bytes "
+				+ "| max operand stack | stack words of deepest calls");
+		print("unrolled", unrolledNanos,
+				MethodStatistics.read(Ripemd160.class), UNROLLED_METHODS,
+				UNROLLED_METHODS.length);
+		print("compact", compactNanos,
+				MethodStatistics.read(Ripemd160Compact.class),
+				COMPACT_METHODS, COMPACT_CALL_DEPTH);
+	}
+
+	private static void hashUnrolled(byte[][] inputs, byte[][] results,
+			byte[] scratch) {
+		for (int i = 0; i < inputs.length; i++) {
+			Ripemd160.hash32(inputs[i], (short) 0, results[i], (short) 0,
+					scratch, (short) 0);
+		}
+	}
+
+	private static void hashCompact(byte[][] inputs, byte[][] results,
+			short[] work) {
+		for (int i = 0; i < inputs.length; i++) {
+			Ripemd160Compact.hash32(inputs[i], (short) 0, results[i],
+					(short) 0, work, (short) 0);
+		}
+	}
+
+	/**
+	 * Prints the figures of a variant.
+	 *
+	 * @param methods The methods of the variant, the deepest chain of calls
+	 *            first
+	 * @param callDepth The number of methods in the deepest chain of calls
+	 */
+	private static void print(String variant, long nanos,
+			Map<String, MethodStatistics> statistics, String[] methods,
+			int callDepth) {
+		int codeLength = 0;
+		int maxStack = 0;
+		int stackWords = 0;
+
+		for (int i = 0; i < methods.length; i++) {
+			MethodStatistics method = statistics.get(methods[i]);
+			codeLength += method.codeLength;
+			maxStack = Math.max(maxStack, method.maxStack);
+			if (i < callDepth) {
+				stackWords += method.maxStack + method.maxLocals;
+			}
+		}
+
+		System.out.println(String.format("%-8s | %17d | %14d | %17d | %d",
+				variant, HASHES * 1000000000L / nanos, codeLength, maxStack,
+				stackWords));
+	}
+}
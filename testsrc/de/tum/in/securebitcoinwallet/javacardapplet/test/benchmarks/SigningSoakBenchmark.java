@@ -0,0 +1,102 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.tests.AppletTestBase;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Signs a large number of hashes with the same key. Checks with the
+ * persistent write counters of the simulator, that signing changes no
+ * persistent memory, e.g. by allocating a new signature engine, and that the
+ * latency of a signature does not drift. Runs on the simulator only.
+ */
+public class SigningSoakBenchmark extends AppletTestBase {
+	/**
+	 * Total number of signatures.
+	 */
+	private static final int SIGNATURES = 10000;
+
+	/**
+	 * Number of signatures per latency measurement.
+	 */
+	private static final int BLOCK_SIZE = 1000;
+
+	/**
+	 * Maximum factor between the slowest and the fastest block. Generous,
+	 * because the time on the simulator depends on the JIT and the garbage
+	 * collector.
+	 */
+	private static final double MAX_LATENCY_DRIFT = 5.0;
+
+	private JavaCardSimulator simulator;
+
+	public SigningSoakBenchmark() throws CardException {
+		this(new JavaCardSimulator(AID));
+	}
+
+	private SigningSoakBenchmark(JavaCardSimulator simulator)
+			throws CardException {
+		super(simulator);
+		this.simulator = simulator;
+		simulator.setCountPersistentWrites(true);
+	}
+
+	@Test
+	public void soakTestSigning() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(7);
+		byte[] publicKey = new byte[65];
+		random.nextBytes(publicKey);
+		byte[] address = TestUtils.calculateBitcoinAddress(publicKey)
+				.getBytes();
+		importKey(address, TestUtils.generatePrivateKey(random));
+
+		// The first block warms up the JIT
+		signBlock(address);
+
+		long fastestBlock = Long.MAX_VALUE;
+		long slowestBlock = 0;
+		StringBuilder blockTimes = new StringBuilder("ms per block:");
+
+		simulator.resetPersistentWrites();
+
+		for (int i = BLOCK_SIZE; i < SIGNATURES; i += BLOCK_SIZE) {
+			long time = signBlock(address);
+
+			fastestBlock = Math.min(fastestBlock, time);
+			slowestBlock = Math.max(slowestBlock, time);
+			blockTimes.append(' ').append(time / 1000000);
+
+			assertEquals("Persistent bytes changed after " + (i + BLOCK_SIZE)
+					+ " signatures", 0, simulator
+					.getPersistentWrites(AppletInstructions.INS_SIGN_SHA256_HASH));
+		}
+
+		assertTrue(blockTimes.toString(),
+				slowestBlock <= fastestBlock * MAX_LATENCY_DRIFT);
+	}
+
+	/**
+	 * Signs {@link #BLOCK_SIZE} hashes and returns the elapsed time in
+	 * nanoseconds.
+	 */
+	private long signBlock(byte[] address) throws CardException {
+		long start = System.nanoTime();
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			getSignature(address, "Transaction " + i);
+		}
+		return System.nanoTime() - start;
+	}
+}
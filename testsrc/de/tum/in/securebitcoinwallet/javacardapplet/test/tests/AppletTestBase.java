@@ -3,7 +3,15 @@ package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javacard.framework.ISO7816;
 
@@ -12,10 +20,12 @@ import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
 import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCard;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardHardware;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.Base58;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
 
 /**
@@ -56,11 +66,19 @@ public abstract class AppletTestBase {
 	 * @throws IOException
 	 */
 	public AppletTestBase() throws CardException {
-		if (USE_SIMULATOR) {
-			smartCard = new JavaCardSimulator(AID);
-		} else {
-			smartCard = new JavaCardHardware(AID);
-		}
+		this(USE_SIMULATOR ? new JavaCardSimulator(AID)
+				: new JavaCardHardware(AID));
+	}
+
+	/**
+	 * Constructor. Uses the given card and calls the setup instruction to
+	 * retrieve the PUK.
+	 * 
+	 * @param smartCard The card to run the tests on
+	 * @throws CardException
+	 */
+	protected AppletTestBase(JavaCard smartCard) throws CardException {
+		this.smartCard = smartCard;
 
 		puk = smartCard.setup();
 	}
@@ -127,6 +145,37 @@ public abstract class AppletTestBase {
 		return response.getBytes()[0] == 1 ? true : false;
 	}
 
+	/**
+	 * Retrieves the status of the applet.
+	 * 
+	 * @return The values of the status TLVs by tag, in the order returned by
+	 *         the card
+	 */
+	protected Map<Byte, Integer> getStatus() throws CardException {
+		CommandAPDU apdu = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_STATUS, 0, 0);
+
+		ResponseAPDU response = smartCard.transmit(apdu);
+
+		assertTrue(commandSuccessful(response));
+
+		Map<Byte, Integer> status = new LinkedHashMap<Byte, Integer>();
+		byte[] data = response.getData();
+		for (int offset = 0; offset < data.length;) {
+			byte tag = data[offset++];
+			int length = data[offset++];
+
+			int value = 0;
+			for (int i = 0; i < length; i++) {
+				value = (value << 8) | (data[offset++] & 0xFF);
+			}
+			status.put(tag, value);
+		}
+
+		return status;
+	}
+
 	/**
 	 * Retrieves the amount of free slots on the card.
 	 */
@@ -143,4 +192,386 @@ public abstract class AppletTestBase {
 		int remainingSlots = ((data[0] << 8) + data[1]);
 		return remainingSlots;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Deletes the encrypted private key specified by the given Bitcoin address.
+	 * 
+	 * @param bitcoinAddress
+	 * @throws CardException
+	 */
+	protected void deleteKey(byte[] rawBitcoinAddress) throws CardException {
+		CommandAPDU deleteKeyInstruction = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_DELETE_PRIVATE_KEY, 0, 0,
+				rawBitcoinAddress);
+
+		ResponseAPDU response = smartCard.transmit(deleteKeyInstruction);
+
+		assertTrue(commandSuccessful(response));
+	}
+
+	/**
+	 * Imports the given private key with the given Bitcoin address
+	 * 
+	 * @param bitcoinAddress The Bitcoin address
+	 * @param privateKey The private key
+	 * @return The handle of the imported key
+	 * @throws CardException
+	 */
+	protected byte[] importKey(byte[] bitcoinAddress, byte[] privateKey)
+			throws CardException {
+		CommandAPDU importKeyInstruction = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_IMPORT_PRIVATE_KEY,
+				bitcoinAddress.length, privateKey.length,
+				TestUtils.concatenate(bitcoinAddress, privateKey));
+
+		ResponseAPDU response = smartCard.transmit(importKeyInstruction);
+		assertTrue(commandSuccessful(response));
+
+		return response.getData();
+	}
+	
+	/**
+	 * Imports the given encrypted private key with the given Bitcoin address
+	 * 
+	 * @param bitcoinAddress The Bitcoin address
+	 * @param privateKey The encrypted private key
+	 * @return The handle of the imported key
+	 * @throws CardException
+	 */
+	protected byte[] importEncryptedKey(byte[] bitcoinAddress, byte[] privateKey)
+			throws CardException {
+		CommandAPDU importKeyInstruction = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_IMPORT_ENCRYPTED_PRIVATE_KEY,
+				bitcoinAddress.length, privateKey.length,
+				TestUtils.concatenate(bitcoinAddress, privateKey));
+
+		ResponseAPDU response = smartCard.transmit(importKeyInstruction);
+		assertTrue(commandSuccessful(response));
+
+		return response.getData();
+	}
+
+	/**
+	 * Signs a string with the smartcard and returns its signature.
+	 * 
+	 * @throws CardException
+	 */
+	protected byte[] getSignature(byte[] bitcoinAddress, String input) throws CardException {
+		selectPrivateKey(bitcoinAddress);
+		
+		byte[] hash = getSHA256Hash(input);
+
+		CommandAPDU signInstruction = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash);
+
+		ResponseAPDU response = smartCard.transmit(signInstruction);
+		assertTrue(commandSuccessful(response));
+
+		return response.getData();
+	}
+
+	/**
+	 * Signs the given hashes with the batch sign instruction. The hashes are
+	 * sent in chained commands, the signatures are fetched with GET RESPONSE.
+	 * 
+	 * @param hashes The SHA256 hashes to sign
+	 * @return The signatures in the order of the hashes
+	 * @throws CardException
+	 */
+	protected byte[][] signBatch(byte[][] hashes) throws CardException {
+		int hashesPerCommand = 255 / 32;
+		ResponseAPDU response = null;
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		for (int i = 0; i < hashes.length; i += hashesPerCommand) {
+			int end = Math.min(hashes.length, i + hashesPerCommand);
+
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+			for (int j = i; j < end; j++) {
+				chunk.write(hashes[j], 0, hashes[j].length);
+			}
+
+			int cla = AppletInstructions.SECURE_BITCOIN_WALLET_CLA;
+			if (end < hashes.length) {
+				cla |= SecureBitcoinWalletJavaCardApplet.CLA_CHAINING;
+			}
+
+			response = smartCard.transmit(new CommandAPDU(cla,
+					AppletInstructions.INS_SIGN_SHA256_HASH_BATCH, 0, 0,
+					chunk.toByteArray(), 256));
+		}
+
+		response = getRemainingResponse(response, data);
+		assertTrue(commandSuccessful(response));
+
+		return splitSignatures(data.toByteArray(), hashes.length);
+	}
+
+	/**
+	 * Signs the given hashes with the selected key using one extended length
+	 * batch sign instruction.
+	 * 
+	 * @param hashes The hashes to sign
+	 * @return The signatures in the order of the hashes
+	 * @throws CardException
+	 */
+	protected byte[][] signBatchExtended(byte[][] hashes) throws CardException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (byte[] hash : hashes) {
+			data.write(hash, 0, hash.length);
+		}
+
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH_BATCH, 0, 0,
+				data.toByteArray(), 65536));
+
+		data.reset();
+		response = getRemainingResponse(response, data);
+		assertTrue(commandSuccessful(response));
+
+		return splitSignatures(data.toByteArray(), hashes.length);
+	}
+
+	/**
+	 * Splits the response of a batch sign instruction into the signatures.
+	 * 
+	 * @param signatures The length prefixed signatures
+	 * @param count The number of signatures
+	 */
+	private static byte[][] splitSignatures(byte[] signatures, int count) {
+		byte[][] result = new byte[count][];
+
+		int offset = 0;
+		for (int i = 0; i < result.length; i++) {
+			int length = signatures[offset] & 0xFF;
+			result[i] = Arrays.copyOfRange(signatures, offset + 1, offset + 1
+					+ length);
+			offset += 1 + length;
+		}
+
+		assertEquals(signatures.length, offset);
+
+		return result;
+	}
+
+	/**
+	 * Collects the data of the given response and fetches the remaining data
+	 * with GET RESPONSE as long as the card signals more data with 0x61XX.
+	 * 
+	 * @param response The response of the instruction
+	 * @param data Receives the data of all responses
+	 * @return The last response
+	 * @throws CardException
+	 */
+	protected ResponseAPDU getRemainingResponse(ResponseAPDU response,
+			ByteArrayOutputStream data) throws CardException {
+		data.write(response.getData(), 0, response.getData().length);
+
+		while (response.getSW1() == 0x61) {
+			response = smartCard.transmit(new CommandAPDU(
+					ISO7816.CLA_ISO7816, AppletInstructions.INS_GET_RESPONSE,
+					0, 0, 256));
+			data.write(response.getData(), 0, response.getData().length);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Calculates the SHA256 hash for the given string
+	 * 
+	 * @param text The text for which the hash should be generated.
+	 */
+	protected byte[] getSHA256Hash(String text) {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 algorithm not found!");
+		}
+
+		try {
+			md.update(text.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 encoding not supported!");
+		}
+
+		return md.digest();
+	}
+
+	/**
+	 * Encodes a sub-command of the envelope instruction.
+	 * 
+	 * @param ins The INS of the sub-command
+	 * @param p1 The P1 of the sub-command
+	 * @param p2 The P2 of the sub-command
+	 * @param data The data of the sub-command
+	 */
+	protected static byte[] subCommand(byte ins, int p1, int p2, byte[] data) {
+		return TestUtils.concatenate(new byte[] { ins, (byte) p1, (byte) p2,
+				(byte) data.length }, data);
+	}
+
+	/**
+	 * Executes the given sub-commands with one envelope instruction and
+	 * returns the status word and response of each executed sub-command.
+	 * 
+	 * @param subCommands The encoded sub-commands, see
+	 *            {@link #subCommand(byte, int, int, byte[])}
+	 * @return [SW, response] for each executed sub-command
+	 * @throws CardException
+	 */
+	protected byte[][][] transmitEnvelope(byte[]... subCommands)
+			throws CardException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (byte[] subCommand : subCommands) {
+			data.write(subCommand, 0, subCommand.length);
+		}
+
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_ENVELOPE, 0, 0, data.toByteArray(), 256));
+
+		data.reset();
+		response = getRemainingResponse(response, data);
+		assertTrue(commandSuccessful(response));
+
+		byte[] responses = data.toByteArray();
+		ArrayList<byte[][]> result = new ArrayList<byte[][]>();
+
+		int offset = 0;
+		while (offset < responses.length) {
+			int length = responses[offset + 2] & 0xFF;
+			result.add(new byte[][] {
+					Arrays.copyOfRange(responses, offset, offset + 2),
+					Arrays.copyOfRange(responses, offset + 3, offset + 3
+							+ length) });
+			offset += 3 + length;
+		}
+
+		return result.toArray(new byte[result.size()][][]);
+	}
+
+	/**
+	 * Selects the given private key for signing.
+	 * 
+	 * @param bitcoinAddress The private key's Bitcoin address
+	 * @throws CardException
+	 */
+	protected void selectPrivateKey(byte[] bitcoinAddress) throws CardException {
+		CommandAPDU selectPrivateKeyInstruction = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SELECT_KEY, 0, 0, bitcoinAddress);
+
+		ResponseAPDU response = smartCard.transmit(selectPrivateKeyInstruction);
+
+		assertTrue(commandSuccessful(response));
+	}
+
+	/**
+	 * Sends the given data in chained commands of the given size and returns
+	 * the response of the last command including the data fetched with GET
+	 * RESPONSE.
+	 */
+	protected ResponseAPDU transmitChained(byte ins, int p1, int p2,
+			byte[] data, int chunkSize) throws CardException {
+		ResponseAPDU response = null;
+
+		for (int i = 0; i < data.length; i += chunkSize) {
+			int end = Math.min(data.length, i + chunkSize);
+
+			int cla = AppletInstructions.SECURE_BITCOIN_WALLET_CLA;
+			if (end < data.length) {
+				cla |= SecureBitcoinWalletJavaCardApplet.CLA_CHAINING;
+			}
+
+			byte[] chunk = Arrays.copyOfRange(data, i, end);
+			if (end < data.length) {
+				response = smartCard.transmit(new CommandAPDU(cla, ins, p1,
+						p2, chunk));
+			} else {
+				response = smartCard.transmit(new CommandAPDU(cla, ins, p1,
+						p2, chunk, 256));
+			}
+
+			if (end < data.length && !commandSuccessful(response)) {
+				return response;
+			}
+		}
+
+		ByteArrayOutputStream responseData = new ByteArrayOutputStream();
+		response = getRemainingResponse(response, responseData);
+		responseData.write(response.getSW1());
+		responseData.write(response.getSW2());
+
+		return new ResponseAPDU(responseData.toByteArray());
+	}
+
+	/**
+	 * Builds a record of the import private keys instruction.
+	 */
+	protected static byte[] keyRecord(byte[] bitcoinAddress, byte[] privateKey) {
+		return TestUtils.concatenate(new byte[] { (byte) bitcoinAddress.length,
+				(byte) privateKey.length }, TestUtils.concatenate(
+				bitcoinAddress, privateKey));
+	}
+
+	/**
+	 * Imports the given records in one extended length command.
+	 * 
+	 * @param encrypted Whether the records contain encrypted private keys
+	 * @param records The records built with
+	 *            {@link #keyRecord(byte[], byte[])}
+	 * @return The response containing the status of each record
+	 * @throws CardException
+	 */
+	protected ResponseAPDU importKeys(boolean encrypted, byte[] records)
+			throws CardException {
+		return smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_IMPORT_PRIVATE_KEYS,
+				encrypted ? AppletInstructions.P1_ENCRYPTED_KEYS : 0, 0,
+				records, 65536));
+	}
+
+	/**
+	 * Generates a new key pair on the card.
+	 * 
+	 * @param p1 P1 of the generate key instruction
+	 * @return The public key, the address and the handle of the new key
+	 * @throws CardException
+	 */
+	protected byte[][] generateKey(int p1) throws CardException {
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GENERATE_KEY, p1, 0));
+		assertTrue(commandSuccessful(response));
+
+		byte[] data = response.getData();
+		byte[][] fields = new byte[3][];
+		int offset = 0;
+		for (int i = 0; i < fields.length; i++) {
+			int length = data[offset] & 0xFF;
+			fields[i] = Arrays.copyOfRange(data, offset + 1, offset + 1
+					+ length);
+			offset += 1 + length;
+		}
+		assertEquals(data.length, offset);
+
+		return fields;
+	}
+
+	/**
+	 * Returns the version and the hash160 of the given Base58 address, which
+	 * is the format the card stores addresses in.
+	 */
+	protected static byte[] getRawAddress(String bitcoinAddress) {
+		byte[] decoded = Base58.decode(bitcoinAddress);
+		return Arrays.copyOf(decoded, decoded.length - 4);
+	}
+}
@@ -0,0 +1,312 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javacard.framework.ISO7816;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.KeyStore;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * UnitTests for the backup and the restore of all keys.
+ */
+public class BackupTest extends AppletTestBase {
+	private final Random random = new Random(17);
+
+	public BackupTest() throws CardException {
+		super();
+	}
+
+	/**
+	 * Exports a backup of a full store in several responses, deletes all
+	 * keys and restores them.
+	 */
+	@Test
+	public void testBackupAndRestore() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		int count = SecureBitcoinWalletJavaCardApplet.STORE_SIZE;
+		byte[][] privateKeys = importKeys(count);
+
+		byte[] backup = backup(256);
+		assertEquals(KeyStore.BACKUP_VERSION, backup[0]);
+		assertEquals(KeyStore.ADDRESS_FORMAT_HASH160, backup[1]);
+		assertEquals(2 + count * (2 + 21 + 32) + KeyStore.BACKUP_TAG_SIZE,
+				backup.length);
+
+		// The backup does not depend on the length of the responses
+		assertTrue(Arrays.equals(backup, backup(65536)));
+
+		for (byte[] privateKey : privateKeys) {
+			deleteKey(getAddress(privateKey));
+		}
+		assertEquals(count, getRemainingSlots());
+
+		ResponseAPDU response = restore(backup);
+		assertTrue(commandSuccessful(response));
+
+		assertRestored(privateKeys, response.getData());
+
+		// Keys already in the store are skipped
+		response = restore(backup);
+		assertTrue(commandSuccessful(response));
+		assertEquals(StatusCodes.KEY_ALREADY_IN_STORE,
+				getShort(response.getData(), 0));
+	}
+
+	/**
+	 * Restores a small backup sent in chained commands.
+	 */
+	@Test
+	public void testChainedRestore() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[][] privateKeys = importKeys(2);
+		byte[] backup = backup(256);
+
+		for (byte[] privateKey : privateKeys) {
+			deleteKey(getAddress(privateKey));
+		}
+
+		ResponseAPDU response = transmitChained(
+				AppletInstructions.INS_RESTORE_KEYS, 0, 0, backup, 100);
+		assertTrue(commandSuccessful(response));
+		assertEquals(ISO7816.SW_NO_ERROR, getShort(response.getData(), 0));
+		assertEquals(ISO7816.SW_NO_ERROR, getShort(response.getData(), 4));
+
+		// An empty store results in an empty backup
+		for (byte[] privateKey : privateKeys) {
+			deleteKey(getAddress(privateKey));
+		}
+		backup = backup(256);
+		assertEquals(2 + KeyStore.BACKUP_TAG_SIZE, backup.length);
+
+		response = restore(backup);
+		assertTrue(commandSuccessful(response));
+		assertEquals(0, response.getData().length);
+	}
+
+	/**
+	 * Restores a backup of a full store, which exceeds the command buffer,
+	 * in chained commands splitting the records. A tampered backup or an
+	 * interrupted restore leaves no keys behind.
+	 */
+	@Test
+	public void testChainedFullRestore() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		int count = SecureBitcoinWalletJavaCardApplet.STORE_SIZE;
+		byte[][] privateKeys = importKeys(count);
+		byte[] backup = backup(256);
+		assertTrue(backup.length > SecureBitcoinWalletJavaCardApplet.COMMAND_BUFFER_SIZE);
+
+		for (byte[] privateKey : privateKeys) {
+			deleteKey(getAddress(privateKey));
+		}
+
+		// The tag of the complete backup is checked before any key is stored
+		byte[] tampered = backup.clone();
+		tampered[backup.length / 2] ^= 0x01;
+		assertEquals(StatusCodes.DATA_INVALID, (short) transmitChained(
+				AppletInstructions.INS_RESTORE_KEYS, 0, 0, tampered, 200)
+				.getSW());
+		assertEquals(count, getRemainingSlots());
+
+		// Another instruction drops the restore
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA
+						| SecureBitcoinWalletJavaCardApplet.CLA_CHAINING,
+				AppletInstructions.INS_RESTORE_KEYS, 0, 0, Arrays.copyOf(
+						backup, 200)));
+		assertTrue(commandSuccessful(response));
+		assertEquals(count, getRemainingSlots());
+		assertEquals(StatusCodes.DATA_INVALID, (short) restore(
+				Arrays.copyOfRange(backup, 200, backup.length)).getSW());
+		assertEquals(count, getRemainingSlots());
+
+		response = transmitChained(AppletInstructions.INS_RESTORE_KEYS, 0, 0,
+				backup, 200);
+		assertTrue(commandSuccessful(response));
+		assertRestored(privateKeys, response.getData());
+	}
+
+	/**
+	 * Tests backups, which are rejected.
+	 */
+	@Test
+	public void testInvalidBackups() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[][] privateKeys = importKeys(3);
+		byte[] backup = backup(256);
+
+		for (byte[] privateKey : privateKeys) {
+			deleteKey(getAddress(privateKey));
+		}
+
+		// Any changed byte invalidates the tag
+		for (int i : new int[] { 0, 1, 5, 60, backup.length - 1 }) {
+			byte[] tampered = backup.clone();
+			tampered[i] ^= 0x01;
+			assertEquals(StatusCodes.DATA_INVALID,
+					(short) restore(tampered).getSW());
+		}
+
+		assertEquals(StatusCodes.DATA_INVALID, (short) restore(
+				Arrays.copyOf(backup, backup.length - 1)).getSW());
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+	}
+
+	/**
+	 * Tests, that the tag of a changed backup cannot be calculated with the
+	 * encryption of private keys.
+	 */
+	@Test
+	public void testForgedTag() throws CardException,
+			NoSuchAlgorithmException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[][] privateKeys = importKeys(2);
+		byte[] backup = backup(256);
+		deleteKey(getAddress(privateKeys[0]));
+		deleteKey(getAddress(privateKeys[1]));
+
+		// Replace the key of the first record
+		byte[] forged = Arrays.copyOf(backup, backup.length
+				- KeyStore.BACKUP_TAG_SIZE);
+		forged[2 + 2 + 21] ^= 0x01;
+
+		// Let the card encrypt the hash of the changed backup
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(forged);
+		byte[] address = getAddress(TestUtils.generatePrivateKey(random));
+		importKey(address, hash);
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_PRIVATE_KEY, 0, 0, address));
+		assertTrue(commandSuccessful(response));
+		deleteKey(address);
+
+		assertEquals(StatusCodes.DATA_INVALID, (short) restore(
+				TestUtils.concatenate(forged, Arrays.copyOf(
+						response.getData(), KeyStore.BACKUP_TAG_SIZE)))
+				.getSW());
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+	}
+
+	/**
+	 * Tests, that another instruction drops the pending backup.
+	 */
+	@Test
+	public void testDroppedBackup() throws CardException {
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_BACKUP_KEYS, 0, 0, 256));
+		assertEquals(StatusCodes.PIN_VERIFICATION_REQUIRED,
+				(short) response.getSW());
+
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+		importKeys(10);
+
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_BACKUP_KEYS, 0, 0, 256));
+		assertEquals(0x61, response.getSW1());
+
+		getRemainingSlots();
+
+		response = smartCard.transmit(new CommandAPDU(ISO7816.CLA_ISO7816,
+				AppletInstructions.INS_GET_RESPONSE, 0, 0, 256));
+		assertEquals(StatusCodes.CONDITIONS_NOT_SATISFIED,
+				(short) response.getSW());
+	}
+
+	/**
+	 * Checks, that all keys have been restored and can sign with their
+	 * handles.
+	 */
+	private void assertRestored(byte[][] privateKeys, byte[] status)
+			throws CardException {
+		assertEquals(4 * privateKeys.length, status.length);
+
+		byte[] hash = getSHA256Hash("Input");
+		for (int i = 0; i < privateKeys.length; i++) {
+			assertEquals(ISO7816.SW_NO_ERROR, getShort(status, 4 * i));
+
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+					AppletInstructions.P1_KEY_HANDLE, 0, TestUtils.concatenate(
+							Arrays.copyOfRange(status, 4 * i + 2, 4 * i + 4),
+							hash)));
+			assertTrue(commandSuccessful(response));
+			assertTrue(TestUtils.verifySignature(
+					TestUtils.calculatePublicKey(privateKeys[i]), hash,
+					response.getData()));
+		}
+	}
+
+	/**
+	 * Imports the given number of random keys.
+	 * 
+	 * @return The private keys
+	 */
+	private byte[][] importKeys(int count) throws CardException {
+		byte[][] privateKeys = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			privateKeys[i] = TestUtils.generatePrivateKey(random);
+			importKey(getAddress(privateKeys[i]), privateKeys[i]);
+		}
+		return privateKeys;
+	}
+
+	/**
+	 * Exports the backup with the given maximum response length.
+	 */
+	private byte[] backup(int ne) throws CardException {
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_BACKUP_KEYS, 0, 0, ne));
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		response = getRemainingResponse(response, data);
+		assertTrue(commandSuccessful(response));
+
+		return data.toByteArray();
+	}
+
+	/**
+	 * Restores the given backup in one extended length command.
+	 */
+	private ResponseAPDU restore(byte[] backup) throws CardException {
+		return smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_RESTORE_KEYS, 0, 0, backup, 65536));
+	}
+
+	private static byte[] getAddress(byte[] privateKey) {
+		return TestUtils.calculateBitcoinAddress(
+				TestUtils.calculatePublicKey(privateKey)).getBytes();
+	}
+
+	private static short getShort(byte[] data, int offset) {
+		return (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+	}
+}
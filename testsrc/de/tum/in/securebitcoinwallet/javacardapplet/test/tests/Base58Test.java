@@ -0,0 +1,112 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.Base58;
+
+/**
+ * UnitTests for the Base58 encoding of the applet. The results are compared
+ * with the Base58 implementation of the tests.
+ */
+public class Base58Test {
+	/**
+	 * Offset of input and output inside the arrays passed to the applet.
+	 */
+	private static final int OFFSET = 3;
+
+	/**
+	 * Encodes and decodes random inputs of all lengths up to 80 bytes with up
+	 * to 3 leading zero bytes.
+	 */
+	@Test
+	public void testRandomInputs() throws UnsupportedEncodingException {
+		Random random = new Random(42);
+
+		for (int length = 0; length <= 80; length++) {
+			for (int i = 0; i < 20; i++) {
+				byte[] input = new byte[length];
+				random.nextBytes(input);
+				for (int j = random.nextInt(4); j > 0 && j <= length; j--) {
+					input[j - 1] = 0;
+				}
+
+				String expected = de.tum.in.securebitcoinwallet.javacardapplet.test.util.Base58
+						.encode(input);
+				assertEquals(expected, encode(input));
+				assertArrayEquals(expected, input, decode(expected));
+			}
+		}
+	}
+
+	/**
+	 * Encodes and decodes inputs consisting of zero bytes only.
+	 */
+	@Test
+	public void testZeros() throws UnsupportedEncodingException {
+		for (int length = 1; length <= 30; length++) {
+			byte[] input = new byte[length];
+			char[] expected = new char[length];
+			Arrays.fill(expected, '1');
+
+			assertEquals(new String(expected), encode(input));
+			assertArrayEquals(input, decode(new String(expected)));
+		}
+	}
+
+	/**
+	 * Strings with characters outside of the alphabet are rejected.
+	 */
+	@Test
+	public void testInvalidCharacters() throws UnsupportedEncodingException {
+		String[] invalid = { "0", "O", "I", "l", "1BvBMSEYstWetqTFn5Au4m4GFg7xJaNV0",
+				"+", "\u007f", "\u00e4" };
+
+		for (String string : invalid) {
+			byte[] in = string.getBytes("ISO-8859-1");
+			assertEquals(string, -1, Base58.decode(in, (short) 0,
+					(short) in.length, new byte[in.length], (short) 0,
+					new byte[in.length], (short) 0));
+		}
+	}
+
+	/**
+	 * Encodes with the applet, the output array has the minimum size.
+	 */
+	private static String encode(byte[] input)
+			throws UnsupportedEncodingException {
+		byte[] in = new byte[OFFSET + input.length];
+		System.arraycopy(input, 0, in, OFFSET, input.length);
+		byte[] out = new byte[OFFSET + 2 * input.length];
+		byte[] scratch = new byte[OFFSET + input.length];
+
+		short end = Base58.encode(in, (short) OFFSET, (short) input.length,
+				out, (short) OFFSET, scratch, (short) OFFSET);
+		return new String(out, OFFSET, end - OFFSET, "US-ASCII");
+	}
+
+	/**
+	 * Decodes with the applet, the output array has the minimum size.
+	 */
+	private static byte[] decode(String string)
+			throws UnsupportedEncodingException {
+		byte[] input = string.getBytes("US-ASCII");
+		byte[] in = new byte[OFFSET + input.length];
+		System.arraycopy(input, 0, in, OFFSET, input.length);
+		byte[] out = new byte[OFFSET + input.length];
+		// Garbage in front of the result must not leak into it
+		Arrays.fill(out, (byte) 0x55);
+		byte[] scratch = new byte[OFFSET + input.length];
+
+		short length = Base58.decode(in, (short) OFFSET, (short) input.length,
+				out, (short) OFFSET, scratch, (short) OFFSET);
+		assertEquals(true, length >= 0);
+		return Arrays.copyOfRange(out, OFFSET, OFFSET + length);
+	}
+}
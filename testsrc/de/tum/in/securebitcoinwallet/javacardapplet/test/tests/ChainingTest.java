@@ -0,0 +1,149 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Tests command chaining and responses fetched with GET RESPONSE.
+ */
+public class ChainingTest extends AppletTestBase {
+	public ChainingTest() throws CardException {
+		super();
+	}
+
+	/**
+	 * Imports a key and signs with it using commands split into several
+	 * chained commands.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testChainedCommands() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] rawBitcoinAddress = KeyStoreTest.BITCOIN_ADDRESS_STRING
+				.getBytes();
+		byte[] rawPrivateKey = Hex.decode(KeyStoreTest.PRIVATE_KEY_HEX);
+		byte[] publicKey = TestUtils.calculatePublicKey(rawPrivateKey);
+
+		ResponseAPDU response = transmitChained(
+				AppletInstructions.INS_IMPORT_PRIVATE_KEY,
+				rawBitcoinAddress.length, rawPrivateKey.length,
+				TestUtils.concatenate(rawBitcoinAddress, rawPrivateKey), 10);
+
+		assertTrue(commandSuccessful(response));
+		assertEquals(2, response.getData().length);
+
+		byte[] hash = getSHA256Hash("Input");
+		response = transmitChained(AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+				rawBitcoinAddress.length, 0,
+				TestUtils.concatenate(rawBitcoinAddress, hash), 16);
+
+		assertTrue(commandSuccessful(response));
+		assertTrue(TestUtils.verifySignature(publicKey, hash,
+				response.getData()));
+
+		deleteKey(rawBitcoinAddress);
+	}
+
+	/**
+	 * Checks that a chain interrupted by another instruction or exceeding the
+	 * command buffer is rejected.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testInvalidChains() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA
+						| SecureBitcoinWalletJavaCardApplet.CLA_CHAINING,
+				AppletInstructions.INS_SELECT_KEY, 0, 0, new byte[10]));
+		assertTrue(commandSuccessful(response));
+
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0));
+		assertEquals(StatusCodes.LAST_COMMAND_EXPECTED,
+				(short) response.getSW());
+
+		// The interrupted chain has been dropped
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+
+		response = transmitChained(AppletInstructions.INS_SELECT_KEY, 0, 0,
+				new byte[SecureBitcoinWalletJavaCardApplet.COMMAND_BUFFER_SIZE + 1],
+				200);
+		assertEquals(StatusCodes.WRONG_LENGTH, (short) response.getSW());
+	}
+
+	/**
+	 * Fetches a response longer than the expected length with GET RESPONSE.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testGetResponse() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] rawBitcoinAddress = KeyStoreTest.BITCOIN_ADDRESS_STRING
+				.getBytes();
+		byte[] handle = importKey(rawBitcoinAddress,
+				Hex.decode(KeyStoreTest.PRIVATE_KEY_HEX));
+
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle));
+		assertTrue(commandSuccessful(response));
+		byte[] encryptedKey = response.getData();
+
+		// Expect less than the encrypted key
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle, 20));
+
+		assertEquals(0x61, response.getSW1());
+		assertEquals(encryptedKey.length - 20, response.getSW2());
+		assertEquals(20, response.getData().length);
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		response = getRemainingResponse(response, data);
+		assertTrue(commandSuccessful(response));
+		assertArrayEquals(encryptedKey, data.toByteArray());
+
+		// The rest of a response is dropped by the next instruction
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle, 20));
+		assertEquals(0x61, response.getSW1());
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 1,
+				getRemainingSlots());
+
+		response = smartCard.transmit(new CommandAPDU(0x00,
+				AppletInstructions.INS_GET_RESPONSE, 0, 0, 256));
+		assertEquals(StatusCodes.CONDITIONS_NOT_SATISFIED,
+				(short) response.getSW());
+
+		deleteKey(rawBitcoinAddress);
+	}
+}
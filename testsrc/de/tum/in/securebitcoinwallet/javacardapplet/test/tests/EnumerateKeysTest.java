@@ -0,0 +1,201 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.Base58;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Tests the enumeration of the stored keys. The applet is installed inside
+ * the simulator with the maximum store size of 254 keys.
+ */
+public class EnumerateKeysTest extends AppletTestBase {
+	private static final int STORE_SIZE = 254;
+
+	/**
+	 * Size of a record of a stored address: handle, length and version byte
+	 * with RIPEMD-160 hash.
+	 */
+	private static final int RECORD_SIZE = 2 + 1 + 21;
+
+	/**
+	 * Number of exchanges of the last enumeration.
+	 */
+	private int exchanges;
+
+	public EnumerateKeysTest() throws CardException {
+		super(new JavaCardSimulator(AID, new byte[] {
+				SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_STORE_SIZE, 1,
+				(byte) STORE_SIZE }));
+	}
+
+	/**
+	 * Enumerates a full store with short and extended length responses and
+	 * checks the number of exchanges.
+	 */
+	@Test
+	public void testEnumerateFullStore() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Map<String, String> keys = importKeys(STORE_SIZE);
+
+		// Short responses hold 10 records next to the cursor
+		assertEquals(keys, enumerateKeys(256));
+		int recordsPerResponse = (256 - 2) / RECORD_SIZE;
+		assertEquals((STORE_SIZE + recordsPerResponse - 1) / recordsPerResponse,
+				exchanges);
+
+		// One extended length response holds the whole store
+		assertEquals(keys, enumerateKeys(65536));
+		assertEquals(1, exchanges);
+	}
+
+	/**
+	 * Enumerates a store with deleted keys.
+	 */
+	@Test
+	public void testEnumerateWithGaps() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		assertEquals(0, enumerateKeys(256).size());
+		assertEquals(1, exchanges);
+
+		Map<String, String> keys = importKeys(30);
+
+		int i = 0;
+		for (String handle : keys.keySet().toArray(new String[0])) {
+			if (i++ % 3 == 0) {
+				deleteKey(keys.remove(handle).getBytes());
+			}
+		}
+
+		// 20 records of 24 bytes
+		assertEquals(keys, enumerateKeys(256));
+		assertEquals(2, exchanges);
+	}
+
+	/**
+	 * Tests the rejected enumerations.
+	 */
+	@Test
+	public void testInvalidEnumerations() throws CardException {
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_ENUMERATE_KEYS, 0, 0, 256));
+		assertEquals(StatusCodes.PIN_VERIFICATION_REQUIRED,
+				(short) response.getSW());
+
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+		importKeys(1);
+
+		// Not even one record fits. Sent with data, as the simulator reads Le
+		// of commands without data as Lc.
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_ENUMERATE_KEYS, 0, 0, new byte[] { 0 },
+				RECORD_SIZE + 1));
+		assertEquals(StatusCodes.WRONG_LENGTH, (short) response.getSW());
+
+		// A cursor behind the store ends the enumeration
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_ENUMERATE_KEYS, 0x01, 0x00, 256));
+		assertTrue(commandSuccessful(response));
+		assertArrayEquals(new byte[] { (byte) 0xFF, (byte) 0xFF },
+				response.getData());
+	}
+
+	/**
+	 * Imports the given number of random keys.
+	 * 
+	 * @return The Bitcoin addresses by hex encoded handle
+	 */
+	private Map<String, String> importKeys(int count) throws CardException {
+		Random random = new Random(count);
+		Map<String, String> keys = new LinkedHashMap<String, String>();
+
+		byte[] publicKey = new byte[65];
+		for (int i = 0; i < count; i++) {
+			random.nextBytes(publicKey);
+			String address = TestUtils.calculateBitcoinAddress(publicKey);
+
+			byte[] handle = importKey(address.getBytes(),
+					TestUtils.generatePrivateKey(random));
+			keys.put(TestUtils.getHexString(handle), address);
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Enumerates all keys with the given maximum response length and counts
+	 * the exchanges in {@link #exchanges}.
+	 * 
+	 * @return The Bitcoin addresses by hex encoded handle
+	 */
+	private Map<String, String> enumerateKeys(int ne) throws CardException {
+		Map<String, String> keys = new LinkedHashMap<String, String>();
+		int cursor = 0;
+		exchanges = 0;
+
+		while (cursor != 0xFFFF) {
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_ENUMERATE_KEYS, cursor >> 8,
+					cursor & 0xFF, ne));
+			exchanges++;
+
+			assertEquals("exchange " + exchanges, 0x9000, response.getSW());
+
+			byte[] data = response.getData();
+			cursor = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+
+			for (int offset = 2; offset < data.length;) {
+				byte[] handle = Arrays.copyOfRange(data, offset, offset + 2);
+				int length = data[offset + 2] & 0xFF;
+				byte[] address = Arrays.copyOfRange(data, offset + 3, offset
+						+ 3 + length);
+				offset += 3 + length;
+
+				keys.put(TestUtils.getHexString(handle), encodeAddress(address));
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Encodes an address stored as version byte and RIPEMD-160 hash with
+	 * Base58Check.
+	 */
+	private static String encodeAddress(byte[] address) {
+		byte[] checksum = Arrays.copyOf(sha256(sha256(address)), 4);
+		return Base58.encode(TestUtils.concatenate(address, checksum));
+	}
+
+	private static byte[] sha256(byte[] data) {
+		try {
+			return java.security.MessageDigest.getInstance("SHA-256").digest(
+					data);
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
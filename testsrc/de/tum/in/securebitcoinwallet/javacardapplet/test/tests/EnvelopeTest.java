@@ -0,0 +1,149 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Tests the envelope instruction.
+ */
+public class EnvelopeTest extends AppletTestBase {
+	private static final byte[] SW_NO_ERROR = { (byte) 0x90, 0x00 };
+
+	public EnvelopeTest() throws CardException {
+		super();
+	}
+
+	/**
+	 * Authenticates, selects a key, signs and checks the remaining memory
+	 * with one envelope instruction.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testSignFlow() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] rawBitcoinAddress = KeyStoreTest.BITCOIN_ADDRESS_STRING
+				.getBytes();
+		byte[] rawPrivateKey = Hex.decode(KeyStoreTest.PRIVATE_KEY_HEX);
+		byte[] publicKey = TestUtils.calculatePublicKey(rawPrivateKey);
+		importKey(rawBitcoinAddress, rawPrivateKey);
+
+		byte[] hash = getSHA256Hash("Input");
+
+		byte[][][] responses = transmitEnvelope(
+				subCommand(AppletInstructions.INS_AUTHENTICATE, 0, 0,
+						SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN),
+				subCommand(AppletInstructions.INS_SELECT_KEY, 0, 0,
+						rawBitcoinAddress),
+				subCommand(AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash),
+				subCommand(AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0,
+						new byte[0]));
+
+		assertEquals(4, responses.length);
+		for (byte[][] response : responses) {
+			assertArrayEquals(SW_NO_ERROR, response[0]);
+		}
+
+		assertEquals(0, responses[0][1].length);
+		assertEquals(0, responses[1][1].length);
+		assertTrue(TestUtils.verifySignature(publicKey, hash, responses[2][1]));
+		assertArrayEquals(new byte[] { 0,
+				SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 1 },
+				responses[3][1]);
+
+		deleteKey(rawBitcoinAddress);
+	}
+
+	/**
+	 * Checks that the envelope stops at the first failing sub-command.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testStopAtFailure() throws CardException {
+		byte[][][] responses = transmitEnvelope(
+				subCommand(AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0,
+						new byte[0]),
+				subCommand(AppletInstructions.INS_AUTHENTICATE, 0, 0,
+						new byte[] { 9, 9, 9, 9 }),
+				subCommand(AppletInstructions.INS_GENERATE_KEY, 0, 0,
+						new byte[0]));
+
+		assertEquals(2, responses.length);
+		assertArrayEquals(SW_NO_ERROR, responses[0][0]);
+		assertEquals(StatusCodes.AUTH_FAILED,
+				(short) (((responses[1][0][0] & 0xFF) << 8) | (responses[1][0][1] & 0xFF)));
+		assertEquals(0, responses[1][1].length);
+
+		assertFalse(checkPINValidated());
+
+		// Instructions, which cannot be nested, fail like unknown ones
+		responses = transmitEnvelope(subCommand(
+				AppletInstructions.INS_ENVELOPE, 0, 0, new byte[0]));
+		assertEquals(StatusCodes.INS_NOT_SUPPORTED,
+				(short) (((responses[0][0][0] & 0xFF) << 8) | (responses[0][0][1] & 0xFF)));
+
+		// A truncated sub-command is rejected before anything is executed
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_ENVELOPE, 0, 0, TestUtils.concatenate(
+						subCommand(AppletInstructions.INS_AUTHENTICATE, 0, 0,
+								SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN),
+						new byte[] { AppletInstructions.INS_GENERATE_KEY, 0,
+								0, 1 })));
+		assertEquals(StatusCodes.DATA_INVALID, (short) response.getSW());
+
+		assertFalse(checkPINValidated());
+	}
+
+	/**
+	 * Checks that a sub-command is only executed, if there is room left for
+	 * its response, and that the sub-commands before are reported as
+	 * executed.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testResponseCapacity() throws CardException {
+		int remainingSlots = getRemainingSlots();
+
+		// 246 bytes of sub-commands and 8 bytes of responses leave less than
+		// the 3 + 255 bytes of a maximum sized response in the command buffer
+		// of 512 bytes for the key generation
+		byte[] data = TestUtils.concatenate(TestUtils.concatenate(
+				subCommand(AppletInstructions.INS_AUTHENTICATE, 0, 0,
+						SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN),
+				subCommand(AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0,
+						new byte[230])), subCommand(
+				AppletInstructions.INS_GENERATE_KEY, 0, 0, new byte[0]));
+
+		ResponseAPDU response = transmitChained(
+				AppletInstructions.INS_ENVELOPE, 0, 0, data, 200);
+		assertTrue(commandSuccessful(response));
+
+		byte[] expected = TestUtils.concatenate(TestUtils.concatenate(
+				new byte[] { (byte) 0x90, 0x00, 0 }, new byte[] { (byte) 0x90,
+						0x00, 2, 0, (byte) remainingSlots }), new byte[] {
+				(byte) (StatusCodes.NOT_ENOUGH_WORKING_MEMORY >> 8),
+				(byte) StatusCodes.NOT_ENOUGH_WORKING_MEMORY, 0 });
+		assertArrayEquals(expected, response.getData());
+
+		assertTrue(checkPINValidated());
+		assertEquals(remainingSlots, getRemainingSlots());
+	}
+}
@@ -0,0 +1,109 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Tests commands and responses with extended length APDUs. The applet is
+ * installed inside the simulator with a batch size of 128 hashes, so that a
+ * batch of 4 KB fits.
+ */
+public class ExtendedLengthTest extends AppletTestBase {
+	private static final int BATCH_SIZE = 128;
+
+	public ExtendedLengthTest() throws CardException {
+		super(new JavaCardSimulator(AID, new byte[] {
+				SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_WORKING_MEMORY_SIZE,
+				2, 0x14, 0x00,
+				SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_SIGNATURE_BATCH_SIZE,
+				1, (byte) BATCH_SIZE }));
+	}
+
+	/**
+	 * Signs a batch of 1 KB hashes in one extended length command.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testBatchSign1KB() throws CardException {
+		signBatchAndVerify(1024 / 32);
+	}
+
+	/**
+	 * Signs a batch of 4 KB hashes in one extended length command.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testBatchSign4KB() throws CardException {
+		signBatchAndVerify(4096 / 32);
+	}
+
+	/**
+	 * Checks that a batch exceeding the configured batch size is rejected
+	 * and that short commands still work after extended ones.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testBatchTooLarge() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH_BATCH, 0, 0,
+				new byte[(BATCH_SIZE + 1) * 32], 65536));
+
+		assertEquals(StatusCodes.WRONG_LENGTH, (short) response.getSW());
+
+		// A hash split into a partial block is rejected, too
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH_BATCH, 0, 0,
+				new byte[1000], 65536));
+
+		assertEquals(StatusCodes.WRONG_LENGTH, (short) response.getSW());
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+	}
+
+	private void signBatchAndVerify(int count) throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] rawBitcoinAddress = KeyStoreTest.BITCOIN_ADDRESS_STRING
+				.getBytes();
+		byte[] rawPrivateKey = Hex.decode(KeyStoreTest.PRIVATE_KEY_HEX);
+		byte[] publicKey = TestUtils.calculatePublicKey(rawPrivateKey);
+
+		importKey(rawBitcoinAddress, rawPrivateKey);
+		selectPrivateKey(rawBitcoinAddress);
+
+		byte[][] hashes = new byte[count][];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = getSHA256Hash("Input " + i);
+		}
+
+		byte[][] signatures = signBatchExtended(hashes);
+
+		for (int i = 0; i < hashes.length; i++) {
+			assertTrue(TestUtils.verifySignature(publicKey, hashes[i],
+					signatures[i]));
+		}
+
+		deleteKey(rawBitcoinAddress);
+	}
+}
@@ -0,0 +1,262 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javacard.framework.ISO7816;
+import javacard.framework.TransactionException;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.KeyStore;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.WorkingMemory;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.SimulatorApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * UnitTests for the import of a list of keys in one command.
+ */
+public class ImportKeysTest extends AppletTestBase {
+	private final Random random = new Random(16);
+
+	public ImportKeysTest() throws CardException {
+		super();
+	}
+
+	/**
+	 * Imports a list of keys and signs with each of them.
+	 */
+	@Test
+	public void testImportKeys() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		int count = SecureBitcoinWalletJavaCardApplet.STORE_SIZE;
+		byte[][] privateKeys = new byte[count][];
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			privateKeys[i] = TestUtils.generatePrivateKey(random);
+			byte[] record = keyRecord(getAddress(privateKeys[i]),
+					privateKeys[i]);
+			records.write(record, 0, record.length);
+		}
+
+		ResponseAPDU response = importKeys(false, records.toByteArray());
+		assertTrue(commandSuccessful(response));
+		assertEquals(0, getRemainingSlots());
+
+		byte[] hash = getSHA256Hash("Input");
+		byte[] status = response.getData();
+		assertEquals(4 * count, status.length);
+		for (int i = 0; i < count; i++) {
+			assertEquals(ISO7816.SW_NO_ERROR, getStatus(status, i));
+
+			response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+					AppletInstructions.P1_KEY_HANDLE, 0, TestUtils.concatenate(
+							getHandle(status, i), hash)));
+			assertTrue(commandSuccessful(response));
+			assertTrue(TestUtils.verifySignature(
+					TestUtils.calculatePublicKey(privateKeys[i]), hash,
+					response.getData()));
+		}
+	}
+
+	/**
+	 * Imports a list of keys, of which some cannot be imported, in chained
+	 * commands.
+	 */
+	@Test
+	public void testPerKeyStatus() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] storedKey = TestUtils.generatePrivateKey(random);
+		importKey(getAddress(storedKey), storedKey);
+
+		byte[] newKey = TestUtils.generatePrivateKey(random);
+		byte[] records = TestUtils.concatenate(
+				keyRecord(getAddress(newKey), newKey),
+				TestUtils.concatenate(
+						keyRecord(getAddress(storedKey), storedKey),
+						TestUtils.concatenate(
+								keyRecord(getAddress(newKey), newKey),
+								keyRecord(Arrays.copyOf(getAddress(newKey), 20),
+										newKey))));
+
+		ResponseAPDU response = transmitChained(
+				AppletInstructions.INS_IMPORT_PRIVATE_KEYS, 0, 0, records, 100);
+		assertTrue(commandSuccessful(response));
+
+		byte[] status = response.getData();
+		assertEquals(4 * 4, status.length);
+		assertEquals(ISO7816.SW_NO_ERROR, getStatus(status, 0));
+		assertEquals(StatusCodes.KEY_ALREADY_IN_STORE, getStatus(status, 1));
+		assertEquals(StatusCodes.KEY_ALREADY_IN_STORE, getStatus(status, 2));
+		assertEquals(StatusCodes.WRONG_ADDRESS_LENGTH, getStatus(status, 3));
+		assertArrayEquals(new byte[2], getHandle(status, 3));
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 2,
+				getRemainingSlots());
+
+		// The keys exceeding the store are skipped
+		ByteArrayOutputStream fullStore = new ByteArrayOutputStream();
+		for (int i = 0; i < SecureBitcoinWalletJavaCardApplet.STORE_SIZE; i++) {
+			byte[] key = TestUtils.generatePrivateKey(random);
+			byte[] record = keyRecord(getAddress(key), key);
+			fullStore.write(record, 0, record.length);
+		}
+		response = importKeys(false, fullStore.toByteArray());
+		assertTrue(commandSuccessful(response));
+
+		status = response.getData();
+		for (int i = 0; i < SecureBitcoinWalletJavaCardApplet.STORE_SIZE; i++) {
+			assertEquals(i < SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 2 ? ISO7816.SW_NO_ERROR
+					: StatusCodes.KEYSTORE_FULL, getStatus(status, i));
+		}
+		assertEquals(0, getRemainingSlots());
+	}
+
+	/**
+	 * Exports encrypted keys and imports them again in one command.
+	 */
+	@Test
+	public void testImportEncryptedKeys() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] records = new byte[0];
+		byte[][] privateKeys = new byte[3][];
+		for (int i = 0; i < privateKeys.length; i++) {
+			privateKeys[i] = TestUtils.generatePrivateKey(random);
+			byte[] address = getAddress(privateKeys[i]);
+			importKey(address, privateKeys[i]);
+
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_GET_PRIVATE_KEY, 0, 0, address));
+			assertTrue(commandSuccessful(response));
+			deleteKey(address);
+
+			records = TestUtils.concatenate(records,
+					keyRecord(address, response.getData()));
+		}
+
+		ResponseAPDU response = importKeys(true, records);
+		assertTrue(commandSuccessful(response));
+
+		byte[] hash = getSHA256Hash("Input");
+		for (int i = 0; i < privateKeys.length; i++) {
+			assertEquals(ISO7816.SW_NO_ERROR,
+					getStatus(response.getData(), i));
+
+			byte[] signature = getSignature(getAddress(privateKeys[i]),
+					"Input");
+			assertTrue(TestUtils.verifySignature(
+					TestUtils.calculatePublicKey(privateKeys[i]), hash,
+					signature));
+		}
+	}
+
+	/**
+	 * Tests lists, which are rejected as a whole.
+	 */
+	@Test
+	public void testInvalidLists() throws CardException {
+		byte[] key = TestUtils.generatePrivateKey(random);
+		byte[] record = keyRecord(getAddress(key), key);
+
+		assertEquals(StatusCodes.PIN_VERIFICATION_REQUIRED,
+				(short) importKeys(false, record).getSW());
+
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		// Truncated record
+		assertEquals(StatusCodes.DATA_INVALID, (short) importKeys(false,
+				TestUtils.concatenate(record,
+						Arrays.copyOf(record, record.length - 1))).getSW());
+
+		// Wrong key length
+		assertEquals(StatusCodes.WRONG_PRIVATE_KEY_LENGTH, (short) importKeys(
+				false, TestUtils.concatenate(record,
+						keyRecord(getAddress(key), Arrays.copyOf(key, 31))))
+				.getSW());
+
+		// Unknown P1
+		assertEquals(StatusCodes.INCORRECT_P1P2, (short) smartCard.transmit(
+				new CommandAPDU(AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+						AppletInstructions.INS_IMPORT_PRIVATE_KEYS, 0x02, 0,
+						record)).getSW());
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+	}
+
+	/**
+	 * A failure after the first transaction has been committed keeps the
+	 * status of the committed keys. Each key is stored in its own
+	 * transaction and storing the third key fails.
+	 */
+	@Test
+	public void testPartialImport() {
+		KeyStore keyStore = new KeyStore((short) 4, (short) 35,
+				KeyStore.ADDRESS_FORMAT_HASH160,
+				SimulatorApplet.createECDSASHA256Signature(),
+				new WorkingMemory((short) 512)) {
+			private int calls = 0;
+
+			@Override
+			protected short getUnusedCommitCapacity() {
+				if (++calls == 3) {
+					TransactionException
+							.throwIt(TransactionException.BUFFER_FULL);
+				}
+				return 0;
+			}
+		};
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (int i = 0; i < 4; i++) {
+			byte[] key = TestUtils.generatePrivateKey(random);
+			byte[] record = keyRecord(getAddress(key), key);
+			records.write(record, 0, record.length);
+		}
+
+		byte[] status = new byte[16];
+		short length = keyStore.importPrivateKeys(records.toByteArray(),
+				(short) 0, (short) records.size(),
+				KeyStore.RECORDS_ENCRYPTED_KEYS, status, (short) 0);
+
+		// The first key has been committed, the second one is dropped with
+		// the transaction, in which storing the third one failed
+		assertEquals(8, length);
+		assertEquals(ISO7816.SW_NO_ERROR, getStatus(status, 0));
+		assertFalse(Arrays.equals(new byte[2], getHandle(status, 0)));
+		assertEquals(ISO7816.SW_UNKNOWN, getStatus(status, 1));
+		assertArrayEquals(new byte[2], getHandle(status, 1));
+	}
+
+	private static byte[] getAddress(byte[] privateKey) {
+		return TestUtils.calculateBitcoinAddress(
+				TestUtils.calculatePublicKey(privateKey)).getBytes();
+	}
+
+	private static short getStatus(byte[] status, int index) {
+		return (short) (((status[4 * index] & 0xFF) << 8) | (status[4 * index + 1] & 0xFF));
+	}
+
+	private static byte[] getHandle(byte[] status, int index) {
+		return Arrays.copyOfRange(status, 4 * index + 2, 4 * index + 4);
+	}
+}
@@ -0,0 +1,147 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Installs the applet inside the simulator with different install parameters
+ * and checks the resulting store size.
+ */
+public class InstallParametersTest {
+	private static final byte[] AID = AppletTestBase.AID;
+
+	private static final byte STORE_SIZE = SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_STORE_SIZE;
+
+	private static final byte ADDRESS_SIZE = SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_ADDRESS_SIZE;
+
+	private static final byte WORKING_MEMORY_SIZE = SecureBitcoinWalletJavaCardApplet.INSTALL_TAG_WORKING_MEMORY_SIZE;
+
+	@Test
+	public void testDefaultParameters() throws CardException {
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots(new byte[0]));
+
+		// Padding as sent by the install script
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots(new byte[] { 0x00 }));
+	}
+
+	@Test
+	public void testConfiguredParameters() throws CardException {
+		assertEquals(1, getRemainingSlots(new byte[] { STORE_SIZE, 1, 1 }));
+
+		assertEquals(100, getRemainingSlots(new byte[] { STORE_SIZE, 1, 100,
+				ADDRESS_SIZE, 1, 35, WORKING_MEMORY_SIZE, 2, 0x08, 0x00 }));
+
+		assertEquals(254, getRemainingSlots(new byte[] { STORE_SIZE, 1,
+				(byte) 254, WORKING_MEMORY_SIZE, 2, 0x04, 0x00 }));
+
+		// Unknown parameters are ignored
+		assertEquals(8, getRemainingSlots(new byte[] { 0x01, 2, 0x12, 0x34,
+				STORE_SIZE, 1, 8 }));
+	}
+
+	@Test
+	public void testInvalidParameters() throws CardException {
+		// Working memory too small for the KeyStore buffers
+		assertInstallationFails(new byte[] { WORKING_MEMORY_SIZE, 2, 0x00,
+				(byte) 200 });
+
+		// Store size out of range
+		assertInstallationFails(new byte[] { STORE_SIZE, 1, 0 });
+		assertInstallationFails(new byte[] { STORE_SIZE, 1, (byte) 255 });
+
+		// Address size too small or too large for a Bitcoin address
+		assertInstallationFails(new byte[] { ADDRESS_SIZE, 1, 20 });
+		assertInstallationFails(new byte[] { ADDRESS_SIZE, 1, 36 });
+		assertInstallationFails(new byte[] { ADDRESS_SIZE, 1, 50 });
+
+		// Truncated TLV
+		assertInstallationFails(new byte[] { STORE_SIZE, 2, 0x00 });
+		assertInstallationFails(new byte[] { STORE_SIZE });
+	}
+
+	/**
+	 * Addresses longer than the configured address size are rejected, shorter
+	 * ones are imported.
+	 */
+	@Test
+	public void testAddressSize() throws CardException {
+		JavaCardSimulator card = new JavaCardSimulator(AID, new byte[] {
+				ADDRESS_SIZE, 1, 33 });
+		card.setup();
+		assertTrue(AppletTestBase.commandSuccessful(card
+				.transmit(new CommandAPDU(
+						AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+						AppletInstructions.INS_AUTHENTICATE, 0, 0,
+						SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN))));
+
+		Random random = new Random(10);
+		assertEquals(StatusCodes.WRONG_ADDRESS_LENGTH, (short) importKey(
+				card, random, 34).getSW());
+		assertTrue(AppletTestBase.commandSuccessful(importKey(card, random,
+				33)));
+	}
+
+	/**
+	 * Imports a random key, whose Base58 address has the given length.
+	 */
+	private static ResponseAPDU importKey(JavaCardSimulator card,
+			Random random, int addressLength) {
+		byte[] privateKey;
+		byte[] address;
+		do {
+			privateKey = TestUtils.generatePrivateKey(random);
+			address = TestUtils.calculateBitcoinAddress(
+					TestUtils.calculatePublicKey(privateKey)).getBytes();
+		} while (address.length != addressLength);
+
+		return card.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_IMPORT_PRIVATE_KEY, address.length,
+				privateKey.length, TestUtils.concatenate(address, privateKey)));
+	}
+
+	/**
+	 * Installs the applet with the given parameters and returns the number
+	 * of free key slots.
+	 */
+	private static int getRemainingSlots(byte[] installParameters)
+			throws CardException {
+		JavaCardSimulator card = new JavaCardSimulator(AID, installParameters);
+		card.setup();
+
+		ResponseAPDU response = card.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_REMAINING_MEMORY, 0, 0));
+
+		assertTrue(AppletTestBase.commandSuccessful(response));
+
+		byte[] data = response.getData();
+		return ((data[0] & 0xFF) << 8) + (data[1] & 0xFF);
+	}
+
+	private static void assertInstallationFails(byte[] installParameters) {
+		try {
+			new JavaCardSimulator(AID, installParameters);
+		} catch (RuntimeException e) {
+			return;
+		}
+		fail("Installation should have failed");
+	}
+}
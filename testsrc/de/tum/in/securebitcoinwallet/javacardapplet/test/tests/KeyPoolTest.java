@@ -0,0 +1,242 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * UnitTests for the key pool.
+ */
+public class KeyPoolTest extends AppletTestBase {
+	private static final byte POOLED_KEYS = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_POOLED_KEYS;
+
+	public KeyPoolTest() throws CardException {
+		super();
+	}
+
+	/**
+	 * Fills the pool and hands out all pooled keys.
+	 */
+	@Test
+	public void testFillAndGetPooledKeys() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		assertEquals(3, fillKeyPool(0, 3));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 3,
+				getRemainingSlots());
+		assertEquals(3, (int) getStatus().get(POOLED_KEYS));
+
+		Set<String> addresses = new HashSet<String>();
+		for (int i = 0; i < 3; i++) {
+			byte[][] key = getPooledKey();
+			assertEquals(21, key[1].length);
+			assertEquals(2, key[2].length);
+			assertTrue(addresses.add(TestUtils.getHexString(key[1])));
+
+			// The address is derived from the uncompressed public key
+			assertEquals(0x00, key[3][0]);
+			assertPublicKey(decompress(key[0]), key);
+		}
+
+		assertEquals(0, (int) getStatus().get(POOLED_KEYS));
+
+		// Handed out keys stay in the store
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 3,
+				getRemainingSlots());
+
+		ResponseAPDU response = transmitGetPooledKey();
+		assertEquals(StatusCodes.KEY_NOT_FOUND, (short) response.getSW());
+	}
+
+	/**
+	 * Fills the whole store and deletes a pooled key.
+	 */
+	@Test
+	public void testFillFullStore() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		// A generated key is not pooled
+		byte[][] generated = generateKey(AppletInstructions.P1_COMPRESSED);
+
+		// Only the free slots are filled
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 1,
+				fillKeyPool(AppletInstructions.P1_COMPRESSED, 0xFF));
+		assertEquals(0, getRemainingSlots());
+
+		ResponseAPDU response = transmitFillKeyPool(0, 1);
+		assertEquals(StatusCodes.KEYSTORE_FULL, (short) response.getSW());
+
+		byte[][] key = getPooledKey();
+		assertFalse(Arrays.equals(generated[1], key[1]));
+
+		// The address is derived from the compressed public key
+		assertEquals(AppletInstructions.P1_COMPRESSED, key[3][0]);
+		assertPublicKey(key[0], key);
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 2,
+				(int) getStatus().get(POOLED_KEYS));
+
+		// A handed out key is deleted like any other key
+		deleteKeyByHandle(key[2]);
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 2,
+				(int) getStatus().get(POOLED_KEYS));
+
+		// A deleted pooled key leaves the pool
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_ENUMERATE_KEYS, 0, 0, 256));
+		assertTrue(commandSuccessful(response));
+		byte[] handle = Arrays.copyOfRange(response.getData(), 2 + 24, 2 + 26);
+		assertFalse(Arrays.equals(generated[2], handle));
+		deleteKeyByHandle(handle);
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 3,
+				(int) getStatus().get(POOLED_KEYS));
+		assertEquals(2, getRemainingSlots());
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 1,
+				fillKeyPool(0, 2));
+	}
+
+	/**
+	 * Tests the parameter checks and the PIN verification.
+	 */
+	@Test
+	public void testParameters() throws CardException {
+		ResponseAPDU response = transmitFillKeyPool(0, 1);
+		assertEquals(StatusCodes.PIN_VERIFICATION_REQUIRED,
+				(short) response.getSW());
+
+		response = transmitGetPooledKey();
+		assertEquals(StatusCodes.PIN_VERIFICATION_REQUIRED,
+				(short) response.getSW());
+
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		response = transmitFillKeyPool(0, 0);
+		assertEquals(StatusCodes.INCORRECT_P1P2, (short) response.getSW());
+
+		response = transmitFillKeyPool(0x02, 1);
+		assertEquals(StatusCodes.INCORRECT_P1P2, (short) response.getSW());
+
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_POOLED_KEY, 0, 1));
+		assertEquals(StatusCodes.INCORRECT_P1P2, (short) response.getSW());
+
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+	}
+
+	/**
+	 * Checks, that the address of a handed out key is derived from the given
+	 * form of its public key and that its handle signs with the key.
+	 */
+	private void assertPublicKey(byte[] publicKey, byte[][] key)
+			throws CardException {
+		assertArrayEquals(getRawAddress(TestUtils
+				.calculateBitcoinAddress(publicKey)), key[1]);
+
+		byte[] hash = getSHA256Hash("Input");
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+				AppletInstructions.P1_KEY_HANDLE, 0, TestUtils.concatenate(
+						key[2], hash)));
+		assertTrue(commandSuccessful(response));
+		assertTrue(TestUtils.verifySignature(publicKey, hash,
+				response.getData()));
+	}
+
+	/**
+	 * Returns the uncompressed form of the given compressed public key.
+	 */
+	private static byte[] decompress(byte[] publicKey) {
+		assertEquals(33, publicKey.length);
+		ECCurve curve = SECNamedCurves.getByName("secp256k1").getCurve();
+		ECPoint point = curve.decodePoint(publicKey);
+		return curve.createPoint(point.getX().toBigInteger(),
+				point.getY().toBigInteger(), false).getEncoded();
+	}
+
+	/**
+	 * Deletes the key with the given handle.
+	 */
+	private void deleteKeyByHandle(byte[] handle) throws CardException {
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_DELETE_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle));
+		assertTrue(commandSuccessful(response));
+	}
+
+	/**
+	 * Fills the key pool.
+	 *
+	 * @return The number of keys in the pool
+	 */
+	private int fillKeyPool(int p1, int count) throws CardException {
+		ResponseAPDU response = transmitFillKeyPool(p1, count);
+		assertTrue(commandSuccessful(response));
+		assertEquals(2, response.getData().length);
+
+		return ((response.getData()[0] & 0xFF) << 8)
+				| (response.getData()[1] & 0xFF);
+	}
+
+	private ResponseAPDU transmitFillKeyPool(int p1, int count)
+			throws CardException {
+		return smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_FILL_KEY_POOL, p1, count));
+	}
+
+	/**
+	 * Hands out the next pooled key.
+	 *
+	 * @return The compressed public key, the address, the handle of the key
+	 *         and the form of the public key the address is derived from
+	 */
+	private byte[][] getPooledKey() throws CardException {
+		ResponseAPDU response = transmitGetPooledKey();
+		assertTrue(commandSuccessful(response));
+
+		byte[] data = response.getData();
+		byte[][] fields = new byte[4][];
+		int offset = 0;
+		for (int i = 0; i < 3; i++) {
+			int length = data[offset] & 0xFF;
+			fields[i] = Arrays.copyOfRange(data, offset + 1, offset + 1
+					+ length);
+			offset += 1 + length;
+		}
+		fields[3] = Arrays.copyOfRange(data, offset, data.length);
+		assertEquals(1, fields[3].length);
+
+		return fields;
+	}
+
+	private ResponseAPDU transmitGetPooledKey() throws CardException {
+		return smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_POOLED_KEY, 0, 0));
+	}
+}
@@ -1,11 +1,15 @@
 package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javacard.framework.ISOException;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
@@ -15,7 +19,12 @@ import org.bouncycastle.util.encoders.Hex;
 import org.junit.Test;
 
 import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.KeyStore;
 import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.SignatureBatch;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.WorkingMemory;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.SimulatorApplet;
 import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
 
 public class KeyStoreTest extends AppletTestBase {
@@ -53,19 +62,16 @@ public class KeyStoreTest extends AppletTestBase {
 	public void testKeyGenerator() throws CardException {
 		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
 
-		CommandAPDU generateKeyInstruction = new CommandAPDU(
-				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
-				AppletInstructions.INS_GENERATE_KEY, 0, 0);
-
-		ResponseAPDU response = smartCard.transmit(generateKeyInstruction);
-		assertTrue(commandSuccessful(response));
-		
-		byte[] publicKey = response.getData();
+		byte[][] key = generateKey(0);
+		byte[] publicKey = key[0];
 		
 		System.out.println(TestUtils.getHexString(publicKey));
 		
-		assertTrue(publicKey.length == 65);
+		assertEquals(65, publicKey.length);
 		assertTrue(publicKey[0] == 4);
+		assertArrayEquals(getRawAddress(TestUtils
+				.calculateBitcoinAddress(publicKey)), key[1]);
+		assertEquals(2, key[2].length);
 		
 		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE - 1, getRemainingSlots());
 		
@@ -74,6 +80,45 @@ public class KeyStoreTest extends AppletTestBase {
 		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE, getRemainingSlots());
 	}
 
+	/**
+	 * Tests the key generation with a compressed public key.
+	 * 
+	 * @throws CardException
+	 */
+	@Test
+	public void testCompressedKeyGenerator() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[][] key = generateKey(AppletInstructions.P1_COMPRESSED);
+		byte[] publicKey = key[0];
+		byte[] handle = key[2];
+		assertEquals(33, publicKey.length);
+		assertTrue(publicKey[0] == 2 || publicKey[0] == 3);
+
+		// The compressed key is a valid point of the signing key
+		byte[] hash = getSHA256Hash("Input");
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+				AppletInstructions.P1_KEY_HANDLE, 0, TestUtils.concatenate(
+						handle, hash)));
+		assertTrue(commandSuccessful(response));
+		assertTrue(TestUtils.verifySignature(publicKey, hash,
+				response.getData()));
+
+		// The address is derived from the compressed key
+		assertArrayEquals(getRawAddress(TestUtils
+				.calculateBitcoinAddress(publicKey)), key[1]);
+		deleteKey(TestUtils.calculateBitcoinAddress(publicKey).getBytes());
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GENERATE_KEY, 0x02, 0));
+		assertEquals(StatusCodes.INCORRECT_P1P2, (short) response.getSW());
+	}
+
 	/**
 	 * Tests the export function.
 	 * 
@@ -111,115 +156,263 @@ public class KeyStoreTest extends AppletTestBase {
 	}
 
 	/**
-	 * Deletes the encrypted private key specified by the given Bitcoin address.
+	 * Tests signing several hashes with one selected key and signing after
+	 * the selected key has been deleted.
 	 * 
-	 * @param bitcoinAddress
 	 * @throws CardException
 	 */
-	private void deleteKey(byte[] rawBitcoinAddress) throws CardException {
-		CommandAPDU deleteKeyInstruction = new CommandAPDU(
-				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
-				AppletInstructions.INS_DELETE_PRIVATE_KEY, 0, 0,
-				rawBitcoinAddress);
+	@Test
+	public void testSignWithSelectedKey() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
 
-		ResponseAPDU response = smartCard.transmit(deleteKeyInstruction);
+		byte[] rawBitcoinAddress = BITCOIN_ADDRESS_STRING.getBytes();
+		byte[] rawPrivateKey = Hex.decode(PRIVATE_KEY_HEX);
+		byte[] publicKey = TestUtils.calculatePublicKey(rawPrivateKey);
 
-		assertTrue(commandSuccessful(response));
+		importKey(rawBitcoinAddress, rawPrivateKey);
+
+		selectPrivateKey(rawBitcoinAddress);
+
+		for (int i = 0; i < 3; i++) {
+			byte[] hash = getSHA256Hash("Input " + i);
+
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash));
+
+			assertTrue(commandSuccessful(response));
+			// The card hashes the received hash again
+			assertTrue(TestUtils.verifySignature(publicKey, hash,
+					response.getData()));
+		}
+
+		deleteKey(rawBitcoinAddress);
+
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0,
+				getSHA256Hash("Input")));
+
+		assertEquals(StatusCodes.NO_KEY_SELECTED, (short) response.getSW());
 	}
 
 	/**
-	 * Imports the given private key with the given Bitcoin address
+	 * Tests signing several hashes with one batch sign instruction.
 	 * 
-	 * @param bitcoinAddress The Bitcoin address
-	 * @param privateKey The private key
 	 * @throws CardException
 	 */
-	private void importKey(byte[] bitcoinAddress, byte[] privateKey)
-			throws CardException {
-		CommandAPDU importKeyInstruction = new CommandAPDU(
-				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
-				AppletInstructions.INS_IMPORT_PRIVATE_KEY,
-				bitcoinAddress.length, privateKey.length,
-				TestUtils.concatenate(bitcoinAddress, privateKey));
+	@Test
+	public void testBatchSign() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
 
-		ResponseAPDU response = smartCard.transmit(importKeyInstruction);
-		assertTrue(commandSuccessful(response));
+		byte[] rawBitcoinAddress = BITCOIN_ADDRESS_STRING.getBytes();
+		byte[] rawPrivateKey = Hex.decode(PRIVATE_KEY_HEX);
+		byte[] publicKey = TestUtils.calculatePublicKey(rawPrivateKey);
+
+		importKey(rawBitcoinAddress, rawPrivateKey);
+		selectPrivateKey(rawBitcoinAddress);
+
+		byte[][] hashes = new byte[SecureBitcoinWalletJavaCardApplet.SIGNATURE_BATCH_SIZE][];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = getSHA256Hash("Input " + i);
+		}
+
+		byte[][] signatures = signBatch(hashes);
+
+		for (int i = 0; i < hashes.length; i++) {
+			assertTrue(TestUtils.verifySignature(publicKey, hashes[i],
+					signatures[i]));
+		}
+
+		// One hash more than the batch size
+		byte[][] tooManyHashes = Arrays.copyOf(hashes, hashes.length + 1);
+		tooManyHashes[hashes.length] = hashes[0];
+
+		ResponseAPDU response = null;
+		for (int i = 0; i < tooManyHashes.length; i += 7) {
+			byte[] chunk = new byte[0];
+			for (int j = i; j < Math.min(i + 7, tooManyHashes.length); j++) {
+				chunk = TestUtils.concatenate(chunk, tooManyHashes[j]);
+			}
+			response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA
+							| SecureBitcoinWalletJavaCardApplet.CLA_CHAINING,
+					AppletInstructions.INS_SIGN_SHA256_HASH_BATCH, 0, 0, chunk));
+			if (!commandSuccessful(response)) {
+				break;
+			}
+		}
+
+		assertEquals(StatusCodes.WRONG_LENGTH, (short) response.getSW());
+
+		deleteKey(rawBitcoinAddress);
 	}
-	
+
 	/**
-	 * Imports the given encrypted private key with the given Bitcoin address
-	 * 
-	 * @param bitcoinAddress The Bitcoin address
-	 * @param privateKey The encrypted private key
-	 * @throws CardException
+	 * A response, which is too short for one signature, is rejected and the
+	 * batch is kept for a GET RESPONSE with a sufficient length.
 	 */
-	private void importEncryptedKey(byte[] bitcoinAddress, byte[] privateKey)
-			throws CardException {
-		CommandAPDU importKeyInstruction = new CommandAPDU(
+	@Test
+	public void testBatchSignShortResponse() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] rawBitcoinAddress = BITCOIN_ADDRESS_STRING.getBytes();
+		byte[] rawPrivateKey = Hex.decode(PRIVATE_KEY_HEX);
+
+		importKey(rawBitcoinAddress, rawPrivateKey);
+		selectPrivateKey(rawBitcoinAddress);
+
+		byte[] hash = getSHA256Hash("Input");
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
 				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
-				AppletInstructions.INS_IMPORT_ENCRYPTED_PRIVATE_KEY,
-				bitcoinAddress.length, privateKey.length,
-				TestUtils.concatenate(bitcoinAddress, privateKey));
+				AppletInstructions.INS_SIGN_SHA256_HASH_BATCH, 0, 0, hash,
+				SignatureBatch.MAX_ITEM_SIZE - 1));
+		assertEquals(StatusCodes.WRONG_LENGTH, (short) response.getSW());
 
-		ResponseAPDU response = smartCard.transmit(importKeyInstruction);
+		response = smartCard.transmit(new CommandAPDU(0x00,
+				AppletInstructions.INS_GET_RESPONSE, 0, 0, 256));
 		assertTrue(commandSuccessful(response));
+
+		byte[] data = response.getData();
+		assertEquals(data.length, 1 + (data[0] & 0xFF));
+		assertTrue(TestUtils.verifySignature(
+				TestUtils.calculatePublicKey(rawPrivateKey), hash,
+				Arrays.copyOfRange(data, 1, data.length)));
 	}
 
 	/**
-	 * Signs a string with the smartcard and returns its signature.
-	 * 
-	 * @throws CardException
+	 * A batch is dropped, if signing fails.
 	 */
-	private byte[] getSignature(byte[] bitcoinAddress, String input) throws CardException {
-		selectPrivateKey(bitcoinAddress);
-		
-		byte[] hash = getSHA256Hash(input);
+	@Test
+	public void testBatchDroppedOnFailure() {
+		WorkingMemory memory = new WorkingMemory((short) 512);
+		KeyStore keyStore = new KeyStore((short) 1, (short) 35,
+				KeyStore.ADDRESS_FORMAT_HASH160,
+				SimulatorApplet.createECDSASHA256Signature(), memory);
+		SignatureBatch batch = new SignatureBatch((short) 2, keyStore, memory);
 
-		CommandAPDU signInstruction = new CommandAPDU(
-				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
-				AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash);
+		batch.addHashes(new byte[64], (short) 0, (short) 64, false);
+		assertTrue(batch.hasPendingSignatures());
 
-		ResponseAPDU response = smartCard.transmit(signInstruction);
-		assertTrue(commandSuccessful(response));
+		// No key is selected
+		try {
+			batch.signNext(new byte[256], (short) 0, (short) 256);
+			fail();
+		} catch (ISOException e) {
+			assertEquals(StatusCodes.NO_KEY_SELECTED, e.getReason());
+		}
 
-		return response.getData();
+		assertFalse(batch.hasPendingSignatures());
 	}
 
 	/**
-	 * Calculates the SHA256 hash for the given string
+	 * Tests signing with alternating keys using the select and sign
+	 * instruction.
 	 * 
-	 * @param text The text for which the hash should be generated.
+	 * @throws CardException
 	 */
-	private byte[] getSHA256Hash(String text) {
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("SHA-256 algorithm not found!");
+	@Test
+	public void testSelectKeyAndSign() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(8);
+		byte[][] addresses = new byte[2][];
+		byte[][] publicKeys = new byte[2][];
+
+		for (int i = 0; i < addresses.length; i++) {
+			byte[] privateKey = TestUtils.generatePrivateKey(random);
+			publicKeys[i] = TestUtils.calculatePublicKey(privateKey);
+			addresses[i] = TestUtils.calculateBitcoinAddress(
+					publicKeys[i]).getBytes();
+			importKey(addresses[i], privateKey);
 		}
 
-		try {
-			md.update(text.getBytes("UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException("UTF-8 encoding not supported!");
+		for (int i = 0; i < 4; i++) {
+			byte[] address = addresses[i % 2];
+			byte[] hash = getSHA256Hash("Input " + i);
+
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+					address.length, 0, TestUtils.concatenate(address, hash)));
+
+			assertTrue(commandSuccessful(response));
+			assertTrue(TestUtils.verifySignature(publicKeys[i % 2], hash,
+					response.getData()));
 		}
 
-		return md.digest();
+		for (byte[] address : addresses) {
+			deleteKey(address);
+		}
 	}
 
 	/**
-	 * Selects the given private key for signing.
+	 * Tests referencing keys by their handles and that handles of deleted
+	 * keys are rejected.
 	 * 
-	 * @param bitcoinAddress The private key's Bitcoin address
 	 * @throws CardException
 	 */
-	private void selectPrivateKey(byte[] bitcoinAddress) throws CardException {
-		CommandAPDU selectPrivateKeyInstruction = new CommandAPDU(
+	@Test
+	public void testKeyHandles() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		byte[] rawBitcoinAddress = BITCOIN_ADDRESS_STRING.getBytes();
+		byte[] rawPrivateKey = Hex.decode(PRIVATE_KEY_HEX);
+		byte[] publicKey = TestUtils.calculatePublicKey(rawPrivateKey);
+
+		byte[] handle = importKey(rawBitcoinAddress, rawPrivateKey);
+		assertEquals(2, handle.length);
+
+		// Sign with the key selected by its handle
+		ResponseAPDU response = smartCard.transmit(new CommandAPDU(
 				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
-				AppletInstructions.INS_SELECT_KEY, 0, 0, bitcoinAddress);
+				AppletInstructions.INS_SELECT_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle));
+		assertTrue(commandSuccessful(response));
 
-		ResponseAPDU response = smartCard.transmit(selectPrivateKeyInstruction);
+		byte[] hash = getSHA256Hash("Input");
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SIGN_SHA256_HASH, 0, 0, hash));
+		assertTrue(commandSuccessful(response));
+		assertTrue(TestUtils.verifySignature(publicKey, hash,
+				response.getData()));
 
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_SELECT_KEY_AND_SIGN,
+				AppletInstructions.P1_KEY_HANDLE, 0, TestUtils.concatenate(
+						handle, hash)));
 		assertTrue(commandSuccessful(response));
+		assertTrue(TestUtils.verifySignature(publicKey, hash,
+				response.getData()));
+
+		// Export the key by its handle
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle));
+		assertTrue(commandSuccessful(response));
+		assertEquals(32, response.getData().length);
+
+		// Delete the key by its handle
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_DELETE_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle));
+		assertTrue(commandSuccessful(response));
+
+		// A new key in the same slot gets a new generation
+		byte[] newHandle = importKey(rawBitcoinAddress, rawPrivateKey);
+		assertEquals(handle[0], newHandle[0]);
+		assertTrue(handle[1] != newHandle[1]);
+
+		response = smartCard.transmit(new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GET_PRIVATE_KEY,
+				AppletInstructions.P1_KEY_HANDLE, 0, handle));
+		assertEquals(StatusCodes.KEY_NOT_FOUND, (short) response.getSW());
+
+		deleteKey(rawBitcoinAddress);
 	}
 }
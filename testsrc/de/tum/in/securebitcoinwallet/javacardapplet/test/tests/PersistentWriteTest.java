@@ -0,0 +1,184 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.AppletInstructions;
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.StatusCodes;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.JavaCardSimulator;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * Checks that scratch data is not written to the EEPROM. Uses the
+ * persistent write counters of the simulator.
+ */
+public class PersistentWriteTest extends AppletTestBase {
+	/**
+	 * Persistent bytes of a key slot: address (21), encrypted key (32),
+	 * address length (2), inUse flag (1), free slot bitmap (1), key counter
+	 * (2), hash index (3) and slot generation (1).
+	 */
+	private static final int SLOT_BYTES = 63;
+
+	/**
+	 * Persistent bytes of the private scalar of the EC key pair.
+	 */
+	private static final int PRIVATE_SCALAR_BYTES = 32;
+
+	/**
+	 * Persistent bytes of the EC key pair used for generation: public point
+	 * (65) and private scalar.
+	 */
+	private static final int KEY_PAIR_BYTES = 65 + PRIVATE_SCALAR_BYTES;
+
+	/**
+	 * Number of operations per measurement.
+	 */
+	private static final int ITERATIONS = 8;
+
+	private JavaCardSimulator simulator;
+
+	public PersistentWriteTest() throws CardException {
+		super(new JavaCardSimulator(AID));
+		simulator = (JavaCardSimulator) smartCard;
+		simulator.setCountPersistentWrites(true);
+	}
+
+	/**
+	 * Key generation may only write the new slot and the key pair.
+	 */
+	@Test
+	public void testKeyGenerationWrites() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		simulator.resetPersistentWrites();
+
+		CommandAPDU generateKeyInstruction = new CommandAPDU(
+				AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+				AppletInstructions.INS_GENERATE_KEY, 0, 0);
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			ResponseAPDU response = smartCard.transmit(generateKeyInstruction);
+			assertTrue(commandSuccessful(response));
+		}
+
+		int writes = simulator
+				.getPersistentWrites(AppletInstructions.INS_GENERATE_KEY);
+
+		assertTrue("Persistent bytes per key generation: " + writes
+				/ ITERATIONS, writes <= ITERATIONS
+				* (SLOT_BYTES + KEY_PAIR_BYTES));
+	}
+
+	/**
+	 * Importing a key may only write the new slot and the private scalar of
+	 * the key pair, which is used to encrypt the key.
+	 */
+	@Test
+	public void testKeyImportWrites() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(1);
+
+		simulator.resetPersistentWrites();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			byte[] publicKey = new byte[65];
+			byte[] privateKey = new byte[32];
+			random.nextBytes(publicKey);
+			random.nextBytes(privateKey);
+			importKey(TestUtils.calculateBitcoinAddress(publicKey).getBytes(),
+					privateKey);
+		}
+
+		int writes = simulator
+				.getPersistentWrites(AppletInstructions.INS_IMPORT_PRIVATE_KEY);
+
+		assertTrue("Persistent bytes per key import: " + writes / ITERATIONS,
+				writes <= ITERATIONS * (SLOT_BYTES + PRIVATE_SCALAR_BYTES));
+	}
+
+	/**
+	 * Signing writes nothing, the selected key is decrypted into a transient
+	 * signing key.
+	 */
+	@Test
+	public void testSignatureWrites() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(1);
+		byte[][] addresses = new byte[2][];
+
+		for (int i = 0; i < addresses.length; i++) {
+			byte[] publicKey = new byte[65];
+			random.nextBytes(publicKey);
+			addresses[i] = TestUtils.calculateBitcoinAddress(publicKey)
+					.getBytes();
+			importKey(addresses[i], TestUtils.generatePrivateKey(random));
+		}
+
+		simulator.resetPersistentWrites();
+
+		// Alternate between the keys, so that scratch data changes
+		for (int i = 0; i < ITERATIONS; i++) {
+			getSignature(addresses[i % 2], "Transaction " + i);
+		}
+
+		int writes = simulator
+				.getPersistentWrites(AppletInstructions.INS_SIGN_SHA256_HASH);
+
+		assertEquals("Persistent bytes of " + ITERATIONS + " signatures", 0,
+				writes);
+	}
+
+	/**
+	 * An address with a wrong checksum is rejected before anything is
+	 * written.
+	 */
+	@Test
+	public void testInvalidAddressWrites() throws CardException {
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+
+		Random random = new Random(1);
+
+		simulator.resetPersistentWrites();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			byte[] publicKey = new byte[65];
+			random.nextBytes(publicKey);
+			byte[] address = TestUtils.calculateBitcoinAddress(publicKey)
+					.getBytes();
+			// Swap the last character, changing the checksum
+			address[address.length - 1] = (byte) (address[address.length - 1] == 'z' ? 'y'
+					: 'z');
+
+			ResponseAPDU response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_IMPORT_PRIVATE_KEY, address.length,
+					32, TestUtils.concatenate(address,
+							TestUtils.generatePrivateKey(random))));
+			assertEquals(StatusCodes.DATA_INVALID, (short) response.getSW());
+
+			response = smartCard.transmit(new CommandAPDU(
+					AppletInstructions.SECURE_BITCOIN_WALLET_CLA,
+					AppletInstructions.INS_DELETE_PRIVATE_KEY, 0, 0, address));
+			assertEquals(StatusCodes.DATA_INVALID, (short) response.getSW());
+		}
+
+		assertEquals(0, simulator
+				.getPersistentWrites(AppletInstructions.INS_IMPORT_PRIVATE_KEY));
+		assertEquals(0, simulator
+				.getPersistentWrites(AppletInstructions.INS_DELETE_PRIVATE_KEY));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.STORE_SIZE,
+				getRemainingSlots());
+	}
+}
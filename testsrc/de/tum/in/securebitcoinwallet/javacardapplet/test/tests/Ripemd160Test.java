@@ -0,0 +1,143 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.Ripemd160;
+import de.tum.in.securebitcoinwallet.javacardapplet.Ripemd160Compact;
+
+/**
+ * UnitTests for the software RIPEMD160 implementations. The results are
+ * compared with the RIPEMD160 digest of BouncyCastle.
+ */
+public class Ripemd160Test {
+	/**
+	 * Test vectors of the RIPEMD160 specification.
+	 */
+	private static final String[][] VECTORS = {
+			{ "", "9c1185a5c5e9fc54612808977ee8f548b2258d31" },
+			{ "a", "0bdc9d2d256b3ee9daae347be6f4dc835a467ffe" },
+			{ "abc", "8eb208f7e05d987a9b044a8e98c6b087f15a0bfc" },
+			{ "message digest", "5d0689ef49d2fae572b881b123a85ffa21595f36" },
+			{ "abcdefghijklmnopqrstuvwxyz",
+					"f71c27109c692c1b56bbdceb5b9d2865b3708dbc" },
+			{ "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq",
+					"12a053384a9c0c88e405a06c27dcf49ada62eb2b" },
+			{
+					"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789",
+					"b0e20b6e3116640286ed3a87a5713079b21f5189" } };
+
+	private byte[] state = new byte[Ripemd160.STATE_SIZE];
+
+	/**
+	 * Tests the streaming API with the test vectors of the specification.
+	 */
+	@Test
+	public void testVectors() throws UnsupportedEncodingException {
+		for (String[] vector : VECTORS) {
+			byte[] message = vector[0].getBytes("US-ASCII");
+
+			Ripemd160.init(state, (short) 0);
+			assertArrayEquals(vector[0], Hex.decode(vector[1]), hash(message,
+					message.length));
+		}
+	}
+
+	/**
+	 * Compares the streaming API with BouncyCastle for all lengths around
+	 * the block boundaries and for random splits into updates.
+	 */
+	@Test
+	public void testStreaming() {
+		Random random = new Random(42);
+
+		Ripemd160.init(state, (short) 0);
+		for (int length = 0; length <= 300; length++) {
+			byte[] message = new byte[length];
+			random.nextBytes(message);
+
+			// In one call
+			assertArrayEquals(calculateExpected(message), hash(message,
+					message.length));
+
+			// In random parts, the state is reset by doFinal
+			assertArrayEquals(calculateExpected(message), hash(message,
+					random.nextInt(64) + 1));
+		}
+	}
+
+	/**
+	 * Compares the hash of 32 bytes with BouncyCastle. The output may
+	 * overlap the input like in the address derivation.
+	 */
+	@Test
+	public void testHash32() {
+		Random random = new Random(42);
+		byte[] scratch = new byte[64];
+
+		for (int i = 0; i < 100; i++) {
+			byte[] buffer = new byte[40];
+			random.nextBytes(buffer);
+			byte[] expected = calculateExpected(Arrays.copyOf(buffer, 32));
+
+			Ripemd160.hash32(buffer, (short) 0, buffer, (short) 1, scratch,
+					(short) 0);
+			assertArrayEquals(expected, Arrays.copyOfRange(buffer, 1, 21));
+		}
+	}
+
+	/**
+	 * Compares the compact implementation with BouncyCastle. The output may
+	 * overlap the input like in the address derivation.
+	 */
+	@Test
+	public void testCompactHash32() {
+		Random random = new Random(42);
+		short[] work = new short[Ripemd160Compact.WORK_SIZE + 3];
+
+		for (int i = 0; i < 100; i++) {
+			byte[] buffer = new byte[40];
+			random.nextBytes(buffer);
+			byte[] expected = calculateExpected(Arrays.copyOf(buffer, 32));
+
+			Ripemd160Compact.hash32(buffer, (short) 0, buffer, (short) 1,
+					work, (short) 3);
+			assertArrayEquals(expected, Arrays.copyOfRange(buffer, 1, 21));
+		}
+	}
+
+	/**
+	 * Hashes the given message with updates of the given size.
+	 */
+	private byte[] hash(byte[] message, int partSize) {
+		int offset = 0;
+		while (message.length - offset > partSize) {
+			Ripemd160.update(state, (short) 0, message, (short) offset,
+					(short) partSize);
+			offset += partSize;
+		}
+
+		byte[] hash = new byte[Ripemd160.HASH_SIZE];
+		assertEquals(Ripemd160.HASH_SIZE, Ripemd160.doFinal(state, (short) 0,
+				message, (short) offset, (short) (message.length - offset),
+				hash, (short) 0));
+		return hash;
+	}
+
+	private static byte[] calculateExpected(byte[] message) {
+		RIPEMD160Digest digest = new RIPEMD160Digest();
+		digest.update(message, 0, message.length);
+
+		byte[] hash = new byte[digest.getDigestSize()];
+		digest.doFinal(hash, 0);
+		return hash;
+	}
+}
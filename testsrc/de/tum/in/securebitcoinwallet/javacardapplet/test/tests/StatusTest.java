@@ -0,0 +1,109 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+
+import org.junit.Test;
+
+import de.tum.in.securebitcoinwallet.javacardapplet.SecureBitcoinWalletJavaCardApplet;
+import de.tum.in.securebitcoinwallet.javacardapplet.test.util.TestUtils;
+
+/**
+ * UnitTests for the get status instruction.
+ */
+public class StatusTest extends AppletTestBase {
+	private static final byte[] WRONG_PIN = { 4, 3, 2, 1 };
+
+	private static final byte SETUP_DONE = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_SETUP_DONE;
+
+	private static final byte PIN_VALIDATED = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_PIN_VALIDATED;
+
+	private static final byte PIN_TRIES = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_PIN_TRIES;
+
+	private static final byte PUK_TRIES = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_PUK_TRIES;
+
+	private static final byte USED_SLOTS = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_USED_SLOTS;
+
+	private static final byte FREE_SLOTS = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_FREE_SLOTS;
+
+	private static final byte SELECTED_SLOT = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_SELECTED_SLOT;
+
+	private static final byte VERSION = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_VERSION;
+
+	private static final byte POOLED_KEYS = SecureBitcoinWalletJavaCardApplet.STATUS_TAG_POOLED_KEYS;
+
+	public StatusTest() throws CardException {
+		super();
+	}
+
+	/**
+	 * Tests the layout and the values of the status after the setup.
+	 */
+	@Test
+	public void testInitialStatus() throws CardException {
+		Map<Byte, Integer> status = getStatus();
+
+		assertEquals(Arrays.asList(SETUP_DONE, PIN_VALIDATED, PIN_TRIES,
+				PUK_TRIES, USED_SLOTS, FREE_SLOTS, SELECTED_SLOT, VERSION,
+				POOLED_KEYS),
+				new ArrayList<Byte>(status.keySet()));
+
+		assertEquals(1, (int) status.get(SETUP_DONE));
+		assertEquals(0, (int) status.get(PIN_VALIDATED));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.PIN_RETRIES,
+				(int) status.get(PIN_TRIES));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.PUK_RETRIES,
+				(int) status.get(PUK_TRIES));
+		assertEquals(getRemainingSlots(), (int) status.get(FREE_SLOTS));
+		assertEquals(0xFF, (int) status.get(SELECTED_SLOT));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.VERSION,
+				(int) status.get(VERSION));
+		assertEquals(0, (int) status.get(POOLED_KEYS));
+	}
+
+	/**
+	 * Tests, that the status follows PIN validation, key import and key
+	 * selection.
+	 */
+	@Test
+	public void testStatusChanges() throws CardException {
+		assertFalse(authenticate(WRONG_PIN));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.PIN_RETRIES - 1,
+				(int) getStatus().get(PIN_TRIES));
+
+		assertTrue(authenticate(SecureBitcoinWalletJavaCardApplet.DEFAULT_PIN));
+		Map<Byte, Integer> status = getStatus();
+		assertEquals(1, (int) status.get(PIN_VALIDATED));
+		assertEquals(SecureBitcoinWalletJavaCardApplet.PIN_RETRIES,
+				(int) status.get(PIN_TRIES));
+
+		int usedSlots = status.get(USED_SLOTS);
+		int freeSlots = status.get(FREE_SLOTS);
+
+		Random random = new Random(14);
+		byte[] privateKey = TestUtils.generatePrivateKey(random);
+		byte[] address = TestUtils.calculateBitcoinAddress(
+				TestUtils.calculatePublicKey(privateKey)).getBytes();
+		importKey(address, privateKey);
+		selectPrivateKey(address);
+
+		status = getStatus();
+		assertEquals(usedSlots + 1, (int) status.get(USED_SLOTS));
+		assertEquals(freeSlots - 1, (int) status.get(FREE_SLOTS));
+		assertTrue(status.get(SELECTED_SLOT) != 0xFF);
+
+		deleteKey(address);
+
+		status = getStatus();
+		assertEquals(usedSlots, (int) status.get(USED_SLOTS));
+		assertEquals(0xFF, (int) status.get(SELECTED_SLOT));
+	}
+}
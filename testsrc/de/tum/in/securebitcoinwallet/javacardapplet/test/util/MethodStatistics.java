@@ -0,0 +1,150 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the size of the bytecode, the maximum operand stack depth and the
+ * number of local variables of the methods of a class from its class file.
+ * The figures of the Java bytecode are an estimate for the figures of the
+ * converted Java Card bytecode.
+ */
+public class MethodStatistics {
+	/**
+	 * Bytecode size in bytes.
+	 */
+	public final int codeLength;
+
+	/**
+	 * Maximum depth of the operand stack.
+	 */
+	public final int maxStack;
+
+	/**
+	 * Number of local variable slots including the parameters.
+	 */
+	public final int maxLocals;
+
+	private MethodStatistics(int codeLength, int maxStack, int maxLocals) {
+		this.codeLength = codeLength;
+		this.maxStack = maxStack;
+		this.maxLocals = maxLocals;
+	}
+
+	/**
+	 * Reads the statistics of all methods of the given class.
+	 *
+	 * @return The statistics by method name
+	 */
+	public static Map<String, MethodStatistics> read(Class<?> type)
+			throws IOException {
+		InputStream stream = type.getResourceAsStream(type.getSimpleName()
+				+ ".class");
+		try {
+			return read(new DataInputStream(stream));
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static Map<String, MethodStatistics> read(DataInputStream in)
+			throws IOException {
+		// Magic and version
+		in.skipBytes(8);
+
+		int constantCount = in.readUnsignedShort();
+		String[] utf8 = new String[constantCount];
+		for (int i = 1; i < constantCount; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1:
+				utf8[i] = in.readUTF();
+				break;
+			case 5:
+			case 6:
+				// Long and double take two entries
+				in.skipBytes(8);
+				i++;
+				break;
+			case 3:
+			case 4:
+			case 9:
+			case 10:
+			case 11:
+			case 12:
+			case 17:
+			case 18:
+				in.skipBytes(4);
+				break;
+			case 15:
+				in.skipBytes(3);
+				break;
+			case 7:
+			case 8:
+			case 16:
+			case 19:
+			case 20:
+				in.skipBytes(2);
+				break;
+			default:
+				throw new IOException("Unknown constant " + tag);
+			}
+		}
+
+		// Access flags, class, super class and interfaces
+		in.skipBytes(6);
+		in.skipBytes(2 * in.readUnsignedShort());
+
+		int fieldCount = in.readUnsignedShort();
+		for (int i = 0; i < fieldCount; i++) {
+			in.skipBytes(6);
+			skipAttributes(in);
+		}
+
+		Map<String, MethodStatistics> methods = new LinkedHashMap<String, MethodStatistics>();
+		int methodCount = in.readUnsignedShort();
+		for (int i = 0; i < methodCount; i++) {
+			in.skipBytes(2);
+			String name = utf8[in.readUnsignedShort()];
+			in.skipBytes(2);
+
+			int attributeCount = in.readUnsignedShort();
+			for (int j = 0; j < attributeCount; j++) {
+				String attribute = utf8[in.readUnsignedShort()];
+				int length = in.readInt();
+				if (!attribute.equals("Code")) {
+					in.skipBytes(length);
+					continue;
+				}
+
+				int maxStack = in.readUnsignedShort();
+				int maxLocals = in.readUnsignedShort();
+				int codeLength = in.readInt();
+				in.skipBytes(length - 8);
+
+				// Overloaded methods are added up
+				MethodStatistics previous = methods.get(name);
+				if (previous != null) {
+					codeLength += previous.codeLength;
+					maxStack = Math.max(maxStack, previous.maxStack);
+					maxLocals = Math.max(maxLocals, previous.maxLocals);
+				}
+				methods.put(name, new MethodStatistics(codeLength, maxStack,
+						maxLocals));
+			}
+		}
+
+		return methods;
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			in.skipBytes(2);
+			in.skipBytes(in.readInt());
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package de.tum.in.securebitcoinwallet.javacardapplet.test.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javacard.framework.JCSystem;
+import javacard.security.Key;
+
+/**
+ * Counts the bytes of persistent memory, which are changed by the applet.
+ * Takes snapshots of all persistent arrays and fields reachable from the
+ * applet and compares them. Transient arrays are ignored. Only objects of the
+ * applet, the Java Card framework and the simulator's key implementations are
+ * followed, so the internal state of cipher and digest engines is not
+ * counted.
+ */
+public class PersistentMemoryMonitor {
+	/**
+	 * Package prefixes of classes, whose fields are followed.
+	 */
+	private static final String[] FOLLOWED_PACKAGES = {
+			"de.tum.in.securebitcoinwallet.javacardapplet.",
+			"javacard.framework.", "javacard.security.KeyPair" };
+
+	/**
+	 * Class name of the simulator's container for key components.
+	 */
+	private static final String KEY_CONTAINER_CLASS = "com.licel.jcardsim.crypto.ByteContainer";
+
+	/**
+	 * Snapshot of the persistent memory reachable from an object.
+	 */
+	public static class Snapshot {
+		/**
+		 * Copies of all persistent arrays.
+		 */
+		private final Map<Object, Object> arrays = new IdentityHashMap<Object, Object>();
+
+		/**
+		 * Values of all fields of followed objects.
+		 */
+		private final Map<Object, Object[]> fields = new IdentityHashMap<Object, Object[]>();
+	}
+
+	/**
+	 * Takes a snapshot of the persistent memory reachable from the given
+	 * object.
+	 * 
+	 * @param root The object to start from, usually the applet
+	 * @return The snapshot
+	 */
+	public static Snapshot takeSnapshot(Object root) {
+		Snapshot snapshot = new Snapshot();
+		List<Object> pending = new ArrayList<Object>();
+		pending.add(root);
+
+		while (!pending.isEmpty()) {
+			Object object = pending.remove(pending.size() - 1);
+
+			if (object == null || snapshot.arrays.containsKey(object)
+					|| snapshot.fields.containsKey(object)) {
+				continue;
+			}
+
+			if (object.getClass().isArray()) {
+				if (JCSystem.isTransient(object) != JCSystem.NOT_A_TRANSIENT_OBJECT) {
+					continue;
+				}
+				snapshot.arrays.put(object, copyArray(object));
+				if (!object.getClass().getComponentType().isPrimitive()) {
+					for (Object element : (Object[]) object) {
+						pending.add(element);
+					}
+				}
+			} else if (isFollowed(object.getClass())) {
+				List<Field> objectFields = getFields(object.getClass());
+				Object[] values = new Object[objectFields.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = getValue(objectFields.get(i), object);
+					if (!objectFields.get(i).getType().isPrimitive()) {
+						pending.add(values[i]);
+					}
+				}
+				snapshot.fields.put(object, values);
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Counts the persistent bytes, which differ between the two snapshots.
+	 * Arrays which only exist in the second snapshot are counted with their
+	 * full size. Changed references are counted with two bytes.
+	 * 
+	 * @param before The snapshot taken before the operation
+	 * @param after The snapshot taken after the operation
+	 * @return The number of changed bytes
+	 */
+	public static int countChangedBytes(Snapshot before, Snapshot after) {
+		int changed = 0;
+
+		for (Map.Entry<Object, Object> entry : after.arrays.entrySet()) {
+			Object previous = before.arrays.get(entry.getKey());
+			Object current = entry.getValue();
+			int elementSize = getElementSize(current.getClass()
+					.getComponentType());
+
+			for (int i = 0; i < Array.getLength(current); i++) {
+				if (previous == null
+						|| !sameValue(Array.get(previous, i),
+								Array.get(current, i))) {
+					changed += elementSize;
+				}
+			}
+		}
+
+		for (Map.Entry<Object, Object[]> entry : after.fields.entrySet()) {
+			Object[] previous = before.fields.get(entry.getKey());
+			Object[] current = entry.getValue();
+			List<Field> objectFields = getFields(entry.getKey().getClass());
+
+			for (int i = 0; i < current.length; i++) {
+				if (previous == null || !sameValue(previous[i], current[i])) {
+					changed += getElementSize(objectFields.get(i).getType());
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	private static boolean isFollowed(Class<?> type) {
+		if (type.getName().equals(KEY_CONTAINER_CLASS)
+				|| Key.class.isAssignableFrom(type)) {
+			return true;
+		}
+		for (String prefix : FOLLOWED_PACKAGES) {
+			if (type.getName().startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Field> getFields(Class<?> type) {
+		List<Field> result = new ArrayList<Field>();
+		for (Class<?> c = type; c != null && c != Object.class; c = c
+				.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers())) {
+					field.setAccessible(true);
+					result.add(field);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static Object getValue(Field field, Object object) {
+		try {
+			return field.get(object);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Object copyArray(Object array) {
+		int length = Array.getLength(array);
+		Object copy = Array.newInstance(array.getClass().getComponentType(),
+				length);
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static boolean sameValue(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		if (a.getClass().isArray() || !isBoxedPrimitive(a)) {
+			return a == b;
+		}
+		return a.equals(b);
+	}
+
+	private static boolean isBoxedPrimitive(Object value) {
+		return value instanceof Number || value instanceof Boolean
+				|| value instanceof Character;
+	}
+
+	private static int getElementSize(Class<?> type) {
+		if (type == byte.class || type == boolean.class) {
+			return 1;
+		}
+		if (type == int.class || type == float.class) {
+			return 4;
+		}
+		if (type == long.class || type == double.class) {
+			return 8;
+		}
+		// short, char and references
+		return 2;
+	}
+}
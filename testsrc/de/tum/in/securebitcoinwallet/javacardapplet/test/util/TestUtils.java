@@ -1,10 +1,19 @@
 package de.tum.in.securebitcoinwallet.javacardapplet.test.util;
 
 import java.lang.reflect.Array;
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Random;
 
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
 
 public abstract class TestUtils {
 	public static <T> T[] concatenate(T[] a, T[] b) {
@@ -99,4 +108,66 @@ public abstract class TestUtils {
 
 		return Base58.encode(addressBytes);
 	}
+
+	/**
+	 * Generates a random private key, which is a valid secp256k1 scalar.
+	 * 
+	 * @param random The source of randomness
+	 * @return The 32 byte private key
+	 */
+	public static byte[] generatePrivateKey(Random random) {
+		byte[] privateKey = new byte[32];
+		random.nextBytes(privateKey);
+		// Keep the scalar below the group order
+		privateKey[0] &= 0x7F;
+		privateKey[31] |= 0x01;
+		return privateKey;
+	}
+
+	/**
+	 * Calculates the secp256k1 public key of the given private key.
+	 * 
+	 * @param privateKey The private key
+	 * @return The encoded public key
+	 */
+	public static byte[] calculatePublicKey(byte[] privateKey) {
+		X9ECParameters curve = SECNamedCurves.getByName("secp256k1");
+		return curve.getG().multiply(new BigInteger(1, privateKey))
+				.getEncoded();
+	}
+
+	/**
+	 * Verifies the given DER encoded ECDSA signature of the SHA256 hash of the
+	 * message with the given uncompressed secp256k1 public key.
+	 * 
+	 * @param publicKey The uncompressed public key
+	 * @param message The signed message, which is hashed with SHA256
+	 * @param signature The DER encoded signature
+	 * @return True, if the signature is valid
+	 */
+	public static boolean verifySignature(byte[] publicKey, byte[] message,
+			byte[] signature) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(message);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 algorithm not found!");
+		}
+
+		X9ECParameters curve = SECNamedCurves.getByName("secp256k1");
+		ECDomainParameters domain = new ECDomainParameters(curve.getCurve(),
+				curve.getG(), curve.getN(), curve.getH());
+
+		ECDSASigner signer = new ECDSASigner();
+		signer.init(false, new ECPublicKeyParameters(curve.getCurve()
+				.decodePoint(publicKey), domain));
+
+		ASN1Sequence sequence = ASN1Sequence.getInstance(signature);
+		BigInteger r = ASN1Integer.getInstance(sequence.getObjectAt(0))
+				.getValue();
+		BigInteger s = ASN1Integer.getInstance(sequence.getObjectAt(1))
+				.getValue();
+
+		return signer.verifySignature(hash, r, s);
+	}
 }